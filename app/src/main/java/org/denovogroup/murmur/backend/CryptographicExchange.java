@@ -44,11 +44,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -80,6 +81,49 @@ public class CryptographicExchange extends Exchange {
     /** Friends list received from the remote party */
     private ArrayList<byte[]> remoteBlindedFriends;
 
+    /** Maximum number of messages the remote party accepts, or -1 if it did not advertise it */
+    private int remoteMaxMessages = -1;
+
+    /** WireCodec version agreed with the remote party, 0 when frames are sent as JSON */
+    private int codecVersion = 0;
+
+    /** default maximum number of messages sent in a single frame */
+    public static final int DEFAULT_BATCH_MESSAGES = 32;
+
+    /** default size in bytes after which a frame of several messages is closed */
+    public static final int DEFAULT_BATCH_BYTES = 16 * 1024;
+
+    /** batching limits advertised to the remote party */
+    private int maxBatchMessages = DEFAULT_BATCH_MESSAGES;
+    private int maxBatchBytes = DEFAULT_BATCH_BYTES;
+
+    /** batching limits agreed with the remote party, every message in its own frame by default */
+    private int batchMessages = 1;
+    private int batchBytes = DEFAULT_BATCH_BYTES;
+
+    /** whether messages are sent and received at the same time, see transferMessages */
+    private boolean fullDuplex = true;
+
+    /** whether the messages to be sent are offered to the remote party first, see reconcile */
+    private boolean reconcile = true;
+
+    /** offered messages per message the remote party accepts, so the ones it already holds do
+     * not leave it with fewer than it could take */
+    private static final int OFFER_FACTOR = 2;
+
+    /** hashes of the messages the remote party lacks, null unless both parties reconcile */
+    private List<String> wantedHashes;
+
+    /** store sequence read before the candidates were offered */
+    private long reconciledSequence;
+
+    /** whether candidates beyond the offered ones or the wanted ones may have been left unsent */
+    private boolean candidatesTruncated;
+
+    /** WireCodec version advertised by recently met peers, by address, so the first frame
+     * of the next exchange with them can already be binary */
+    private static final Map<String, Integer> peerCodecs = Collections.synchronizedMap(new HashMap<String, Integer>());
+
   /** ClientMessage received from the remote party. */
   private ClientMessage mRemoteClientMessage;
 
@@ -127,11 +171,11 @@ public class CryptographicExchange extends Exchange {
 
         computeSharedFriends();
 
-      // Send client message.
-      sendClientMessage();
+        // Offer the messages to be sent so only the ones the remote party lacks are sent.
+        reconcile();
 
-      // Receive client message.
-      receiveClientMessage();
+      // Send client message and receive the remote client message.
+      transferMessages();
       
       setExchangeStatus(Status.SUCCESS);
 
@@ -140,6 +184,8 @@ public class CryptographicExchange extends Exchange {
       callback.success(this);
     } catch (Exception e) {  // Treat ALL exceptions as fatal.
         log.error("Exception while run()ing CryptographicExchange: ", e);
+        //the peer may have been downgraded, start with JSON next time
+        if(peerAddress != null) peerCodecs.remove(peerAddress);
         if(getExchangeStatus() == Status.ERROR_RECOVERABLE){
             callback.recover(this, getErrorMessage());
         } else {
@@ -150,6 +196,8 @@ public class CryptographicExchange extends Exchange {
             setExchangeStatus(Status.ERROR);
             callback.failure(this, getErrorMessage());
         }
+    } finally {
+        compression.end();
     }
   }
 
@@ -182,7 +230,16 @@ public class CryptographicExchange extends Exchange {
         ArrayList<ByteString> blindedFriends = SecurityManager.getCurrentProfile(mContext).isUseTrust() ?
                 Crypto.byteArraysToStrings(mClientPSI.encodeBlindedItems()) : new ArrayList<ByteString>();
         ClientMessage cm = new ClientMessage(null ,blindedFriends);
-        if(!lengthValueWrite(out, cm.toJSON())){
+        cm.maxMessages = SecurityManager.getCurrentProfile(mContext).getMaxMessages();
+        cm.codecVersion = WireCodec.VERSION;
+        cm.batchMessages = maxBatchMessages;
+        cm.batchBytes = maxBatchBytes;
+        cm.capabilities = ClientMessage.CAPABILITY_DEFLATE | (reconcile ? ClientMessage.CAPABILITY_RECONCILE : 0);
+        //the capabilities of the peer are not known yet, unless it advertised them before
+        Integer knownCodec = peerAddress != null ? peerCodecs.get(peerAddress) : null;
+        byte[] frame = knownCodec != null && knownCodec > 0 ? cm.toBinary(Math.min(WireCodec.VERSION, knownCodec))
+                : cm.toJSON().toString().getBytes(WireCodec.UTF8);
+        if(!writeFrame(frame)){
             setExchangeStatus(Status.ERROR);
             setErrorMessage("Length/value write of client friends failed.");
             throw new IOException("Length/value write of client friends failed, but exception is hidden (see Exchange.java)");
@@ -192,7 +249,13 @@ public class CryptographicExchange extends Exchange {
 
     private void receiveFriends() throws IOException{
         log.debug("receiving remote contacts");
-        mRemoteClientMessage = ClientMessage.fromJSON(lengthValueRead(in));
+        byte[] frame = readFrame();
+        if(WireCodec.isBinary(frame)){
+            mRemoteClientMessage = ClientMessage.fromBinary(frame);
+        } else {
+            JSONObject json = parseJSON(frame);
+            mRemoteClientMessage = json != null ? ClientMessage.fromJSON(json) : null;
+        }
 
         if (mRemoteClientMessage == null) {
             setExchangeStatus(Status.ERROR);
@@ -212,6 +275,15 @@ public class CryptographicExchange extends Exchange {
         remoteBlindedFriends = SecurityManager.getCurrentProfile(mContext).isUseTrust() ?
                 Crypto.byteStringsToArrays(mRemoteClientMessage.blindedFriends) :
                 new ArrayList<byte[]>();
+        remoteMaxMessages = mRemoteClientMessage.maxMessages;
+        //peers which do not advertise a codec only understand JSON
+        codecVersion = Math.min(WireCodec.VERSION, mRemoteClientMessage.codecVersion);
+        if(peerAddress != null) peerCodecs.put(peerAddress, codecVersion);
+        //peers which do not advertise batching expect every message in its own frame
+        batchMessages = mRemoteClientMessage.batchMessages > 0 ? Math.min(maxBatchMessages, mRemoteClientMessage.batchMessages) : 1;
+        batchBytes = mRemoteClientMessage.batchBytes > 0 ? Math.min(maxBatchBytes, mRemoteClientMessage.batchBytes) : maxBatchBytes;
+        //every frame after the friends may be deflated if the peer can inflate it
+        compressFrames = (mRemoteClientMessage.capabilities & ClientMessage.CAPABILITY_DEFLATE) != 0;
     }
 
   /**
@@ -219,32 +291,253 @@ public class CryptographicExchange extends Exchange {
    * from the message store.
    */
   private void sendClientMessage() throws IOException, JSONException {
+    if (!writeMessages()) {
+      setExchangeStatus(Status.ERROR);
+      setErrorMessage("Length/value write of client message failed.");
+      throw new IOException("Length/value write of client message failed, but exception is hidden (see Exchange.java)");
+    }
+  }
+
+  /**
+   * Write the messages from the message store to the remote party, without changing the
+   * exchange status so it can run alongside receiveClientMessage.
+   *
+   * @return True if all the frames were written, false otherwise.
+   */
+  private boolean writeMessages() throws IOException, JSONException {
       log.debug("sending messages");
       //create a message pool to be sent and send each message individually to allow partial data recovery in case of connection loss
       boolean success = true;
-      List<MurmurMessage> messagesPool = getMessages(commonFriends);
-
-      //notify the recipient how many items we expect to send him.
-      JSONObject exchangeInfoMessage = new JSONObject("{\""+MESSAGE_COUNT_KEY+"\":"+messagesPool.size()+"}");
-
-      if(!lengthValueWrite(out, exchangeInfoMessage)){
-          success = false;
+      //only the messages changed since the last exchange with this peer are sent, the sequence is
+      // read before the candidates so no change is skipped
+      MessageStore store = MessageStore.getInstance(mContext);
+      long sequence;
+      boolean truncated;
+      MessageIterator messagesPool;
+      if (wantedHashes != null) {
+          //the candidates were picked and offered by reconcile, only the ones lacked are read
+          sequence = reconciledSequence;
+          truncated = candidatesTruncated;
+          messagesPool = store.iterateMessagesByHash(wantedHashes);
       } else {
-          for (MurmurMessage message : messagesPool) {
-              log.debug("sending a message");
-              List<JSONObject> messageWrapper = new ArrayList<>();
-              messageWrapper.add(message.toJSON(mContext, commonFriends, FriendStore.getInstance(mContext).getAllFriends().size()));
-              ClientMessage cm = new ClientMessage((ArrayList<JSONObject>)messageWrapper, null);
-              if (!lengthValueWrite(out, cm.toJSON())) {
-                  success = false;
+          int limit = getExchangeLimit();
+          sequence = store.getSequence();
+          long watermark = store.getPeerWatermark(peerAddress);
+          messagesPool = store.iterateMessagesForExchange(commonFriends, limit, watermark);
+          truncated = limit >= 0 && messagesPool.getCount() >= limit;
+      }
+      int poolSize = messagesPool.getCount();
+      log.debug("Sending " + poolSize + " messages");
+      int friendCount = FriendStore.getInstance(mContext).getAllFriends().size();
+
+      try {
+          //notify the recipient how many items we expect to send him.
+          boolean sent = codecVersion > 0 ? writeFrame(WireCodec.encodeCount(poolSize))
+                  : writeFrame(new JSONObject("{\"" + MESSAGE_COUNT_KEY + "\":" + poolSize + "}"));
+
+          if (!sent) {
+              success = false;
+          } else {
+              //messages are decoded one at a time and packed into frames of up to batchMessages
+              // messages, a frame is closed early rather than grow past batchBytes
+              SecurityProfile profile = SecurityManager.getCurrentProfile(mContext);
+              List<byte[]> batch = new ArrayList<>();
+              int batchSize = 0;
+              for (MurmurMessage message : messagesPool) {
+                  byte[] encoded = codecVersion > 0 ? WireCodec.encodeMessage(profile, message, commonFriends, friendCount)
+                          : message.toJSON(mContext, commonFriends, friendCount).toString().getBytes(WireCodec.UTF8);
+                  if (!batch.isEmpty() && batchSize + encoded.length > batchBytes) {
+                      if (!sendBatch(batch)) success = false;
+                      batch.clear();
+                      batchSize = 0;
+                  }
+                  batch.add(encoded);
+                  batchSize += encoded.length;
+                  if (batch.size() >= batchMessages) {
+                      if (!sendBatch(batch)) success = false;
+                      batch.clear();
+                      batchSize = 0;
+                  }
               }
+              if (!batch.isEmpty() && !sendBatch(batch)) success = false;
           }
+      } finally {
+          messagesPool.close();
       }
-    if (!success) {
-      setExchangeStatus(Status.ERROR);
-      setErrorMessage("Length/value write of client message failed.");
-      throw new IOException("Length/value write of client message failed, but exception is hidden (see Exchange.java)");
-    }
+    //a truncated pool left older changes unsent, they are sent again next time
+    if (success && !truncated) sentSequence = sequence;
+    return success;
+  }
+
+  /** return the maximum number of messages sent to the remote party, or -1 for unlimited */
+  private int getExchangeLimit() {
+      //peers which do not advertise their limit are assumed to accept as many as we do
+      return remoteMaxMessages >= 0 ? remoteMaxMessages : SecurityManager.getCurrentProfile(mContext).getMaxMessages();
+  }
+
+  /**
+   * Send our messages and receive the messages of the remote party. In full duplex mode the
+   * messages are written by a writer thread while this thread receives, otherwise they are
+   * sent first. Each direction is independent of the other, so a full duplex exchange works
+   * with a peer doing them one after the other.
+   *
+   * The exchange fails if either direction fails. It is recoverable if some messages were
+   * received, even when ours could not all be sent.
+   */
+  private void transferMessages() throws Exception {
+      if (!fullDuplex) {
+          sendClientMessage();
+          receiveClientMessage();
+          return;
+      }
+
+      Future<Boolean> writer = FrameReader.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+              return writeMessages();
+          }
+      });
+
+      try {
+          receiveClientMessage();
+
+          boolean sent;
+          try {
+              sent = writer.get(MESSAGES_DEADLINE, TimeUnit.MILLISECONDS);
+          } catch (ExecutionException e) {
+              log.error("Exception while writing messages: ", e.getCause());
+              sent = false;
+          } catch (TimeoutException e) {
+              log.error("Writing messages did not complete within " + MESSAGES_DEADLINE + " ms");
+              sent = false;
+          }
+          if (!sent) {
+              setExchangeStatus(mMessagesReceived.isEmpty() ? Status.ERROR : Status.ERROR_RECOVERABLE);
+              setErrorMessage("Length/value write of client message failed.");
+              throw new IOException("Length/value write of client message failed, but exception is hidden (see Exchange.java)");
+          }
+      } finally {
+          //a writer still running once the exchange is over, failed or timed out is stopped so it
+          // never holds a pooled thread, a no-op once it completed
+          writer.cancel(true);
+      }
+  }
+
+  /**
+   * Offer digests of the messages about to be sent and answer the offer of the remote party
+   * with the offered messages already held, so writeMessages only sends the ones lacked. At
+   * most OFFER_FACTOR times the exchange limit are offered, and fewer than
+   * MessageOffer.MIN_OFFERED candidates are sent without being offered. Skipped unless both
+   * parties advertised CAPABILITY_RECONCILE.
+   */
+  private void reconcile() throws IOException {
+      if(!reconcile || (mRemoteClientMessage.capabilities & ClientMessage.CAPABILITY_RECONCILE) == 0) return;
+
+      int limit = getExchangeLimit();
+      int offerLimit = limit >= 0 ? limit * OFFER_FACTOR : -1;
+      MessageStore store = MessageStore.getInstance(mContext);
+      reconciledSequence = store.getSequence();
+      List<String> candidates = store.getExchangeCandidates(commonFriends, offerLimit,
+              store.getPeerWatermark(peerAddress));
+      List<String> offered = candidates.size() < MessageOffer.MIN_OFFERED
+              ? Collections.<String>emptyList() : candidates;
+
+      log.debug("offering " + offered.size() + " of " + candidates.size() + " candidate messages");
+      if(!writeFrame(MessageOffer.encodeOffer(offered))){
+          setExchangeStatus(Status.ERROR);
+          setErrorMessage("Length/value write of message offer failed.");
+          throw new IOException("Length/value write of message offer failed, but exception is hidden (see Exchange.java)");
+      }
+
+      byte[] frame = readFrame();
+      if(frame == null){
+          setExchangeStatus(Status.ERROR);
+          setErrorMessage("Remote message offer was not received.");
+          throw new IOException("Remote message offer not received.");
+      }
+      List<ByteString> remoteOffer;
+      try {
+          remoteOffer = MessageOffer.decodeOffer(frame);
+      } catch (IOException e) {
+          setExchangeStatus(Status.ERROR);
+          setErrorMessage("Remote message offer was malformed.");
+          throw e;
+      }
+
+      if(!writeFrame(MessageOffer.encodeHeld(findHeld(remoteOffer)))){
+          setExchangeStatus(Status.ERROR);
+          setErrorMessage("Length/value write of held messages failed.");
+          throw new IOException("Length/value write of held messages failed, but exception is hidden (see Exchange.java)");
+      }
+
+      frame = readFrame();
+      if(frame == null){
+          setExchangeStatus(Status.ERROR);
+          setErrorMessage("Remote held messages were not received.");
+          throw new IOException("Remote held messages not received.");
+      }
+      boolean[] held;
+      try {
+          held = MessageOffer.decodeHeld(frame, offered.size());
+      } catch (IOException e) {
+          setExchangeStatus(Status.ERROR);
+          setErrorMessage("Remote held messages were malformed.");
+          throw e;
+      }
+
+      wantedHashes = new ArrayList<>();
+      int lacked = 0;
+      for(int i = 0; i < candidates.size(); i++){
+          if(i < offered.size() && held[i]) continue;
+          lacked++;
+          if(limit < 0 || wantedHashes.size() < limit) wantedHashes.add(candidates.get(i));
+      }
+      //older changes past the offered ones, or lacked ones past the limit, are sent next time
+      candidatesTruncated = (offerLimit >= 0 && candidates.size() >= offerLimit) || wantedHashes.size() < lacked;
+      log.debug("remote party lacks " + lacked + " of the offered messages");
+  }
+
+  /**
+   * Return which of the messages offered by the remote party are already held.
+   */
+  boolean[] findHeld(List<ByteString> offered) {
+      return MessageStore.getInstance(mContext).getHeldMessages(offered);
+  }
+
+  /**
+   * Set whether the messages to be sent are offered first so that messages the remote party
+   * already holds are not sent, on by default. Must be called before the exchange is run.
+   */
+  public void setReconcile(boolean reconcile) {
+      this.reconcile = reconcile;
+  }
+
+  /**
+   * Set whether messages are sent and received at the same time, on by default. Must be called
+   * before the exchange is run.
+   */
+  public void setFullDuplex(boolean fullDuplex) {
+      this.fullDuplex = fullDuplex;
+  }
+
+  /**
+   * Write a single frame holding the supplied encoded messages.
+   */
+  private boolean sendBatch(List<byte[]> batch) {
+      log.debug("sending " + batch.size() + " messages");
+      return writeFrame(codecVersion > 0 ? WireCodec.frameMessages(batch) : ClientMessage.toJSONFrame(batch));
+  }
+
+  /**
+   * Set the limits advertised to the remote party for packing several messages into a frame,
+   * the smaller limits of both parties are used. Must be called before the exchange is run.
+   *
+   * @param maxMessages maximum number of messages in a frame, 1 to send each in its own frame
+   * @param maxBytes size in bytes after which a frame is closed
+   */
+  public void setBatchLimits(int maxMessages, int maxBytes) {
+      maxBatchMessages = Math.max(1, maxMessages);
+      maxBatchBytes = Math.max(1, maxBytes);
   }
 
   /**
@@ -257,12 +550,14 @@ public class CryptographicExchange extends Exchange {
       //the first message received is a hint, telling the us how many messages will be sent
       int messageCount = 0;
 
-      JSONObject exchangeInfo = lengthValueRead(in);
+      byte[] exchangeInfo = readFrame();
 
       if(exchangeInfo != null){
           try {
-              log.debug("peer wish to send us:"+exchangeInfo.getInt(MESSAGE_COUNT_KEY)+" messages");
-              messageCount = Math.min(SecurityManager.getCurrentProfile(mContext).getMaxMessages(), exchangeInfo.getInt(MESSAGE_COUNT_KEY));
+              int count = WireCodec.isBinary(exchangeInfo) ? WireCodec.decodeCount(exchangeInfo)
+                      : parseJSON(exchangeInfo).getInt(MESSAGE_COUNT_KEY);
+              log.debug("peer wish to send us:"+count+" messages");
+              messageCount = Math.min(SecurityManager.getCurrentProfile(mContext).getMaxMessages(), count);
               log.debug("we accept receiving only:"+messageCount+" message");
           } catch (Exception e){}
       }
@@ -270,74 +565,93 @@ public class CryptographicExchange extends Exchange {
       //if recipient list is not instantiated yet create it
       if(mMessagesReceived == null) mMessagesReceived = new ArrayList<>();
 
-      //Define the get single message task
-      class ReceiveSingleMessage implements Callable<ClientMessage> {
+      //frames are read and decoded on a pooled reader thread until all the expected messages
+      // arrived, a frame holds a single message unless batching was agreed
+      final int expected = messageCount;
+      FrameReader<List<MurmurMessage>> reader = new FrameReader<>(new FrameReader.Source<List<MurmurMessage>>() {
+          private int remaining = expected;
 
           @Override
-          public ClientMessage call() throws Exception {
-              log.debug("receiving message");
-              ClientMessage mCurrentReceived;
+          public List<MurmurMessage> next() throws Exception {
+              if (remaining <= 0) return null;
+              List<MurmurMessage> messages = receiveMessagesFrame();
+              remaining -= messages.size();
+              return messages;
+          }
+      }, RECEIVE_QUEUE_FRAMES);
+      reader.start();
 
-              mCurrentReceived = ClientMessage.fromJSON(lengthValueRead(in));
+      //read from the stream until either times out or get all the messages
+      long deadline = System.currentTimeMillis() + MESSAGES_DEADLINE;
+      try {
+          List<MurmurMessage> messages;
+          while ((messages = reader.take(EXCHANGE_TIMEOUT, deadline)) != null) {
+              //Add everything passed in the frame to the pool
+              mMessagesReceived.addAll(messages);
+          }
+      } catch (ExecutionException ex){
+          ex.printStackTrace();
+          if (mMessagesReceived.isEmpty()) {
+              setExchangeStatus(Status.ERROR);
+          } else {
+              setExchangeStatus(Status.ERROR_RECOVERABLE);
+          }
+          setErrorMessage(ex.getMessage());
+          throw new IOException(ex.getMessage());
+      } catch (InterruptedException | TimeoutException e) {
+          e.printStackTrace();
+          if (mMessagesReceived.isEmpty()) {
+              setExchangeStatus(Status.ERROR);
+          } else {
+              setExchangeStatus(Status.ERROR_RECOVERABLE);
+          }
+          setErrorMessage("Message receiving timed out");
+          throw new IOException ("Message receiving timed out");
+      } finally {
+          reader.close();
+      }
+      log.debug("done receiving messages");
+  }
 
-              if (mCurrentReceived == null) {
-                  throw new Exception("Remote client message not received.");
-              }
+  /**
+   * Read a single frame of messages sent by the remote party, in either codec.
+   *
+   * @return The messages held by the frame.
+   */
+  private List<MurmurMessage> receiveMessagesFrame() throws Exception {
+      log.debug("receiving message");
+      byte[] frame = readFrame();
 
-              if (mCurrentReceived.messages == null) {
-                  throw new Exception("Remote client messages field was null");
-              }
+      if (frame == null) {
+          throw new Exception("Remote client message not received.");
+      }
+
+      if (WireCodec.isBinary(frame)) {
+          List<MurmurMessage> messages = WireCodec.decodeMessages(mContext, frame);
+          log.debug("message received");
+          return messages;
+      }
 
-              log.debug("message received");
+      JSONObject json = parseJSON(frame);
+      ClientMessage mCurrentReceived = json != null ? ClientMessage.fromJSON(json) : null;
 
-              return mCurrentReceived;
-          }
+      if (mCurrentReceived == null) {
+          throw new Exception("Remote client message not received.");
       }
 
-      //read from the stream until either times out or get all the messages
-      ExecutorService executor = Executors.newSingleThreadExecutor();
-      while(mMessagesReceived.size() < messageCount) {
-          log.debug("received message list not yet full, attempting to get messages...");
-          Future<ClientMessage> task = executor.submit(new ReceiveSingleMessage());
-          try {
-              log.debug("requesting results from receive message task");
-              mRemoteClientMessage = task.get(EXCHANGE_TIMEOUT, TimeUnit.MILLISECONDS);
-              log.debug("got results from receive message task");
-              //Add everything passed in the wrapper to the pool
-              for(JSONObject message : mRemoteClientMessage.messages) {
-                  log.debug("unwrapping message");
-                  mMessagesReceived.add(MurmurMessage.fromJSON(mContext, message));
-                  log.debug("message unwrapped");
-              }
-          } catch (ExecutionException ex){
-              ex.printStackTrace();
-              executor.shutdown();
-              if (mMessagesReceived.isEmpty()) {
-                  setExchangeStatus(Status.ERROR);
-              } else {
-                  setExchangeStatus(Status.ERROR_RECOVERABLE);
-              }
-              task.cancel(true);
-              setErrorMessage(ex.getMessage());
-              throw new IOException(ex.getMessage());
-          } catch (InterruptedException | TimeoutException e) {
-              e.printStackTrace();
-              executor.shutdown();
-              if (mMessagesReceived.isEmpty()) {
-                  setExchangeStatus(Status.ERROR);
-              } else {
-                  setExchangeStatus(Status.ERROR_RECOVERABLE);
-              }
-              task.cancel(true);
-              setErrorMessage("Message receiving timed out");
-              throw new IOException ("Message receiving timed out");
-          }
+      if (mCurrentReceived.messages == null) {
+          throw new Exception("Remote client messages field was null");
       }
-      executor.shutdown();
-      log.debug("done receiving messages");
-      if (mRemoteClientMessage == null) {
-          throw new IOException("Remote client message was null in sendServerMessage.");
+
+      log.debug("message received");
+
+      List<MurmurMessage> messages = new ArrayList<>(mCurrentReceived.messages.size());
+      for(JSONObject message : mCurrentReceived.messages) {
+          log.debug("unwrapping message");
+          messages.add(MurmurMessage.fromJSON(mContext, message));
+          log.debug("message unwrapped");
       }
+      return messages;
   }
 
   /**
@@ -373,7 +687,7 @@ public class CryptographicExchange extends Exchange {
     ServerMessage sm = new ServerMessage(doubleBlindedStrings,hashedBlindedStrings);
 
     // Write out the ServerMessage.
-    boolean success = lengthValueWrite(out, sm.toJson());
+    boolean success = codecVersion > 0 ? writeFrame(sm.toBinary()) : writeFrame(sm.toJson());
     if (!success) {
       setExchangeStatus(Status.ERROR);
       setErrorMessage("Length/value write of server message failed.");
@@ -389,7 +703,13 @@ public class CryptographicExchange extends Exchange {
    */
   private void receiveServerMessage() throws IOException {
       log.debug("receiving server message from peer");
-    mRemoteServerMessage = ServerMessage.fromJSON(lengthValueRead(in));
+    byte[] frame = readFrame();
+    if (WireCodec.isBinary(frame)) {
+      mRemoteServerMessage = ServerMessage.fromBinary(frame);
+    } else {
+      JSONObject json = parseJSON(frame);
+      mRemoteServerMessage = json != null ? ServerMessage.fromJSON(json) : null;
+    }
     if (mRemoteServerMessage == null) {
       setExchangeStatus(Status.ERROR);
       setErrorMessage("Remote server message was not received.");
@@ -47,12 +47,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -85,9 +80,23 @@ public class Exchange implements Runnable {
   /** Messages received from remote party. */
   /* package */ List<MurmurMessage> mMessagesReceived;
 
+  /** Store sequence number up to which all the message changes were sent to the remote party,
+   * or -1 if the messages sent were truncated or not sent at all. */
+  /* package */ long sentSequence = -1;
+
   /** Friends received from remote party. */
   private CleartextFriends mFriendsReceived;
 
+  /** Compression of the frames of this exchange, deflated frames are always understood but
+   * only sent when compressFrames is set. */
+  /* package */ final FrameCompression compression = new FrameCompression();
+
+  /** Whether the remote party accepts deflated frames. */
+  /* package */ boolean compressFrames = false;
+
+  /** Bytes carried by the frames written and read through writeFrame and readFrame. */
+  /* package */ final Traffic traffic = new Traffic();
+
   /** Send up to this many messages (top priority) from the message store. */
   public static final int NUM_MESSAGES_TO_EXCHANGE = 100;
 
@@ -125,6 +134,12 @@ public class Exchange implements Runnable {
     /** The number of milliseconds until a single message exchange times out */
     public static final long EXCHANGE_TIMEOUT = 2000;
 
+    /** The number of milliseconds receiving all the messages of an exchange may take */
+    public static final long MESSAGES_DEADLINE = 60 * 1000;
+
+    /** The number of received frames which may wait to be added to the received messages */
+    /* package */ static final int RECEIVE_QUEUE_FRAMES = 16;
+
   /**
    * Size, in bytes, of the maximum size message we'll try to read with lengthValueRead.
    * This is necessary since otherwise a malicious remote party can just provide a huge
@@ -132,6 +147,11 @@ public class Exchange implements Runnable {
    */
   private static final int MAX_MESSAGE_SIZE = 10 * MEGABYTES;
 
+  /**
+   * Bit of the length marking a deflated frame, lengths never reach it because of MAX_MESSAGE_SIZE.
+   */
+  private static final int DEFLATED_FLAG = 0x80000000;
+
   /** Synchronized getter for status. */
   /* package */ synchronized Status getExchangeStatus() {
     return mStatus;
@@ -212,13 +232,35 @@ public class Exchange implements Runnable {
   }
 
   /**
-   * Retrieve at most NUM_MESSAGES_TO_EXCHANGE messages from the message store and
+   * Retrieve at most limit messages from the message store and
    * return them. If no messages, returns a empty list.
    *
-   * @return The top NUM_MESSAGES_TO_EXCHANGE in the MessageStore.
+   * @param limit maximum number of messages to return or -1 for unlimited
+   * @return The top limit messages in the MessageStore.
    */
-  /* package */ List<MurmurMessage> getMessages(int sharedContacts) {
-    return MessageStore.getInstance().getMessagesForExchange(sharedContacts);
+  /* package */ List<MurmurMessage> getMessages(int sharedContacts, int limit) {
+    return MessageStore.getInstance().getMessagesForExchange(sharedContacts, limit);
+  }
+
+  /**
+   * Return a lazily decoding iterator over at most limit messages from the message store, in
+   * the same order as getMessages. The iterator must be closed if not exhausted.
+   *
+   * @param limit maximum number of messages to return or -1 for unlimited
+   */
+  /* package */ MessageIterator iterateMessages(int sharedContacts, int limit) {
+    return iterateMessages(sharedContacts, limit, 0);
+  }
+
+  /**
+   * Return a lazily decoding iterator over at most limit messages from the message store which
+   * changed after the supplied sequence number. The iterator must be closed if not exhausted.
+   *
+   * @param limit maximum number of messages to return or -1 for unlimited
+   * @param afterSequence only messages changed after this store sequence number are returned
+   */
+  /* package */ MessageIterator iterateMessages(int sharedContacts, int limit, long afterSequence) {
+    return MessageStore.getInstance().iterateMessagesForExchange(sharedContacts, limit, afterSequence);
   }
 
   /**
@@ -227,7 +269,7 @@ public class Exchange implements Runnable {
    */
   private void sendMessages() {
       // get messages to send
-      List<MurmurMessage> messages = getMessages(0);
+      List<MurmurMessage> messages = getMessages(0, -1);
       //notify the recipient how many items we expect to send him.
       MurmurMessage exchangeInfoMessage = new MurmurMessage("ExchangeAgreement", Integer.toString(messages.size()),1d);
       if(lengthValueWrite(out, exchangeInfoMessage.toJSON(MurmurApplication.getContext(),0,0))) {
@@ -285,31 +327,33 @@ public class Exchange implements Runnable {
       //if recipient list is not instantiated yet create it
       if(mMessagesReceived == null) mMessagesReceived = new ArrayList<>();
 
-      //Define the get single message task
-      class ReceiveSingleMessage implements Callable<List<MurmurMessage>> {
+      //frames are read on a pooled reader thread until all the expected messages arrived
+      final int expected = messageCount;
+      FrameReader<List<MurmurMessage>> reader = new FrameReader<>(new FrameReader.Source<List<MurmurMessage>>() {
+          private int remaining = expected;
 
           @Override
-          public List<MurmurMessage> call() throws Exception {
-              CleartextMessages mCurrentReceived;
-              mCurrentReceived = CleartextMessages.fromJson(MurmurApplication.getContext(),lengthValueRead(in));
-              return mCurrentReceived.messages;
+          public List<MurmurMessage> next() throws Exception {
+              if (remaining <= 0) return null;
+              List<MurmurMessage> messages = CleartextMessages.fromJson(MurmurApplication.getContext(),lengthValueRead(in)).messages;
+              remaining -= messages.size();
+              return messages;
           }
-      }
+      }, RECEIVE_QUEUE_FRAMES);
+      reader.start();
 
       //read from the stream until either times out or get all the messages
-      ExecutorService executor = Executors.newSingleThreadExecutor();
-      while(mMessagesReceived.size() < messageCount) {
-          Future<List<MurmurMessage>> task = executor.submit(new ReceiveSingleMessage());
-          try {
-              List<MurmurMessage> res = task.get(EXCHANGE_TIMEOUT, TimeUnit.MILLISECONDS);
+      long deadline = System.currentTimeMillis() + MESSAGES_DEADLINE;
+      try {
+          List<MurmurMessage> res;
+          while ((res = reader.take(EXCHANGE_TIMEOUT, deadline)) != null) {
               mMessagesReceived.addAll(res);
-          } catch (InterruptedException |ExecutionException | TimeoutException e) {
-              e.printStackTrace();
-              task.cancel(true);
-              break;
           }
+      } catch (InterruptedException |ExecutionException | TimeoutException e) {
+          e.printStackTrace();
+      } finally {
+          reader.close();
       }
-      executor.shutdown();
   }
 
   /**
@@ -428,11 +472,24 @@ public class Exchange implements Runnable {
    * @return A ByteBuffer containing the encoded bytes of the message and its length.
    */
   /* package */ static ByteBuffer lengthValueEncode(JSONObject m) {
-    byte[] value = m.toString().getBytes();
+    return lengthValueEncode(m.toString().getBytes(WireCodec.UTF8));
+  }
+
+  /**
+   * Encode an already serialized frame, such as one produced by WireCodec, as [length, value].
+   */
+  /* package */ static ByteBuffer lengthValueEncode(byte[] value) {
+    return lengthValueEncode(value, false);
+  }
 
+  /**
+   * Encode a frame as [length, value], marking the length if the value is a frame deflated by
+   * FrameCompression.
+   */
+  /* package */ static ByteBuffer lengthValueEncode(byte[] value, boolean deflated) {
     ByteBuffer encoded = ByteBuffer.allocate(Integer.SIZE/Byte.SIZE + value.length);
     encoded.order(ByteOrder.BIG_ENDIAN);   // Network byte order.
-    encoded.putInt(value.length);
+    encoded.putInt(deflated ? value.length | DEFLATED_FLAG : value.length);
     encoded.put(value);
 
     return encoded;
@@ -450,13 +507,43 @@ public class Exchange implements Runnable {
    * @return True if the write succeeds, false otherwise.
    */
   public static boolean lengthValueWrite(OutputStream outputStream, JSONObject m) {
-    if (outputStream == null || m == null) {
+    if (m == null) {
+      return false;
+    }
+    return lengthValueWrite(outputStream, m.toString().getBytes(WireCodec.UTF8));
+  }
+
+  /**
+   * Send an already serialized frame, encoded as length-value, on the given output stream.
+   *
+   * @param outputStream The output stream to write the frame to.
+   * @param frame The bytes of the frame.
+   * @return True if the write succeeds, false otherwise.
+   */
+  public static boolean lengthValueWrite(OutputStream outputStream, byte[] frame) {
+    return lengthValueWrite(outputStream, frame, null, null);
+  }
+
+  /**
+   * Send an already serialized frame, deflating it first if a compression is supplied and the
+   * frame is large enough to benefit.
+   *
+   * @param compression The compression to deflate the frame with, or null to send it as is.
+   * @param traffic Counters to add the frame to, or null.
+   * @return True if the write succeeds, false otherwise.
+   */
+  /* package */ static boolean lengthValueWrite(OutputStream outputStream, byte[] frame,
+                                                FrameCompression compression, Traffic traffic) {
+    if (outputStream == null || frame == null) {
       return false;
     }
     try {
-      byte[] encodedMessage = Exchange.lengthValueEncode(m).array();
+      byte[] deflated = compression != null ? compression.deflate(frame) : null;
+      byte[] encodedMessage = deflated != null ? Exchange.lengthValueEncode(deflated, true).array()
+              : Exchange.lengthValueEncode(frame).array();
       outputStream.write(encodedMessage);
         outputStream.flush();
+      if (traffic != null) traffic.sent(frame.length, deflated != null ? deflated.length : frame.length);
       return true;
     } catch (IOException e) {
       log.error( "Length/value write failed with exception: " , e);
@@ -472,7 +559,37 @@ public class Exchange implements Runnable {
    * @return The message recovered from the stream, or null if an error occurs.
    */
   public static JSONObject lengthValueRead(InputStream inputStream) {
+    return parseJSON(lengthValueReadBytes(inputStream));
+  }
+
+  /**
+   * Read a single length-value frame from the input stream without interpreting it.
+   *
+   * @param inputStream An input stream to read a frame from
+   * @return The bytes of the frame, or null if an error occurs.
+   */
+  public static byte[] lengthValueReadBytes(InputStream inputStream) {
+    return lengthValueReadBytes(inputStream, null, null);
+  }
+
+  /**
+   * Read a single length-value frame from the input stream, inflating it if it was deflated.
+   *
+   * @param compression The compression to inflate deflated frames with, or null if not expecting any.
+   * @param traffic Counters to add the frame to, or null.
+   * @return The bytes of the frame, or null if an error occurs.
+   */
+  /* package */ static byte[] lengthValueReadBytes(InputStream inputStream,
+                                                   FrameCompression compression, Traffic traffic) {
     int length = popLength(inputStream);
+    boolean deflated = length != -1 && (length & DEFLATED_FLAG) != 0;
+    if (deflated) {
+      length &= ~DEFLATED_FLAG;
+      if (compression == null) {
+        log.error( "Remote party sent a deflated frame which was not negotiated");
+        return null;
+      }
+    }
     if (length < 0) {
       return null;
     } else if (length > MAX_MESSAGE_SIZE) {
@@ -480,23 +597,59 @@ public class Exchange implements Runnable {
       return null;
     }
     byte[] messageBytes = new byte[length];
-    JSONObject recoveredMessage;
-    int readByteCount = 0;
     try {
-      while (readByteCount != length) {
-        readByteCount += inputStream.read(messageBytes, readByteCount, length - readByteCount);
+      readFully(inputStream, messageBytes);
+      if (deflated) {
+        byte[] inflated = compression.inflate(messageBytes, MAX_MESSAGE_SIZE);
+        if (traffic != null) traffic.received(inflated.length, length);
+        return inflated;
       }
-
-      recoveredMessage = new JSONObject(new String(messageBytes));
-
     } catch (IOException e) {
       log.error( "IOException parsing message bytes: " , e);
         return null;
+    }
+      if (traffic != null) traffic.received(length, length);
+      return messageBytes;
+  }
+
+  /**
+   * Send a frame to the remote party, deflated if the remote party accepts it.
+   */
+  /* package */ boolean writeFrame(byte[] frame) {
+    return lengthValueWrite(out, frame, compressFrames ? compression : null, traffic);
+  }
+
+  /**
+   * Send a JSON frame to the remote party, deflated if the remote party accepts it.
+   */
+  /* package */ boolean writeFrame(JSONObject json) {
+    return json != null && writeFrame(json.toString().getBytes(WireCodec.UTF8));
+  }
+
+  /**
+   * Read a frame from the remote party, inflating it if needed.
+   *
+   * @return The bytes of the frame, or null if an error occurs.
+   */
+  /* package */ byte[] readFrame() {
+    return lengthValueReadBytes(in, compression, traffic);
+  }
+
+  /**
+   * Parse a frame read by lengthValueReadBytes as a JSON object.
+   *
+   * @return The parsed object, or null if the frame is missing or is not valid JSON.
+   */
+  public static JSONObject parseJSON(byte[] frame) {
+    if (frame == null) {
+      return null;
+    }
+    try {
+      return new JSONObject(new String(frame, WireCodec.UTF8));
     } catch (JSONException e) {
-        log.error( "IOException parsing message bytes: ", e);
+        log.error( "JSONException parsing message bytes: ", e);
         return null;
     }
-      return recoveredMessage;
   }
 
   /**
@@ -506,7 +659,7 @@ public class Exchange implements Runnable {
   /* package */ static int popLength(InputStream stream) {
     byte[] lengthBytes = new byte[Integer.SIZE/Byte.SIZE];
     try {
-      stream.read(lengthBytes);
+      readFully(stream, lengthBytes);
     } catch (IOException e) {
       log.error( "IOException popping length from input stream: " , e);
       return -1;
@@ -516,6 +669,18 @@ public class Exchange implements Runnable {
     return buffer.getInt();
   }
 
+  /** fill the buffer from the stream, since a single read may return only part of a frame */
+  private static void readFully(InputStream stream, byte[] buffer) throws IOException {
+    int readByteCount = 0;
+    while (readByteCount != buffer.length) {
+      int read = stream.read(buffer, readByteCount, buffer.length - readByteCount);
+      if (read < 0) {
+        throw new IOException("Stream closed after " + readByteCount + " of " + buffer.length + " bytes");
+      }
+      readByteCount += read;
+    }
+  }
+
   /**
    * Given an old priority and the number of friends in common, calculate the
    * value of the new priority of a message.
@@ -556,4 +721,68 @@ public class Exchange implements Runnable {
     public String getPeerAddress(){
         return peerAddress;
     }
+
+    /** return the store sequence number up to which all the message changes were sent to the
+     * remote party, or -1 if it should not be recorded as the peer watermark */
+    public long getSentSequence(){
+        return sentSequence;
+    }
+
+    /** return the bytes carried by the frames of this exchange */
+    public Traffic getTraffic(){
+        return traffic;
+    }
+
+    /**
+     * Bytes carried by the frames of an exchange in each direction, as serialized and as they
+     * crossed the link after compression. The 4 byte length of every frame is counted in both.
+     */
+    public static final class Traffic {
+        private int framesSent;
+        private long bytesSent;
+        private long wireBytesSent;
+        private int framesReceived;
+        private long bytesReceived;
+        private long wireBytesReceived;
+
+        /* package */ synchronized void sent(int frameBytes, int wireBytes){
+            framesSent++;
+            bytesSent += frameBytes + Integer.SIZE/Byte.SIZE;
+            wireBytesSent += wireBytes + Integer.SIZE/Byte.SIZE;
+        }
+
+        /* package */ synchronized void received(int frameBytes, int wireBytes){
+            framesReceived++;
+            bytesReceived += frameBytes + Integer.SIZE/Byte.SIZE;
+            wireBytesReceived += wireBytes + Integer.SIZE/Byte.SIZE;
+        }
+
+        public synchronized int getFrames(){
+            return framesSent + framesReceived;
+        }
+
+        /** return the number of bytes which crossed the link in both directions */
+        public synchronized long getWireBytes(){
+            return wireBytesSent + wireBytesReceived;
+        }
+
+        /** return the number of bytes the frames would have taken without compression */
+        public synchronized long getFrameBytes(){
+            return bytesSent + bytesReceived;
+        }
+
+        /** return the ratio of the frame sizes to the bytes which crossed the link, 1 when
+         * nothing was compressed */
+        public synchronized double getCompressionRatio(){
+            long wire = wireBytesSent + wireBytesReceived;
+            return wire > 0 ? (bytesSent + bytesReceived) / (double) wire : 1;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "sent " + framesSent + " frames " + wireBytesSent + "/" + bytesSent + " bytes, received "
+                    + framesReceived + " frames " + wireBytesReceived + "/" + bytesReceived
+                    + " bytes, compression ratio " + String.format("%.2f", getCompressionRatio());
+        }
+    }
 }
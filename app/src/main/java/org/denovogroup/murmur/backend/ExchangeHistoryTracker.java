@@ -137,6 +137,19 @@ public class ExchangeHistoryTracker {
         }
     }
 
+    /** record the traffic of the last exchange with the supplied peer, if it has history
+     * @param address WifiP2p device address with which interacted
+     * @param traffic the bytes carried by the exchange
+     */
+    public void updateTrafficHistory(String address, Exchange.Traffic traffic){
+        for(ExchangeHistoryItem item : history){
+            if(item.address.equals(address)){
+                item.lastWireBytes = traffic.getWireBytes();
+                item.lastCompressionRatio = traffic.getCompressionRatio();
+            }
+        }
+    }
+
     public ExchangeHistoryItem getHistoryItem(String address){
         for(ExchangeHistoryItem item : history){
             if(item.address.equals(address)){
@@ -173,6 +186,10 @@ public class ExchangeHistoryTracker {
         int attempts;
         /** the last time this peer was picked for exchange */
         long lastPicked;
+        /** Number of bytes which crossed the link in the last exchange*/
+        long lastWireBytes;
+        /** Ratio of the uncompressed to the transferred size of the last exchange*/
+        double lastCompressionRatio = 1;
 
         public String getAddress() {
             return address;
@@ -194,6 +211,14 @@ public class ExchangeHistoryTracker {
             return lastPicked;
         }
 
+        public long getLastWireBytes() {
+            return lastWireBytes;
+        }
+
+        public double getLastCompressionRatio() {
+            return lastCompressionRatio;
+        }
+
         public void updateLastPicked(){
             lastPicked = System.currentTimeMillis();
         }
@@ -0,0 +1,146 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of exchange frames, primed with a preset dictionary of the Murmur field
+ * names so even a frame holding a single short message compresses well.
+ *
+ * Every frame is compressed on its own, a deflated frame holds the length of the original frame
+ * as a 4 byte integer followed by the zlib stream. Both peers must use the exact same dictionary,
+ * so it must never be changed; a new dictionary needs a new capability bit in ClientMessage.
+ */
+public class FrameCompression {
+
+    /** frames smaller than this are sent as they are, deflate overhead outweighs the gain */
+    public static final int MIN_FRAME_SIZE = 64;
+
+    /** common substrings of the JSON frames, the most frequent at the end where they are the
+     * cheapest to refer to */
+    private static final byte[] DICTIONARY = ("{\"dblind\":[\"\"dhash\":[\""
+            + "{\"friends\":[\"accept\":\"codec\":\"batch\":\"batch_bytes\":\"caps\":{\"count\":"
+            + "\"latlang\":\"\"timebound\":\"bigparent\":\"\"parent\":\"\"min_users_p_hop\":0,"
+            + "\"pseudonym\":\"\"trust\":0.\"priority\":0,\"hop\":1,\"text\":\""
+            + "\"],\"friends\":[]}{\"messages\":[{\"messageId\":\"").getBytes(WireCodec.UTF8);
+
+    private final Object deflateLock = new Object();
+    private final Object inflateLock = new Object();
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /**
+     * Compress the supplied frame.
+     *
+     * @return the deflated frame, or null if the frame is too small or would not shrink
+     */
+    public byte[] deflate(byte[] frame) {
+        if (frame.length < MIN_FRAME_SIZE) return null;
+        synchronized (deflateLock) {
+            if (deflater == null) {
+                deflater = new Deflater();
+            } else {
+                deflater.reset();
+            }
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(frame);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length / 2);
+            out.write(frame.length >>> 24);
+            out.write(frame.length >>> 16);
+            out.write(frame.length >>> 8);
+            out.write(frame.length);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= frame.length) return null;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Restore a frame compressed by deflate.
+     *
+     * @param maxSize the largest frame accepted, so a small corrupt frame never causes a huge allocation
+     * @throws IOException if the deflated frame is malformed or too large
+     */
+    public byte[] inflate(byte[] deflated, int maxSize) throws IOException {
+        if (deflated.length < 4) throw new IOException("Truncated deflated frame");
+        int length = ((deflated[0] & 0xFF) << 24) | ((deflated[1] & 0xFF) << 16) | ((deflated[2] & 0xFF) << 8) | (deflated[3] & 0xFF);
+        if (length < 0 || length > maxSize) throw new IOException("Deflated frame claims " + length + " bytes");
+
+        synchronized (inflateLock) {
+            if (inflater == null) {
+                inflater = new Inflater();
+            } else {
+                inflater.reset();
+            }
+            inflater.setInput(deflated, 4, deflated.length - 4);
+            byte[] frame = new byte[length];
+            int inflated = 0;
+            try {
+                while (inflated < length) {
+                    int read = inflater.inflate(frame, inflated, length - inflated);
+                    if (read == 0) {
+                        if (inflater.needsDictionary()) {
+                            inflater.setDictionary(DICTIONARY);
+                        } else if (inflater.finished() || inflater.needsInput()) {
+                            throw new IOException("Deflated frame ended after " + inflated + " of " + length + " bytes");
+                        }
+                    }
+                    inflated += read;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed deflated frame", e);
+            }
+            return frame;
+        }
+    }
+
+    /** release the native memory held by the compressor, it may still be used afterwards */
+    public void end() {
+        synchronized (deflateLock) {
+            if (deflater != null) deflater.end();
+            deflater = null;
+        }
+        synchronized (inflateLock) {
+            if (inflater != null) inflater.end();
+            inflater = null;
+        }
+    }
+}
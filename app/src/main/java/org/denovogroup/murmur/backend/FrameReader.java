@@ -0,0 +1,156 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the frames of a connection in a loop on a thread from a shared pool and hands them
+ * over through a bounded queue, so the exchange can wait for each frame with a deadline without
+ * creating a task or a thread per frame.
+ *
+ * The loop stops once the source has no more frames, when reading fails or when the reader is
+ * closed. A full queue blocks the loop until frames are taken.
+ */
+public class FrameReader<T> implements Runnable {
+
+    /** Reads and decodes the frames, called repeatedly on the reader thread */
+    public interface Source<T> {
+        /** read the next frame, blocking until it arrives
+         * @return the decoded frame, or null if no more frames are expected */
+        T next() throws Exception;
+    }
+
+    /** threads shared by the readers and writers of all connections, kept for a while once idle */
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FrameReader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** queued once the source has no more frames */
+    private static final Object END = new Object();
+
+    /** queued when reading fails, holding the cause */
+    private static final class Failure {
+        final Exception cause;
+
+        Failure(Exception cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final Source<T> source;
+    private final BlockingQueue<Object> queue;
+    private Future<?> loop;
+
+    /**
+     * @param source the source of the frames
+     * @param capacity maximum number of frames read ahead of the consumer
+     */
+    public FrameReader(Source<T> source, int capacity) {
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /** run a task of a connection on the threads shared with the readers, such as the writer of
+     * a full duplex exchange */
+    static <V> Future<V> submit(Callable<V> task) {
+        return pool.submit(task);
+    }
+
+    /** start reading on a pooled thread */
+    public synchronized void start() {
+        if (loop == null) loop = pool.submit(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            T frame;
+            while ((frame = source.next()) != null) {
+                queue.put(frame);
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            //closed by the consumer
+        } catch (Exception e) {
+            try {
+                queue.put(new Failure(e));
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Wait for the next frame.
+     *
+     * @param frameTimeout maximum time in milliseconds to wait for this frame
+     * @param deadline time in milliseconds since the epoch after which no frame is waited for
+     * @return the next frame, or null if the source has no more frames
+     * @throws TimeoutException if no frame arrived in time
+     * @throws ExecutionException if reading or decoding the frame failed
+     */
+    @SuppressWarnings("unchecked")
+    public T take(long frameTimeout, long deadline) throws InterruptedException, TimeoutException, ExecutionException {
+        long wait = Math.min(frameTimeout, deadline - System.currentTimeMillis());
+        Object item = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+        if (item == null) {
+            throw new TimeoutException(wait > 0 ? "No frame received for " + frameTimeout + " ms" : "Exchange deadline passed");
+        } else if (item == END) {
+            //keep the marker for any later call
+            queue.offer(END);
+            return null;
+        } else if (item instanceof Failure) {
+            Exception cause = ((Failure) item).cause;
+            throw new ExecutionException(cause.getMessage(), cause);
+        }
+        return (T) item;
+    }
+
+    /** stop reading, a read blocked on the connection ends once the connection is closed */
+    public synchronized void close() {
+        if (loop != null) loop.cancel(true);
+        queue.clear();
+    }
+}
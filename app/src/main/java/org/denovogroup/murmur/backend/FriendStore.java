@@ -33,6 +33,7 @@ package org.denovogroup.murmur.backend;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Base64;
@@ -71,6 +72,9 @@ public class FriendStore extends SQLiteOpenHelper{
 
     private static FriendStore instance;
 
+    /** compiled versions of the frequently executed statements */
+    private StatementCache statements;
+
     private static final String DATABASE_NAME = "FriendStore.db";
     private static final int DATABASE_VERSION = 2;
     private static final String TABLE = "Friends";
@@ -225,6 +229,7 @@ public class FriendStore extends SQLiteOpenHelper{
     private FriendStore(Context context){
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         instance = this;
+        statements = new StatementCache(this);
     }
 
     /** Create the table for storing friends, only called for first run of the database */
@@ -268,16 +273,16 @@ public class FriendStore extends SQLiteOpenHelper{
         SQLiteDatabase db = getWritableDatabase();
         if(db == null) return false;
 
-        if(getFriendWithKey(key) != null){
+        if(hasFriendWithKey(key)){
             log.error("Contact was already in the store, data not changed");
             return false;
         }
 
         ContentValues values = new ContentValues();
-        values.put(COL_DISPLAY_NAME, Utils.makeTextSafeForSQL(name));
+        values.put(COL_DISPLAY_NAME, name);
         values.put(COL_PUBLIC_KEY, key);
         values.put(COL_ADDED_VIA, via);
-        values.put(COL_NUMBER, Utils.makeTextSafeForSQL(number));
+        values.put(COL_NUMBER, number);
 
         db.insert(TABLE, null, values);
         log.debug( "Friend Added to store");
@@ -313,12 +318,10 @@ public class FriendStore extends SQLiteOpenHelper{
         SQLiteDatabase db = getWritableDatabase();
         if(db == null) return false;
 
-        if(getFriendWithKey(key) == null){
+        if(statements.executeUpdateDelete("DELETE FROM " + TABLE + " WHERE " + COL_PUBLIC_KEY + "=?;", key) == 0){
             log.debug("Friend was not in the store");
             return false;
         }
-
-        db.execSQL("DELETE FROM " + TABLE + " WHERE " + COL_PUBLIC_KEY + " = '" + key + "';");
         return true;
     }
 
@@ -391,15 +394,11 @@ public class FriendStore extends SQLiteOpenHelper{
         }
     }
 
-    private Cursor getFriendWithKey(String key){
+    private boolean hasFriendWithKey(String key){
         SQLiteDatabase db = getWritableDatabase();
-        if(db == null) return null;
-
-        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE + " WHERE " + COL_PUBLIC_KEY + " = '" + key + "';", null);
-
-        if(cursor.getCount() == 0) return null;
+        if(db == null || key == null) return false;
 
-        return cursor;
+        return statements.queryForLong(0, "SELECT COUNT(*) FROM " + TABLE + " WHERE " + COL_PUBLIC_KEY + "=?;", key) > 0;
     }
 
     /** edit a friend entry with specified key
@@ -413,7 +412,7 @@ public class FriendStore extends SQLiteOpenHelper{
         SQLiteDatabase db = getWritableDatabase();
         if(db == null) return false;
 
-        db.execSQL("UPDATE "+TABLE+" SET "+COL_DISPLAY_NAME+"='"+Utils.makeTextSafeForSQL(name)+"',"+COL_NUMBER+"='"+Utils.makeTextSafeForSQL(number)+"' WHERE "+COL_PUBLIC_KEY+"='"+key+"';");
+        statements.executeUpdateDelete("UPDATE "+TABLE+" SET "+COL_DISPLAY_NAME+"=?,"+COL_NUMBER+"=? WHERE "+COL_PUBLIC_KEY+"=?;", name, number, key);
         return true;
     }
 
@@ -426,7 +425,7 @@ public class FriendStore extends SQLiteOpenHelper{
         if(db == null) return;
 
         int checked = isChecked ? TRUE : FALSE;
-        db.execSQL("UPDATE "+TABLE+" SET "+COL_CHECKED+"="+checked+" WHERE "+COL_PUBLIC_KEY+"='"+key+"';");
+        statements.executeUpdateDelete("UPDATE "+TABLE+" SET "+COL_CHECKED+"=? WHERE "+COL_PUBLIC_KEY+"=?;", checked, key);
     }
 
     /** set the checked state for all friends entry */
@@ -463,6 +462,7 @@ public class FriendStore extends SQLiteOpenHelper{
     public void purgeStore(){
         SQLiteDatabase db = getWritableDatabase();
         if (db != null) {
+            statements.clear();
             db.execSQL("DROP TABLE IF EXISTS " + TABLE);
             onCreate(db);
         }
@@ -471,8 +471,7 @@ public class FriendStore extends SQLiteOpenHelper{
     public long getCheckedCount(){
         SQLiteDatabase db = getReadableDatabase();
         if(db != null){
-            Cursor c = db.rawQuery("SELECT * FROM "+TABLE+" WHERE "+COL_CHECKED+"="+TRUE+";", null);
-            if(c != null) return c.getCount();
+            return DatabaseUtils.queryNumEntries(db, TABLE, COL_CHECKED + "=" + TRUE);
         }
         return 0;
     }
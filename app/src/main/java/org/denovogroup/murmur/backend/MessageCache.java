@@ -0,0 +1,211 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.util.LruCache;
+
+import org.denovogroup.murmur.objects.MurmurMessage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A least recently used cache of decoded messages, keyed by message id and bounded by an
+ * estimated memory budget. Only live (not deleted) messages should be cached.
+ *
+ * The cache is versioned with the store version, any change of the version drops all the cached
+ * entries. Each invalidation also bumps a generation counter which readers capture before
+ * querying the database so a value read before a concurrent mutation is never cached after it.
+ * As readers may use other connections than the writer, they do not see a mutation until its
+ * transaction is committed, the invalidations are therefore repeated by commit once it is.
+ */
+public class MessageCache {
+
+    /** default memory budget of the cache in bytes */
+    public static final int DEFAULT_BUDGET = 256 * 1024;
+
+    /** estimated fixed cost of a cached message object and its fields in bytes */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private LruCache<String, MurmurMessage> messages;
+    private Map<String, String> idsByHash = new HashMap<>();
+    private Map<String, String> hashesById = new HashMap<>();
+    private String version;
+    private long generation = 0;
+    /** hashes invalidated since the last commit */
+    private Set<String> uncommitted = new HashSet<>();
+    private boolean uncommittedAll = false;
+    private int hits = 0;
+    private int misses = 0;
+
+    public MessageCache(int budget) {
+        messages = createCache(budget);
+    }
+
+    private LruCache<String, MurmurMessage> createCache(int budget){
+        return new LruCache<String, MurmurMessage>(budget){
+            @Override
+            protected int sizeOf(String key, MurmurMessage value) {
+                return estimateSize(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, MurmurMessage oldValue, MurmurMessage newValue) {
+                if(newValue == null) {
+                    String hash = hashesById.remove(key);
+                    if (hash != null) idsByHash.remove(hash);
+                }
+            }
+        };
+    }
+
+    private static int estimateSize(MurmurMessage message){
+        int chars = length(message.messageid) + length(message.text) + length(message.pseudonym)
+                + length(message.latlong) + length(message.parent) + length(message.bigparent);
+        return ENTRY_OVERHEAD + 2 * chars;
+    }
+
+    private static int length(String value){
+        return value != null ? value.length() : 0;
+    }
+
+    /** drop all entries if the store version changed since they were cached */
+    private void checkVersion(String storeVersion){
+        if(version == null || !version.equals(storeVersion)){
+            dropAll();
+            version = storeVersion;
+        }
+    }
+
+    /** return the cached message with the supplied id or null if it is not cached */
+    public synchronized MurmurMessage get(String messageId, String storeVersion){
+        checkVersion(storeVersion);
+        MurmurMessage message = messageId != null ? messages.get(messageId) : null;
+        if(message != null){
+            hits++;
+        } else {
+            misses++;
+        }
+        return message;
+    }
+
+    /** return the cached message with the supplied content hash or null if it is not cached */
+    public synchronized MurmurMessage getByHash(String hash, String storeVersion){
+        String messageId = hash != null ? idsByHash.get(hash) : null;
+        return get(messageId, storeVersion);
+    }
+
+    /** return the current generation, to be read before querying the database for a value
+     * which is then cached with put */
+    public synchronized long getGeneration(){
+        return generation;
+    }
+
+    /** cache the supplied message unless the cache was invalidated since the supplied generation
+     * @param message the message to cache
+     * @param hash the content hash of the message as stored in the MessageStore
+     * @param generation the generation read before the message was queried
+     * @param storeVersion the current store version
+     */
+    public synchronized void put(MurmurMessage message, String hash, long generation, String storeVersion){
+        checkVersion(storeVersion);
+        if(message == null || message.messageid == null || generation != this.generation) return;
+
+        messages.put(message.messageid, message);
+        // the entry may have been rejected as larger than the whole budget
+        if(messages.get(message.messageid) != null) {
+            hashesById.put(message.messageid, hash);
+            idsByHash.put(hash, message.messageid);
+        }
+    }
+
+    /** drop the message with the supplied content hash */
+    public synchronized void invalidate(String hash){
+        uncommitted.add(hash);
+        drop(hash);
+    }
+
+    private void drop(String hash){
+        generation++;
+        String messageId = idsByHash.get(hash);
+        if(messageId != null) messages.remove(messageId);
+    }
+
+    /** drop all the cached messages */
+    public synchronized void invalidateAll(){
+        uncommittedAll = true;
+        dropAll();
+    }
+
+    private void dropAll(){
+        generation++;
+        messages.evictAll();
+        idsByHash.clear();
+        hashesById.clear();
+    }
+
+    /** repeat the invalidations made since the last call, to be called once the mutations which
+     * caused them are committed. Drops the values cached by readers in the meantime, which may
+     * have been read before the commit.
+     */
+    public synchronized void commit(){
+        if(uncommittedAll){
+            dropAll();
+        } else {
+            for(String hash : uncommitted){
+                drop(hash);
+            }
+        }
+        uncommitted.clear();
+        uncommittedAll = false;
+    }
+
+    /** change the memory budget of the cache in bytes, this drops all the cached entries */
+    public synchronized void setBudget(int budget){
+        invalidateAll();
+        messages = createCache(budget);
+    }
+
+    public synchronized int getHitCount(){
+        return hits;
+    }
+
+    public synchronized int getMissCount(){
+        return misses;
+    }
+
+    /** return the estimated memory used by the cached entries in bytes */
+    public synchronized int getSize(){
+        return messages.size();
+    }
+}
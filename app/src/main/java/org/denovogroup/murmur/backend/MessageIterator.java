@@ -0,0 +1,148 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.database.Cursor;
+
+import org.denovogroup.murmur.objects.MurmurMessage;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily decodes the rows of a MessageStore cursor into messages, one row per call to next().
+ * The cursor is closed once the last row was returned, callers stopping early must call close().
+ *
+ * The iterator can be used only once, iterator() returns the iterator itself so it can be
+ * used in a for-each loop.
+ */
+public class MessageIterator implements Iterator<MurmurMessage>, Iterable<MurmurMessage>, Closeable {
+
+    private Cursor cursor;
+
+    private int messageIdColIndex;
+    private int trustColIndex;
+    private int priorityColIndex;
+    private int messageColIndex;
+    private int pseudonymColIndex;
+    private int timestampColIndex;
+    private int latlongColIndex;
+    private int timeboundColIndex;
+    private int parentColIndex;
+    private int bigparentColIndex;
+    private int hopColIndex;
+    private int hopContactsColIndex;
+
+    /** whether the cursor is on a row which was not returned yet, see hasNext */
+    private boolean pending = false;
+
+    /**
+     * @param cursor a cursor over rows of the messages table, or null for an empty iterator.
+     *               Iteration starts from the first row regardless of the cursor position.
+     */
+    public MessageIterator(Cursor cursor) {
+        this.cursor = cursor;
+        if(cursor == null) return;
+
+        messageIdColIndex = cursor.getColumnIndex(MessageStore.COL_MESSAGE_ID);
+        trustColIndex = cursor.getColumnIndex(MessageStore.COL_TRUST);
+        priorityColIndex = cursor.getColumnIndex(MessageStore.COL_LIKES);
+        messageColIndex = cursor.getColumnIndex(MessageStore.COL_MESSAGE);
+        pseudonymColIndex = cursor.getColumnIndex(MessageStore.COL_PSEUDONYM);
+        timestampColIndex = cursor.getColumnIndex(MessageStore.COL_TIMESTAMP);
+        latlongColIndex = cursor.getColumnIndex(MessageStore.COL_LATLONG);
+        timeboundColIndex = cursor.getColumnIndex(MessageStore.COL_EXPIRE);
+        parentColIndex = cursor.getColumnIndex(MessageStore.COL_PARENT);
+        bigparentColIndex = cursor.getColumnIndex(MessageStore.COL_BIGPARENT);
+        hopColIndex = cursor.getColumnIndex(MessageStore.COL_HOP);
+        hopContactsColIndex = cursor.getColumnIndex(MessageStore.COL_MIN_CONTACTS_FOR_HOP);
+
+        //a fresh cursor is already before its first row, moving it would count the whole result
+        if(cursor.getPosition() != -1) cursor.moveToPosition(-1);
+    }
+
+    /** return the total number of messages this iterator covers, including those already returned.
+     * Reads the whole result, unlike iterating */
+    public int getCount(){
+        return cursor != null && !cursor.isClosed() ? cursor.getCount() : 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(cursor == null || cursor.isClosed()) return false;
+
+        //look one row ahead rather than compare with getCount, which reads the whole result
+        if(pending || cursor.moveToNext()) {
+            pending = true;
+            return true;
+        }
+
+        close();
+        return false;
+    }
+
+    @Override
+    public MurmurMessage next() {
+        if(!hasNext()) throw new NoSuchElementException();
+
+        pending = false;
+        return new MurmurMessage(
+                cursor.getString(messageIdColIndex),
+                cursor.getString(messageColIndex),
+                cursor.getDouble(trustColIndex),
+                cursor.getInt(priorityColIndex),
+                cursor.getString(pseudonymColIndex),
+                cursor.getLong(timestampColIndex),
+                cursor.getString(latlongColIndex),
+                cursor.getLong(timeboundColIndex),
+                cursor.getString(parentColIndex),
+                cursor.getInt(hopColIndex),
+                cursor.getString(bigparentColIndex),
+                cursor.getInt(hopContactsColIndex)
+        );
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Messages cannot be removed through an iterator");
+    }
+
+    @Override
+    public Iterator<MurmurMessage> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if(cursor != null && !cursor.isClosed()) cursor.close();
+    }
+}
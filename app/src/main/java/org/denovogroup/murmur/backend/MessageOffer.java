@@ -0,0 +1,121 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.util.Base64;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.ByteString;
+
+/**
+ * Frames of the reconciliation step of an exchange. Each side offers short digests of the
+ * hashes (see MessageStore.hashOf) of the messages it is about to send, the other side answers
+ * with a bitmap of the offered messages it already holds and those are kept off the wire.
+ *
+ * Only what could actually be sent is offered and each digest is looked up on the hash
+ * indexes, so the cost grows with the candidates of the exchange rather than with the size of
+ * the stores. A digest is the first DIGEST_BYTES of the hash, exactly the first DIGEST_CHARS
+ * base64 characters of the stored hash, wrongly matching a message the peer holds with a
+ * chance of about one in 2^48 per message stored on the other side.
+ */
+public final class MessageOffer {
+
+    /** bytes of the message hash sent for each offered message */
+    public static final int DIGEST_BYTES = 6;
+
+    /** fewer candidates are sent without being offered, the round trip would not pay off */
+    public static final int MIN_OFFERED = 8;
+
+    /** base64 characters of a hash encoding its digest */
+    public static final int DIGEST_CHARS = DIGEST_BYTES / 3 * 4;
+
+    private MessageOffer(){}
+
+    /** return the digest identifying the message with the supplied hash in an offer */
+    public static ByteString digestOf(String hash) {
+        return ByteString.of(Base64.decode(hash.substring(0, DIGEST_CHARS), Base64.NO_WRAP));
+    }
+
+    /** return the leading characters of the hashes of the messages with the supplied digest */
+    public static String prefixOf(ByteString digest) {
+        return Base64.encodeToString(digest.toByteArray(), Base64.NO_WRAP);
+    }
+
+    /** encode the offer of the messages with the supplied hashes */
+    public static byte[] encodeOffer(List<String> hashes) {
+        List<ByteString> digests = new ArrayList<>(hashes.size());
+        for (String hash : hashes) {
+            digests.add(digestOf(hash));
+        }
+        WireCodec.Writer writer = new WireCodec.Writer();
+        writer.writeElements(digests);
+        return writer.toByteArray();
+    }
+
+    /** decode the digests offered by the peer */
+    public static List<ByteString> decodeOffer(byte[] frame) throws IOException {
+        List<ByteString> digests = new WireCodec.Reader(frame).readElements();
+        for (ByteString digest : digests) {
+            if (digest.size() != DIGEST_BYTES) throw new IOException("Malformed message offer");
+        }
+        return digests;
+    }
+
+    /** encode the answer to an offer, whether each of the offered messages is already held */
+    public static byte[] encodeHeld(boolean[] held) {
+        byte[] bits = new byte[(held.length + 7) / 8];
+        for (int i = 0; i < held.length; i++) {
+            if (held[i]) bits[i >>> 3] |= 1 << (i & 7);
+        }
+        WireCodec.Writer writer = new WireCodec.Writer();
+        writer.writeVarint(held.length);
+        writer.writeBytes(bits);
+        return writer.toByteArray();
+    }
+
+    /** decode the answer of the peer to an offer of the supplied number of messages */
+    public static boolean[] decodeHeld(byte[] frame, int offered) throws IOException {
+        WireCodec.Reader reader = new WireCodec.Reader(frame);
+        long count = reader.readVarint();
+        byte[] bits = reader.readBytes();
+        if (count != offered || bits.length != (offered + 7) / 8) {
+            throw new IOException("Answer does not match the message offer");
+        }
+        boolean[] held = new boolean[offered];
+        for (int i = 0; i < offered; i++) {
+            held[i] = (bits[i >>> 3] & (1 << (i & 7))) != 0;
+        }
+        return held;
+    }
+}
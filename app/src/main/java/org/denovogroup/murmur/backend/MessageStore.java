@@ -35,18 +35,37 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Base64;
 
 import org.apache.log4j.Logger;
 import org.denovogroup.murmur.objects.MurmurMessage;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import okio.ByteString;
+
 /**
  * Storage for Murmur messages that uses StorageBase underneath. If
  * instantiated as such, automatically encrypts and decrypts data before storing
@@ -59,6 +78,22 @@ public class MessageStore extends SQLiteOpenHelper {
     private static String storeVersion;
 
     private static MessageStore instance;
+
+    /** compiled versions of the frequently executed statements */
+    private StatementCache statements;
+
+    /** decoded live messages, invalidated by every path changing their stored values */
+    private MessageCache cache = new MessageCache(MessageCache.DEFAULT_BUDGET);
+
+    /** the single thread executing all the mutations of the store */
+    private MessageWriter writer;
+
+    /** posts the completion callbacks of mutations submitted without waiting */
+    private final Handler mainThread = new Handler(Looper.getMainLooper());
+
+    /** message counters as of the last commit, null until first read */
+    private volatile MessageCounts counts;
+    private final List<CountsListener> countsListeners = new CopyOnWriteArrayList<>();
     private static final String TAG = "MessageStore";
     private static final Logger log = Logger.getLogger(TAG);
     //readable true/false operators since SQLite does not support boolean values
@@ -72,12 +107,13 @@ public class MessageStore extends SQLiteOpenHelper {
     private static final double DEFAULT_PRIORITY = 0;
 
     private static final String DATABASE_NAME = "MessageStore.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 15;
 
     private static final String TABLE = "Messages";
     public static final String COL_ROWID = "_id";
     public static final String COL_MESSAGE_ID = "messageId";
     public static final String COL_MESSAGE = "Message";
+    public static final String COL_HASH = "hash";
     public static final String COL_TRUST = "Connection_score";
     public static final String COL_LIKES = "Endorsements";
     public static final String COL_LIKED = "Endorsed";
@@ -94,10 +130,203 @@ public class MessageStore extends SQLiteOpenHelper {
     public static final String COL_EXCHANGE = "exchange";
     public static final String COL_MIN_CONTACTS_FOR_HOP = "Restricted";
     public static final String COL_HOP = "hop";
+    /** whether the message shows as a top level item, i.e. it is not a reply or none of its
+     * ancestors are available in the store. Maintained by triggers. */
+    private static final String COL_ROOT = "root";
+    /** number of live replies in the message's thread. Maintained by triggers. */
+    public static final String COL_REPLY_COUNT = "reply_count";
+    /** time the message was marked as deleted. Maintained by triggers. */
+    private static final String COL_DELETED_AT = "deleted_at";
+    /** sequence number of the last change of the message relevant to exchanges, i.e. its insertion
+     * or a change of its trust, likes or deleted state. Maintained by triggers. */
+    private static final String COL_SEQUENCE = "seq";
+    /** materialized path of the message in its thread, the ids of its known ancestors and its own,
+     * each preceded by PATH_SEPARATOR and the last followed by it. A message whose parent is not in
+     * the store starts with its parent's id and is re-rooted once the parent arrives. Maintained
+     * by triggers. */
+    private static final String COL_PATH = "path";
+    /** time the message self destructs, or null if it does not. Maintained by triggers. */
+    private static final String COL_EXPIRES_AT = "expires_at";
+    /** separates the ids in a path, not a base64 character so it is never part of a valid id.
+     * Messages whose ids contain it or PATH_END are refused, see isValidMessageId */
+    private static final String PATH_SEPARATOR = "|";
+    /** the character following PATH_SEPARATOR, bounding the paths of a subtree */
+    private static final String PATH_END = "}";
+    /** condition selecting the descendants of a message, bound to its path and to subtreeEnd of it */
+    private static final String SUBTREE_CONDITION = COL_PATH + ">? AND " + COL_PATH + "<?";
+
+    /** full text index over the message text, kept in sync with the messages table by triggers */
+    private static final String TABLE_FTS = TABLE + "_fts";
+    private static final String COL_FTS_DOCID = "docid";
+    /** number of search term hits in a message, returned by text search queries */
+    public static final String COL_RELEVANCE = "relevance";
+    /** count the hits of a full text match, offsets() returns 4 space separated integers per hit */
+    private static final String RELEVANCE_EXPRESSION = "(length(offsets(" + TABLE_FTS + "))-length(replace(offsets(" + TABLE_FTS + "),' ',''))+1)/4";
+
+    private static final String TABLE_COUNTERS = "Counters";
+    private static final String COL_COUNTER_NAME = "name";
+    private static final String COL_COUNTER_VALUE = "value";
+    /** number of messages in the store which are not marked as deleted */
+    private static final String COUNTER_LIVE = "live";
+    /** number of messages in the store, including the ones marked as deleted */
+    private static final String COUNTER_TOTAL = "total";
+    /** number of messages in the store which are not replies to another message in the store */
+    private static final String COUNTER_ROOTS = "roots";
+    /** number of root messages which are not marked as deleted, the size of the feed */
+    private static final String COUNTER_LIVE_ROOTS = "live_roots";
+    /** number of messages not read yet */
+    private static final String COUNTER_UNREAD = "unread";
+    /** number of root messages marked as favorite which are not marked as deleted */
+    private static final String COUNTER_FAVORITES = "favorites";
+
+    /** the counters maintained by triggers and the condition for a message to be counted in
+     * each, as a format taking the name of the row (table name, NEW or OLD) */
+    private static final String[][] MESSAGE_COUNTERS = new String[][]{
+            {COUNTER_TOTAL, "1"},
+            {COUNTER_LIVE, "%1$s." + COL_DELETED + "=" + FALSE},
+            {COUNTER_ROOTS, "%1$s." + COL_ROOT + "=" + TRUE},
+            {COUNTER_LIVE_ROOTS, "%1$s." + COL_ROOT + "=" + TRUE + " AND %1$s." + COL_DELETED + "=" + FALSE},
+            {COUNTER_UNREAD, "%1$s." + COL_READ + "=" + FALSE},
+            {COUNTER_FAVORITES, "%1$s." + COL_FAVIRITE + "=" + TRUE + " AND %1$s." + COL_ROOT + "=" + TRUE + " AND %1$s." + COL_DELETED + "=" + FALSE}
+    };
+
+    /** last sequence number assigned to a message change */
+    private static final String COUNTER_SEQUENCE = "seq";
+
+    /** per peer sequence number up to which all the changes were sent to the peer */
+    private static final String TABLE_WATERMARKS = "Watermarks";
+    private static final String COL_WATERMARK_ADDRESS = "address";
+    private static final String COL_WATERMARK_SEQUENCE = "seq";
+    private static final String COL_WATERMARK_TIME = "time";
+
+    /** how long a peer watermark is used before sending the peer the whole candidate pool again,
+     * in case it lost messages or the filters of the candidates changed since */
+    public static final long WATERMARK_EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    /** hashes of the removed messages purged from the messages table, which should not be
+     * received again */
+    private static final String TABLE_TOMBSTONES = "Tombstones";
+
+    /** how long removed messages are kept in the messages table before being purged by
+     * compactTombstones, leaving only their hash */
+    public static final long TOMBSTONE_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+    /** inverted index of the hashtags of the live messages, filled when a message is added */
+    private static final String TABLE_HASHTAGS = "Hashtags";
+    private static final String COL_HASHTAG_TAG = "tag";
+    private static final String COL_HASHTAG_MESSAGE = "message";
+    /** start of the HASHTAG_BUCKET long period in which the message was added */
+    private static final String COL_HASHTAG_BUCKET = "bucket";
+
+    /** number of messages added in each trending window per hashtag, maintained by triggers */
+    private static final String TABLE_HASHTAG_COUNTS = "HashtagCounts";
+    private static final String COL_HASHTAG_COUNT_WINDOW = "span";
+    private static final String COL_HASHTAG_COUNT = "count";
+
+    /** the trending windows and the first bucket each of them currently covers */
+    private static final String TABLE_HASHTAG_WINDOWS = "HashtagWindows";
+    private static final String COL_HASHTAG_WINDOW_CUTOFF = "cutoff";
+
+    /** granularity in which trending windows slide, in milliseconds */
+    public static final long HASHTAG_BUCKET = TimeUnit.HOURS.toMillis(1);
+    /** trending window covering the last day */
+    public static final long TRENDING_DAY = TimeUnit.DAYS.toMillis(1);
+    /** trending window covering the last week */
+    public static final long TRENDING_WEEK = TimeUnit.DAYS.toMillis(7);
+    private static final long[] TRENDING_WINDOWS = new long[]{TRENDING_DAY, TRENDING_WEEK};
+
+    /** value of the auto_vacuum pragma allowing free pages to be released by incremental_vacuum */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** set by the upgrade to version 15, switching the vacuum mode once the database is open */
+    private boolean enableIncrementalVacuum = false;
 
     private static final String[] defaultSort = new String[]{COL_DELETED,COL_READ};
 
     private String sortOption;
+    /** the sort columns of sortOption, without the ORDER BY clause */
+    private String sortOrder;
+    /** the columns of sortOption in order, always ending with the row id, used as page keys */
+    private String[] sortColumns;
+    /** sort direction of each of the sortColumns */
+    private boolean[] sortDescending;
+
+    /** The order in which messages are removed when the feed size limit is exceeded */
+    public enum EvictionPolicy {
+        OLDEST(COL_ROWID + " ASC"),
+        LOWEST_TRUST(COL_TRUST + " ASC," + COL_ROWID + " ASC"),
+        LOWEST_ENDORSEMENTS(COL_LIKES + " ASC," + COL_ROWID + " ASC");
+
+        /** ORDER BY clause listing the messages to be evicted first */
+        final String order;
+
+        EvictionPolicy(String order){
+            this.order = order;
+        }
+    }
+
+    /** Outcome of ingesting a single message received in an exchange */
+    public enum IngestResult {
+        /** the message was not in the store and has been added */
+        NEW,
+        /** the message was already in the store (possibly removed) and its trust was updated */
+        UPDATED,
+        /** the message was invalid or was removed and purged, the store was not changed */
+        IGNORED
+    }
+
+    /** Snapshot of the message counters as of the last committed change to the store */
+    public static class MessageCounts {
+        /** number of messages in the store, including the ones marked as deleted */
+        public final long total;
+        /** number of messages not marked as deleted */
+        public final long live;
+        /** number of messages which are not replies to another message in the store */
+        public final long roots;
+        /** number of root messages not marked as deleted, i.e the size of the feed */
+        public final long liveRoots;
+        /** number of messages not read yet */
+        public final long unread;
+        /** number of favorite root messages not marked as deleted */
+        public final long favorites;
+
+        private MessageCounts(Map<String, Long> counters){
+            total = get(counters, COUNTER_TOTAL);
+            live = get(counters, COUNTER_LIVE);
+            roots = get(counters, COUNTER_ROOTS);
+            liveRoots = get(counters, COUNTER_LIVE_ROOTS);
+            unread = get(counters, COUNTER_UNREAD);
+            favorites = get(counters, COUNTER_FAVORITES);
+        }
+
+        private static long get(Map<String, Long> counters, String name){
+            Long value = counters.get(name);
+            return value != null ? value : 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MessageCounts)) return false;
+            MessageCounts other = (MessageCounts) o;
+            return total == other.total && live == other.live && roots == other.roots
+                    && liveRoots == other.liveRoots && unread == other.unread && favorites == other.favorites;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (31 * (31 * (31 * (31 * (31 * total + live) + roots) + liveRoots) + unread) + favorites);
+        }
+    }
+
+    /** Notified whenever a committed change to the store changed its message counters */
+    public interface CountsListener {
+        /** called on the store writer thread, implementations should return quickly and post any
+         * UI work to the main thread
+         * @param counts the counters after the change
+         */
+        void onCountsChanged(MessageCounts counts);
+    }
 
     /** Get the current instance of MessageStore and create one if necessary.
      * Implemented as a singleton */
@@ -118,6 +347,157 @@ public class MessageStore extends SQLiteOpenHelper {
     private MessageStore(Context context){
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         instance = this;
+        statements = new StatementCache(this);
+        // readers use their own connections and never wait for the writer's transactions
+        setWriteAheadLoggingEnabled(true);
+        writer = new MessageWriter(this, new Runnable() {
+            @Override
+            public void run() {
+                cache.commit();
+                refreshCounts();
+            }
+        });
+    }
+
+    /** Return the message counters as of the last committed change, read from memory */
+    public MessageCounts getCounts(){
+        MessageCounts current = counts;
+        if(current == null){
+            //synchronized with refreshCounts so a snapshot read before a commit never replaces a newer one
+            synchronized (countsListeners) {
+                if(counts == null) counts = readCounts();
+                current = counts;
+            }
+        }
+        return current;
+    }
+
+    /** register a listener notified whenever the message counters change */
+    public void addCountsListener(CountsListener listener){
+        if(listener != null) countsListeners.add(listener);
+    }
+
+    public void removeCountsListener(CountsListener listener){
+        countsListeners.remove(listener);
+    }
+
+    /** read the counters table into a new snapshot */
+    private MessageCounts readCounts(){
+        Map<String, Long> counters = new HashMap<>();
+        SQLiteDatabase db = getReadableDatabase();
+        if(db != null) {
+            Cursor cursor = db.rawQuery("SELECT " + COL_COUNTER_NAME + "," + COL_COUNTER_VALUE + " FROM " + TABLE_COUNTERS + ";", null);
+            try {
+                while (cursor.moveToNext()) {
+                    counters.put(cursor.getString(0), cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new MessageCounts(counters);
+    }
+
+    /** refresh the counters snapshot after a commit and notify the listeners if it changed */
+    private void refreshCounts(){
+        MessageCounts previous;
+        MessageCounts current;
+        synchronized (countsListeners) {
+            previous = counts;
+            current = readCounts();
+            counts = current;
+        }
+        if(current.equals(previous)) return;
+
+        for(CountsListener listener : countsListeners){
+            try {
+                listener.onCountsChanged(current);
+            } catch (RuntimeException e){
+                log.error("Message counts listener failed", e);
+            }
+        }
+    }
+
+    /** Queue a mutation of the store for execution by the writer thread. Mutations queued
+     * together are committed in a single transaction.
+     *
+     * @param command the mutation, typically calling the mutating methods of this store
+     * @return future completing with the result of the command once it is committed
+     */
+    public <T> Future<T> submit(Callable<T> command){
+        return writer.submit(command);
+    }
+
+    /** Queue a mutation of the store without waiting for it, for callers which must never block
+     * such as UI click handlers. Failures are logged.
+     *
+     * @param command the mutation, typically calling the mutating methods of this store
+     * @param onCommitted optional callback posted to the main thread once the command was
+     *                    committed or failed, e.g. to reload the list showing the change
+     */
+    public <T> void submit(final Callable<T> command, final Runnable onCommitted){
+        writer.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return command.call();
+                } catch (Exception e){
+                    log.error("Store mutation failed", e);
+                    throw e;
+                }
+            }
+        }, onCommitted == null ? null : new Runnable() {
+            @Override
+            public void run() {
+                mainThread.post(onCommitted);
+            }
+        });
+    }
+
+    /** execute a mutation on the writer thread and wait until it is committed, called by the
+     * writer thread itself the mutation is executed directly as part of the current transaction.
+     * Blocks behind the queued mutations, so the UI thread should use submit instead */
+    private <T> T write(Callable<T> command){
+        try {
+            if(writer.isWriterThread()) return command.call();
+            return writer.submit(command).get();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a store mutation", e);
+        } catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } catch (RuntimeException e){
+            throw e;
+        } catch (Exception e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        //only takes effect on a new database, before any table is created
+        db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL + ";");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if(enableIncrementalVacuum){
+            enableIncrementalVacuum = false;
+            //changing the vacuum mode of an existing database takes a full vacuum, which cannot
+            // run in the upgrade transaction
+            log.info("Enabling incremental vacuum on message store");
+            try {
+                db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL + ";");
+                db.execSQL("VACUUM;");
+            } catch (SQLiteException e){
+                log.error("Failed to vacuum message store", e);
+            }
+        }
     }
 
     @Override
@@ -128,6 +508,7 @@ public class MessageStore extends SQLiteOpenHelper {
                 + COL_BIGPARENT + " TEXT,"
                 + COL_PARENT + " TEXT,"
                 + COL_MESSAGE + " VARCHAR(" + MAX_MESSAGE_SIZE + ") NOT NULL,"
+                + COL_HASH + " TEXT NOT NULL,"
                 + COL_TIMESTAMP + " INTEGER NOT NULL,"
                 + COL_EXPIRE + " INTEGER NOT NULL,"
                 + COL_TRUST + " REAL NOT NULL DEFAULT " + MIN_TRUST + ","
@@ -141,21 +522,581 @@ public class MessageStore extends SQLiteOpenHelper {
                 + COL_DELETED + " BOOLEAN DEFAULT " + FALSE + " NOT NULL CHECK(" + COL_DELETED + " IN(" + TRUE + "," + FALSE + ")),"
                 + COL_FAVIRITE + " BOOLEAN DEFAULT " + FALSE + " NOT NULL CHECK(" + COL_FAVIRITE + " IN(" + TRUE + "," + FALSE + ")),"
                 + COL_CHECKED + " BOOLEAN DEFAULT " + FALSE + " NOT NULL CHECK(" + COL_CHECKED + " IN(" + TRUE + "," + FALSE + ")),"
-                + COL_READ + " BOOLEAN DEFAULT " + FALSE + " NOT NULL CHECK(" + COL_READ + " IN(" + TRUE + "," + FALSE + "))"
+                + COL_READ + " BOOLEAN DEFAULT " + FALSE + " NOT NULL CHECK(" + COL_READ + " IN(" + TRUE + "," + FALSE + ")),"
+                + COL_ROOT + " BOOLEAN DEFAULT " + FALSE + " NOT NULL CHECK(" + COL_ROOT + " IN(" + TRUE + "," + FALSE + ")),"
+                + COL_REPLY_COUNT + " INTEGER DEFAULT 0 NOT NULL,"
+                + COL_DELETED_AT + " INTEGER DEFAULT 0 NOT NULL,"
+                + COL_SEQUENCE + " INTEGER DEFAULT 0 NOT NULL,"
+                + COL_PATH + " TEXT,"
+                + COL_EXPIRES_AT + " INTEGER"
+                + ");");
+        createIndexes(db);
+        createCounters(db);
+        createSearchIndex(db);
+        createRootTriggers(db);
+        createReplyCountTriggers(db);
+        createTombstones(db);
+        createSequence(db);
+        createPathTriggers(db);
+        createExpiry(db);
+        createHashtags(db);
+    }
+
+    /** return the start of the hashtag bucket holding the supplied time */
+    private static long hashtagBucket(long time){
+        return time - time % HASHTAG_BUCKET;
+    }
+
+    /** create the hashtag index and trending counts tables along with the triggers keeping them
+     * in sync. A message marked as deleted or deleted from the store leaves the index, and each
+     * index entry counts toward the trending windows still covering the bucket it was added in.
+     */
+    private void createHashtags(SQLiteDatabase db){
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_HASHTAGS + " ("
+                + COL_HASHTAG_TAG + " TEXT NOT NULL,"
+                + COL_HASHTAG_MESSAGE + " INTEGER NOT NULL,"
+                + COL_HASHTAG_BUCKET + " INTEGER NOT NULL"
+                + ");");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + TABLE_HASHTAGS + "_" + COL_HASHTAG_MESSAGE + "_idx ON " + TABLE_HASHTAGS
+                + "(" + COL_HASHTAG_MESSAGE + "," + COL_HASHTAG_TAG + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_HASHTAGS + "_" + COL_HASHTAG_TAG + "_idx ON " + TABLE_HASHTAGS
+                + "(" + COL_HASHTAG_TAG + "," + COL_HASHTAG_BUCKET + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_HASHTAGS + "_" + COL_HASHTAG_BUCKET + "_idx ON " + TABLE_HASHTAGS
+                + "(" + COL_HASHTAG_BUCKET + ");");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_HASHTAG_WINDOWS + " ("
+                + COL_HASHTAG_COUNT_WINDOW + " INTEGER PRIMARY KEY,"
+                + COL_HASHTAG_WINDOW_CUTOFF + " INTEGER NOT NULL"
+                + ");");
+        long now = System.currentTimeMillis();
+        for(long window : TRENDING_WINDOWS){
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_HASHTAG_WINDOWS + " (" + COL_HASHTAG_COUNT_WINDOW + "," + COL_HASHTAG_WINDOW_CUTOFF + ")"
+                    + " VALUES (" + window + "," + hashtagBucket(now - window) + ");");
+        }
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_HASHTAG_COUNTS + " ("
+                + COL_HASHTAG_COUNT_WINDOW + " INTEGER NOT NULL,"
+                + COL_HASHTAG_TAG + " TEXT NOT NULL,"
+                + COL_HASHTAG_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + "PRIMARY KEY (" + COL_HASHTAG_COUNT_WINDOW + "," + COL_HASHTAG_TAG + ")"
+                + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_HASHTAG_COUNTS + "_" + COL_HASHTAG_COUNT + "_idx ON " + TABLE_HASHTAG_COUNTS
+                + "(" + COL_HASHTAG_COUNT_WINDOW + "," + COL_HASHTAG_COUNT + ");");
+
+        String coveringWindows = " IN (SELECT " + COL_HASHTAG_COUNT_WINDOW + " FROM " + TABLE_HASHTAG_WINDOWS + " WHERE %1$s." + COL_HASHTAG_BUCKET + ">=" + COL_HASHTAG_WINDOW_CUTOFF + ")";
+        String adjustCount = "UPDATE " + TABLE_HASHTAG_COUNTS + " SET " + COL_HASHTAG_COUNT + "=" + COL_HASHTAG_COUNT + "%2$s"
+                + " WHERE " + COL_HASHTAG_TAG + "=%1$s." + COL_HASHTAG_TAG + " AND " + COL_HASHTAG_COUNT_WINDOW + coveringWindows + ";";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_HASHTAGS + "_count_insert AFTER INSERT ON " + TABLE_HASHTAGS
+                + " BEGIN INSERT OR IGNORE INTO " + TABLE_HASHTAG_COUNTS + " (" + COL_HASHTAG_COUNT_WINDOW + "," + COL_HASHTAG_TAG + ")"
+                + " SELECT " + COL_HASHTAG_COUNT_WINDOW + ",NEW." + COL_HASHTAG_TAG + " FROM " + TABLE_HASHTAG_WINDOWS
+                + " WHERE NEW." + COL_HASHTAG_BUCKET + ">=" + COL_HASHTAG_WINDOW_CUTOFF + ";"
+                + String.format(adjustCount, "NEW", "+1") + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_HASHTAGS + "_count_delete AFTER DELETE ON " + TABLE_HASHTAGS
+                + " BEGIN " + String.format(adjustCount, "OLD", "-1") + " END;");
+
+        String removeTags = "DELETE FROM " + TABLE_HASHTAGS + " WHERE " + COL_HASHTAG_MESSAGE + "=OLD." + COL_ROWID + ";";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_hashtags_delete AFTER DELETE ON " + TABLE
+                + " BEGIN " + removeTags + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_hashtags_removed AFTER UPDATE OF " + COL_DELETED + " ON " + TABLE
+                + " WHEN NEW." + COL_DELETED + "=" + TRUE + " AND OLD." + COL_DELETED + "=" + FALSE
+                + " BEGIN " + removeTags + " END;");
+    }
+
+    /** return the form in which the supplied hashtag is indexed */
+    private static String normalizeHashtag(String hashtag){
+        return hashtag.toLowerCase(Locale.US);
+    }
+
+    /** add the hashtags of the supplied message text to the hashtag index
+     * @param rowId row id of the message in the messages table
+     * @param bucket the hashtag bucket the message is counted in
+     */
+    private void indexHashtags(long rowId, String text, long bucket){
+        for(String hashtag : Utils.getHashtags(text)){
+            statements.executeUpdateDelete("INSERT OR IGNORE INTO " + TABLE_HASHTAGS
+                    + " (" + COL_HASHTAG_TAG + "," + COL_HASHTAG_MESSAGE + "," + COL_HASHTAG_BUCKET + ") VALUES (?,?,?);",
+                    normalizeHashtag(hashtag), rowId, bucket);
+        }
+    }
+
+    /** return an SQL expression evaluating to the self destruct time of the referenced row
+     * @param row name of the row to evaluate (table name, NEW or OLD)
+     */
+    private static String expiresAtExpression(String row){
+        return "(CASE WHEN " + row + "." + COL_EXPIRE + ">0 AND " + row + "." + COL_TIMESTAMP + ">0"
+                + " THEN " + row + "." + COL_EXPIRE + "+" + row + "." + COL_TIMESTAMP + " END)";
+    }
+
+    /** create the indexes used by the cleanup of outdated messages and the triggers maintaining
+     * the self destruct time */
+    private void createExpiry(SQLiteDatabase db){
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_EXPIRES_AT + "_idx ON " + TABLE + "(" + COL_EXPIRES_AT + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_TIMESTAMP + "_idx ON " + TABLE + "(" + COL_TIMESTAMP + ");");
+
+        String updateSelf = "UPDATE " + TABLE + " SET " + COL_EXPIRES_AT + "=" + expiresAtExpression("NEW") + " WHERE " + COL_ROWID + "=NEW." + COL_ROWID + ";";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_expiry_insert AFTER INSERT ON " + TABLE
+                + " BEGIN " + updateSelf + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_expiry_update AFTER UPDATE OF " + COL_EXPIRE + "," + COL_TIMESTAMP + " ON " + TABLE
+                + " BEGIN " + updateSelf + " END;");
+    }
+
+    /** return an SQL expression evaluating to the path of the referenced row, built on the path of
+     * its parent if the parent is in the store
+     * @param row name of the row to evaluate (NEW or OLD)
+     */
+    private static String pathExpression(String row){
+        String separator = "'" + PATH_SEPARATOR + "'";
+        return "IFNULL((SELECT parent." + COL_PATH + " FROM " + TABLE + " AS parent WHERE parent." + COL_MESSAGE_ID + "=" + row + "." + COL_PARENT
+                + " AND parent." + COL_ROWID + "<>" + row + "." + COL_ROWID + " LIMIT 1),"
+                + "CASE WHEN IFNULL(" + row + "." + COL_PARENT + ",'')='' THEN " + separator + " ELSE " + separator + "||" + row + "." + COL_PARENT + "||" + separator + " END)"
+                + "||" + row + "." + COL_MESSAGE_ID + "||" + separator;
+    }
+
+    /** return an SQL statement replacing the supplied prefix of the paths of a subtree with the
+     * current path of the referenced row
+     * @param prefix SQL expression of the path prefix shared by the subtree
+     * @param row name of the row (NEW or OLD)
+     */
+    private static String moveSubtree(String prefix, String row){
+        return "UPDATE " + TABLE + " SET " + COL_PATH + "=(SELECT " + COL_PATH + " FROM " + TABLE + " WHERE " + COL_ROWID + "=" + row + "." + COL_ROWID + ")"
+                + "||substr(" + COL_PATH + ",length(" + prefix + ")+1)"
+                + " WHERE " + COL_PATH + ">" + prefix + " AND " + COL_PATH + "<substr(" + prefix + ",1,length(" + prefix + ")-1)||'" + PATH_END + "';";
+    }
+
+    /** create the path index and the triggers maintaining the paths. An inserted message takes
+     * over the messages which referenced it as a missing parent, a message changing parent moves
+     * its subtree along.
+     */
+    private void createPathTriggers(SQLiteDatabase db){
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_PATH + "_idx ON " + TABLE + "(" + COL_PATH + ");");
+
+        String updateSelf = "UPDATE " + TABLE + " SET " + COL_PATH + "=" + pathExpression("NEW") + " WHERE " + COL_ROWID + "=NEW." + COL_ROWID + ";";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_path_insert AFTER INSERT ON " + TABLE
+                + " BEGIN " + updateSelf
+                + moveSubtree("('" + PATH_SEPARATOR + "'||NEW." + COL_MESSAGE_ID + "||'" + PATH_SEPARATOR + "')", "NEW")
+                + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_path_ancestry AFTER UPDATE OF " + COL_PARENT + " ON " + TABLE
+                + " BEGIN " + updateSelf + moveSubtree("OLD." + COL_PATH, "NEW") + " END;");
+    }
+
+    /** return the path prefix shared by all the descendants of the supplied message, which is its
+     * path or, if it is not in the store, the prefix its descendants were given */
+    private String getSubtreePrefix(String messageId){
+        String path = statements.queryForString("SELECT " + COL_PATH + " FROM " + TABLE + " WHERE " + COL_MESSAGE_ID + "=? LIMIT 1;", messageId);
+        return path != null ? path : PATH_SEPARATOR + messageId + PATH_SEPARATOR;
+    }
+
+    /** return the upper bound of the paths starting with the supplied prefix */
+    private static String subtreeEnd(String prefix){
+        return prefix.substring(0, prefix.length() - 1) + PATH_END;
+    }
+
+    /** return the SQL condition selecting the descendants of the supplied message with literal values */
+    private String subtreeCondition(String messageId){
+        String prefix = getSubtreePrefix(messageId);
+        return COL_PATH + ">" + DatabaseUtils.sqlEscapeString(prefix) + " AND " + COL_PATH + "<" + DatabaseUtils.sqlEscapeString(subtreeEnd(prefix));
+    }
+
+    /** set the big parent of all the known descendants of the supplied message */
+    private void updateDescendantsBigparent(String messageId, String bigparent){
+        String prefix = getSubtreePrefix(messageId);
+        statements.executeUpdateDelete("UPDATE " + TABLE + " SET " + COL_BIGPARENT + "=? WHERE " + SUBTREE_CONDITION + ";", bigparent, prefix, subtreeEnd(prefix));
+    }
+
+    /** create the sequence counter, its triggers and the peer watermarks table. The counter starts
+     * from the highest sequence number in the messages table. */
+    private void createSequence(SQLiteDatabase db){
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_SEQUENCE + "_idx ON " + TABLE + "(" + COL_SEQUENCE + ");");
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_COUNTERS + " (" + COL_COUNTER_NAME + "," + COL_COUNTER_VALUE + ")"
+                + " SELECT '" + COUNTER_SEQUENCE + "', IFNULL(MAX(" + COL_SEQUENCE + "),0) FROM " + TABLE + ";");
+
+        String nextSequence = "UPDATE " + TABLE_COUNTERS + " SET " + COL_COUNTER_VALUE + "=" + COL_COUNTER_VALUE + "+1"
+                + " WHERE " + COL_COUNTER_NAME + "='" + COUNTER_SEQUENCE + "';"
+                + "UPDATE " + TABLE + " SET " + COL_SEQUENCE + "=(SELECT " + COL_COUNTER_VALUE + " FROM " + TABLE_COUNTERS
+                + " WHERE " + COL_COUNTER_NAME + "='" + COUNTER_SEQUENCE + "') WHERE " + COL_ROWID + "=NEW." + COL_ROWID + ";";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_seq_insert AFTER INSERT ON " + TABLE
+                + " BEGIN " + nextSequence + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_seq_update AFTER UPDATE OF " + COL_TRUST + "," + COL_LIKES + "," + COL_DELETED + " ON " + TABLE
+                + " WHEN OLD." + COL_TRUST + "<>NEW." + COL_TRUST + " OR OLD." + COL_LIKES + "<>NEW." + COL_LIKES + " OR OLD." + COL_DELETED + "<>NEW." + COL_DELETED
+                + " BEGIN " + nextSequence + " END;");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_WATERMARKS + " ("
+                + COL_WATERMARK_ADDRESS + " TEXT PRIMARY KEY,"
+                + COL_WATERMARK_SEQUENCE + " INTEGER NOT NULL,"
+                + COL_WATERMARK_TIME + " INTEGER NOT NULL"
+                + ");");
+    }
+
+    /** create the tombstones table and the trigger recording when messages are removed */
+    private void createTombstones(SQLiteDatabase db){
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_TOMBSTONES + " ("
+                + COL_HASH + " TEXT PRIMARY KEY"
+                + ");");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_deleted_at AFTER UPDATE OF " + COL_DELETED + " ON " + TABLE
+                + " WHEN NEW." + COL_DELETED + "=" + TRUE + " AND OLD." + COL_DELETED + "=" + FALSE
+                + " BEGIN UPDATE " + TABLE + " SET " + COL_DELETED_AT + "=CAST(strftime('%s','now') AS INTEGER)*1000"
+                + " WHERE " + COL_ROWID + "=NEW." + COL_ROWID + "; END;");
+    }
+
+    /** create the lookup indexes of the messages table, safe to call on an existing table */
+    private void createIndexes(SQLiteDatabase db){
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + TABLE + "_" + COL_HASH + "_idx ON " + TABLE + "(" + COL_HASH + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_MESSAGE_ID + "_idx ON " + TABLE + "(" + COL_MESSAGE_ID + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_PARENT + "_idx ON " + TABLE + "(" + COL_PARENT + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_BIGPARENT + "_idx ON " + TABLE + "(" + COL_BIGPARENT + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_DELETED + "_idx ON " + TABLE + "(" + COL_DELETED + ");");
+        //eviction order indexes, the oldest first order is covered by the deleted index and the
+        // lowest trust order by the exchange index
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_LIKES + "_idx ON " + TABLE + "(" + COL_DELETED + "," + COL_LIKES + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_" + COL_ROOT + "_idx ON " + TABLE + "(" + COL_ROOT + "," + COL_DELETED + ");");
+        //exchange candidates order, see getMessagesForExchange
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_exchange_idx ON " + TABLE + "(" + COL_DELETED + "," + COL_TRUST + "," + COL_LIKES + ");");
+    }
+
+    /** return an SQL expression evaluating to true if the referenced row should show as a top
+     * level item, i.e. it has no big parent or neither its parent nor big parent are live in the store
+     * @param row name of the row to evaluate (table name, NEW or OLD)
+     */
+    private static String rootExpression(String row){
+        return "(" + row + "." + COL_BIGPARENT + " IS NULL OR NOT EXISTS (SELECT 1 FROM " + TABLE + " AS ancestor"
+                + " WHERE ancestor." + COL_DELETED + "=" + FALSE
+                + " AND (ancestor." + COL_MESSAGE_ID + "=" + row + "." + COL_BIGPARENT
+                + " OR ancestor." + COL_MESSAGE_ID + "=" + row + "." + COL_PARENT + ")))";
+    }
+
+    /** create the triggers maintaining the root flag. A message's flag is evaluated when inserted or
+     * when its ancestry changes, the flag of its replies is evaluated again whenever the message
+     * is inserted, deleted or restored.
+     */
+    private void createRootTriggers(SQLiteDatabase db){
+        String updateSelf = "UPDATE " + TABLE + " SET " + COL_ROOT + "=" + rootExpression("NEW") + " WHERE " + COL_ROWID + "=NEW." + COL_ROWID + ";";
+        String updateReplies = "UPDATE " + TABLE + " SET " + COL_ROOT + "=" + rootExpression(TABLE)
+                + " WHERE " + COL_PARENT + "=%1$s." + COL_MESSAGE_ID + " OR " + COL_BIGPARENT + "=%1$s." + COL_MESSAGE_ID + ";";
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_root_insert AFTER INSERT ON " + TABLE
+                + " BEGIN " + updateSelf + String.format(updateReplies, "NEW") + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_root_delete AFTER DELETE ON " + TABLE
+                + " WHEN OLD." + COL_DELETED + "=" + FALSE
+                + " BEGIN " + String.format(updateReplies, "OLD") + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_root_deleted AFTER UPDATE OF " + COL_DELETED + " ON " + TABLE
+                + " WHEN OLD." + COL_DELETED + "<>NEW." + COL_DELETED
+                + " BEGIN " + String.format(updateReplies, "NEW") + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_root_ancestry AFTER UPDATE OF " + COL_PARENT + "," + COL_BIGPARENT + " ON " + TABLE
+                + " BEGIN " + updateSelf + " END;");
+    }
+
+    /** return an SQL expression counting the live replies of the message in the referenced row
+     * @param row name of the row to evaluate (table name, NEW or OLD)
+     */
+    private static String replyCountExpression(String row){
+        return "(SELECT COUNT(*) FROM " + TABLE + " AS reply WHERE reply." + COL_DELETED + "=" + FALSE
+                + " AND (reply." + COL_PARENT + "=" + row + "." + COL_MESSAGE_ID
+                + " OR reply." + COL_BIGPARENT + "=" + row + "." + COL_MESSAGE_ID + "))";
+    }
+
+    /** create the triggers maintaining the reply count. Inserting, deleting or restoring a reply
+     * adjusts the count of its parent and big parent, a message arriving after its replies counts
+     * them once on insert and an ancestry change recounts the affected ancestors.
+     */
+    private void createReplyCountTriggers(SQLiteDatabase db){
+        String adjustAncestors = "UPDATE " + TABLE + " SET " + COL_REPLY_COUNT + "=" + COL_REPLY_COUNT + "%2$s"
+                + " WHERE " + COL_MESSAGE_ID + " IN (%1$s." + COL_PARENT + ",%1$s." + COL_BIGPARENT + ");";
+        String recountAncestors = "UPDATE " + TABLE + " SET " + COL_REPLY_COUNT + "=" + replyCountExpression(TABLE)
+                + " WHERE " + COL_MESSAGE_ID + " IN (OLD." + COL_PARENT + ",OLD." + COL_BIGPARENT + ",NEW." + COL_PARENT + ",NEW." + COL_BIGPARENT + ");";
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_replies_insert AFTER INSERT ON " + TABLE
+                + " BEGIN "
+                + "UPDATE " + TABLE + " SET " + COL_REPLY_COUNT + "=" + replyCountExpression("NEW") + " WHERE " + COL_ROWID + "=NEW." + COL_ROWID + ";"
+                + String.format(adjustAncestors, "NEW", "+(NEW." + COL_DELETED + "=" + FALSE + ")")
+                + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_replies_delete AFTER DELETE ON " + TABLE
+                + " WHEN OLD." + COL_DELETED + "=" + FALSE
+                + " BEGIN " + String.format(adjustAncestors, "OLD", "-1") + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_replies_deleted AFTER UPDATE OF " + COL_DELETED + " ON " + TABLE
+                + " WHEN OLD." + COL_DELETED + "<>NEW." + COL_DELETED
+                + " BEGIN " + String.format(adjustAncestors, "NEW", "+(CASE WHEN NEW." + COL_DELETED + "=" + FALSE + " THEN 1 ELSE -1 END)") + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_replies_ancestry AFTER UPDATE OF " + COL_PARENT + "," + COL_BIGPARENT + " ON " + TABLE
+                + " BEGIN " + recountAncestors + " END;");
+    }
+
+    /** create the full text index over the messages text along with the triggers keeping it in
+     * sync with the messages table and index the current content of the messages table.
+     */
+    private void createSearchIndex(SQLiteDatabase db){
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_FTS + " USING fts4(content=\"" + TABLE + "\"," + COL_MESSAGE + ");");
+        db.execSQL("INSERT INTO " + TABLE_FTS + "(" + COL_FTS_DOCID + "," + COL_MESSAGE + ")"
+                + " SELECT " + COL_ROWID + "," + COL_MESSAGE + " FROM " + TABLE + ";");
+
+        String insertIndex = "INSERT INTO " + TABLE_FTS + "(" + COL_FTS_DOCID + "," + COL_MESSAGE + ") VALUES(NEW." + COL_ROWID + ",NEW." + COL_MESSAGE + ");";
+        String deleteIndex = "DELETE FROM " + TABLE_FTS + " WHERE " + COL_FTS_DOCID + "=OLD." + COL_ROWID + ";";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_fts_insert AFTER INSERT ON " + TABLE
+                + " BEGIN " + insertIndex + " END;");
+        //an external content index must be cleared before the content is gone
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_fts_delete BEFORE DELETE ON " + TABLE
+                + " BEGIN " + deleteIndex + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_fts_before_update BEFORE UPDATE OF " + COL_MESSAGE + " ON " + TABLE
+                + " BEGIN " + deleteIndex + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_fts_after_update AFTER UPDATE OF " + COL_MESSAGE + " ON " + TABLE
+                + " BEGIN " + insertIndex + " END;");
+    }
+
+    /** create the counters table along with the triggers keeping it in sync with the messages
+     * table and initialize the counters from the current content of the messages table.
+     */
+    private void createCounters(SQLiteDatabase db){
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_COUNTERS + " ("
+                + COL_COUNTER_NAME + " TEXT PRIMARY KEY,"
+                + COL_COUNTER_VALUE + " INTEGER NOT NULL DEFAULT 0"
                 + ");");
+
+        String updateCounter = "UPDATE " + TABLE_COUNTERS + " SET " + COL_COUNTER_VALUE + "=" + COL_COUNTER_VALUE + "%2$s"
+                + " WHERE " + COL_COUNTER_NAME + "='%1$s';";
+        StringBuilder onInsert = new StringBuilder();
+        StringBuilder onDelete = new StringBuilder();
+        StringBuilder onUpdate = new StringBuilder();
+        for(String[] counter : MESSAGE_COUNTERS){
+            String counted = "(" + String.format(counter[1], TABLE) + ")";
+            String countedNew = "(" + String.format(counter[1], "NEW") + ")";
+            String countedOld = "(" + String.format(counter[1], "OLD") + ")";
+
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_COUNTERS + " (" + COL_COUNTER_NAME + "," + COL_COUNTER_VALUE + ")"
+                    + " SELECT '" + counter[0] + "', COUNT(*) FROM " + TABLE + " WHERE " + counted + ";");
+            onInsert.append(String.format(updateCounter, counter[0], "+" + countedNew));
+            onDelete.append(String.format(updateCounter, counter[0], "-" + countedOld));
+            if(!COUNTER_TOTAL.equals(counter[0])) {
+                onUpdate.append(String.format(updateCounter, counter[0], "+" + countedNew + "-" + countedOld));
+            }
+        }
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_counters_insert AFTER INSERT ON " + TABLE
+                + " BEGIN " + onInsert + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_counters_delete AFTER DELETE ON " + TABLE
+                + " BEGIN " + onDelete + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE + "_counters_update AFTER UPDATE OF "
+                + COL_DELETED + "," + COL_ROOT + "," + COL_READ + "," + COL_FAVIRITE + " ON " + TABLE
+                + " WHEN OLD." + COL_DELETED + "<>NEW." + COL_DELETED + " OR OLD." + COL_ROOT + "<>NEW." + COL_ROOT
+                + " OR OLD." + COL_READ + "<>NEW." + COL_READ + " OR OLD." + COL_FAVIRITE + "<>NEW." + COL_FAVIRITE
+                + " BEGIN " + onUpdate + " END;");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        /*recreate table on upgrade, this should be better implemented once final data base structure
-          is reached*/
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
-        onCreate(db);
+        if(oldVersion < 2){
+            //no migration path from the pre-release structure, recreate the table
+            recreateTable(db);
+            return;
+        }
+        if(oldVersion < 3) upgradeToVersion3(db);
+        if(oldVersion < 4) upgradeToVersion4(db);
+        if(oldVersion < 5) upgradeToVersion5(db);
+        if(oldVersion < 6) upgradeToVersion6(db);
+        if(oldVersion < 7) upgradeToVersion7(db);
+        if(oldVersion < 8) upgradeToVersion8(db);
+        if(oldVersion < 9) upgradeToVersion9(db);
+        if(oldVersion < 10) upgradeToVersion10(db);
+        if(oldVersion < 11) upgradeToVersion11(db);
+        if(oldVersion < 12) upgradeToVersion12(db);
+        if(oldVersion < 13) upgradeToVersion13(db);
+        if(oldVersion < 14) upgradeToVersion14(db);
+        if(oldVersion < 15) upgradeToVersion15(db);
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        //an unknown future structure cannot be migrated back, recreate the table
+        recreateTable(db);
+    }
+
+    private void recreateTable(SQLiteDatabase db){
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COUNTERS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TOMBSTONES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_WATERMARKS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_HASHTAGS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_HASHTAG_COUNTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_HASHTAG_WINDOWS);
+        onCreate(db);
+    }
+
+    /** version 3 adds the content hash column and the lookup indexes. Existing rows are hashed
+     * in place, if several rows share the same content only the most recent one is kept.
+     */
+    private void upgradeToVersion3(SQLiteDatabase db){
+        log.info("Upgrading message store to version 3, hashing stored messages");
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_HASH + " TEXT;");
+
+        SQLiteStatement updateHash = db.compileStatement("UPDATE " + TABLE + " SET " + COL_HASH + "=? WHERE " + COL_ROWID + "=?;");
+        SQLiteStatement deleteRow = db.compileStatement("DELETE FROM " + TABLE + " WHERE " + COL_ROWID + "=?;");
+
+        Set<String> seen = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT " + COL_ROWID + "," + COL_MESSAGE + " FROM " + TABLE + " ORDER BY " + COL_ROWID + " DESC;", null);
+        int rowIdColIndex = cursor.getColumnIndex(COL_ROWID);
+        int messageColIndex = cursor.getColumnIndex(COL_MESSAGE);
+        while (cursor.moveToNext()){
+            long rowId = cursor.getLong(rowIdColIndex);
+            String hash = hashOf(cursor.getString(messageColIndex));
+            if(seen.add(hash)){
+                updateHash.bindString(1, hash);
+                updateHash.bindLong(2, rowId);
+                updateHash.executeUpdateDelete();
+            } else {
+                deleteRow.bindLong(1, rowId);
+                deleteRow.executeUpdateDelete();
+            }
+        }
+        cursor.close();
+        updateHash.close();
+        deleteRow.close();
+
+        createIndexes(db);
+    }
+
+    /** version 4 adds the counters table and the eviction order indexes */
+    private void upgradeToVersion4(SQLiteDatabase db){
+        createIndexes(db);
+        createCounters(db);
+    }
+
+    /** version 5 adds the full text search index */
+    private void upgradeToVersion5(SQLiteDatabase db){
+        log.info("Upgrading message store to version 5, indexing stored messages for search");
+        createSearchIndex(db);
+    }
+
+    /** version 6 adds the root flag replacing the reply filtering sub queries */
+    private void upgradeToVersion6(SQLiteDatabase db){
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_ROOT + " BOOLEAN DEFAULT " + FALSE + " NOT NULL CHECK(" + COL_ROOT + " IN(" + TRUE + "," + FALSE + "));");
+        db.execSQL("UPDATE " + TABLE + " SET " + COL_ROOT + "=" + rootExpression(TABLE) + ";");
+        createIndexes(db);
+        createRootTriggers(db);
+    }
+
+    /** version 7 adds the reply count used by the feed rows */
+    private void upgradeToVersion7(SQLiteDatabase db){
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_REPLY_COUNT + " INTEGER DEFAULT 0 NOT NULL;");
+        db.execSQL("UPDATE " + TABLE + " SET " + COL_REPLY_COUNT + "=" + replyCountExpression(TABLE) + ";");
+        createReplyCountTriggers(db);
+    }
+
+    /** version 8 adds the exchange candidates index, which replaces the trust eviction index */
+    private void upgradeToVersion8(SQLiteDatabase db){
+        createIndexes(db);
+        db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_" + COL_TRUST + "_idx;");
+    }
+
+    /** version 9 adds the removal time and the tombstones of purged messages, messages removed
+     * before the upgrade count as removed at upgrade time */
+    private void upgradeToVersion9(SQLiteDatabase db){
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_DELETED_AT + " INTEGER DEFAULT 0 NOT NULL;");
+        db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED_AT + "=" + System.currentTimeMillis() + " WHERE " + COL_DELETED + "=" + TRUE + ";");
+        createTombstones(db);
+    }
+
+    /** version 10 adds the change sequence used for delta exchanges, existing messages are numbered
+     * in insertion order */
+    private void upgradeToVersion10(SQLiteDatabase db){
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_SEQUENCE + " INTEGER DEFAULT 0 NOT NULL;");
+        db.execSQL("UPDATE " + TABLE + " SET " + COL_SEQUENCE + "=" + COL_ROWID + ";");
+        createSequence(db);
+    }
+
+    /** version 11 adds the thread paths, computed here for the existing messages */
+    private void upgradeToVersion11(SQLiteDatabase db){
+        log.info("Upgrading message store to version 11, indexing message threads");
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_PATH + " TEXT;");
+
+        Map<String, String> parents = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT " + COL_MESSAGE_ID + "," + COL_PARENT + " FROM " + TABLE + ";", null);
+        while (cursor.moveToNext()){
+            parents.put(cursor.getString(0), cursor.getString(1));
+        }
+        cursor.close();
+
+        SQLiteStatement updatePath = db.compileStatement("UPDATE " + TABLE + " SET " + COL_PATH + "=? WHERE " + COL_MESSAGE_ID + "=?;");
+        for(String messageId : parents.keySet()){
+            StringBuilder path = new StringBuilder(PATH_SEPARATOR + messageId + PATH_SEPARATOR);
+            Set<String> visited = new HashSet<>();
+            visited.add(messageId);
+            String ancestor = parents.get(messageId);
+            //walk up to the first missing ancestor, which starts the path as the triggers do
+            while(ancestor != null && !ancestor.isEmpty() && visited.add(ancestor)){
+                path.insert(0, PATH_SEPARATOR + ancestor);
+                ancestor = parents.get(ancestor);
+            }
+            updatePath.bindString(1, path.toString());
+            updatePath.bindString(2, messageId);
+            updatePath.executeUpdateDelete();
+        }
+        updatePath.close();
+
+        createPathTriggers(db);
+    }
+
+    /** version 12 adds the indexed self destruct time */
+    private void upgradeToVersion12(SQLiteDatabase db){
+        db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COL_EXPIRES_AT + " INTEGER;");
+        db.execSQL("UPDATE " + TABLE + " SET " + COL_EXPIRES_AT + "=" + expiresAtExpression(TABLE) + ";");
+        createExpiry(db);
+    }
+
+    /** version 13 adds the hashtag index, the live messages are indexed in the bucket of their
+     * timestamp since the time they were received is unknown */
+    private void upgradeToVersion13(SQLiteDatabase db){
+        log.info("Upgrading message store to version 13, indexing hashtags");
+        createHashtags(db);
+
+        SQLiteStatement insertTag = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_HASHTAGS
+                + " (" + COL_HASHTAG_TAG + "," + COL_HASHTAG_MESSAGE + "," + COL_HASHTAG_BUCKET + ") VALUES (?,?,?);");
+        Cursor cursor = db.rawQuery("SELECT " + COL_ROWID + "," + COL_MESSAGE + "," + COL_TIMESTAMP + " FROM " + TABLE
+                + " WHERE " + COL_DELETED + "=" + FALSE + " AND " + COL_MESSAGE + " LIKE '%#%';", null);
+        try {
+            while (cursor.moveToNext()) {
+                for (String hashtag : Utils.getHashtags(cursor.getString(1))) {
+                    insertTag.bindString(1, normalizeHashtag(hashtag));
+                    insertTag.bindLong(2, cursor.getLong(0));
+                    insertTag.bindLong(3, hashtagBucket(Math.max(cursor.getLong(2), 0)));
+                    insertTag.executeInsert();
+                }
+            }
+        } finally {
+            cursor.close();
+            insertTag.close();
+        }
+    }
+
+    /** version 14 replaces the live counter triggers with triggers maintaining all the message
+     * counters */
+    private void upgradeToVersion14(SQLiteDatabase db){
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_live_insert;");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_live_delete;");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_live_update;");
+        createCounters(db);
+    }
+
+    /** version 15 switches databases created without incremental vacuum to it, done by onOpen
+     * since the vacuum cannot run in a transaction */
+    private void upgradeToVersion15(SQLiteDatabase db){
+        if(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum;", null) != AUTO_VACUUM_INCREMENTAL) {
+            enableIncrementalVacuum = true;
+        }
+    }
+
+    /** return whether the supplied message id may be stored. Ids are embedded as is in the
+     * materialized paths, an id holding PATH_SEPARATOR or PATH_END would graft the message into
+     * another thread or widen the subtree of its ancestors. A missing id is valid. */
+    static boolean isValidMessageId(String messageId){
+        return messageId == null || (!messageId.contains(PATH_SEPARATOR) && !messageId.contains(PATH_END));
+    }
+
+    /** return the content hash used to identify the supplied message text in the store. The text
+     * is truncated to the maximum stored message size before hashing so that the hash of an
+     * incoming message matches the one of its stored copy.
+     */
+    public static String hashOf(String message){
+        if(message == null) return null;
+        if(message.length() > MAX_MESSAGE_SIZE) message = message.substring(0, MAX_MESSAGE_SIZE);
+        return Base64.encodeToString(Crypto.encodeString(message), Base64.NO_WRAP);
     }
 
     /**
@@ -184,48 +1125,20 @@ public class MessageStore extends SQLiteOpenHelper {
     }
 
     /** convert cursor data returned from SQL queries into Message objects that can be returned to
-     * query supplier. This implementation does not close the supplied cursor when done
+     * query supplier. The supplied cursor is closed once all of its rows were converted
      * @param cursor Cursor data returned from SQLite database
      * @return list of Message items contained by the cursor or an empty list if cursor was empty
      */
     private List<MurmurMessage> convertToMessages(Cursor cursor){
+        return convertToMessages(new MessageIterator(cursor));
+    }
 
+    /** collect all the remaining messages of the iterator into a list, closing the iterator */
+    private List<MurmurMessage> convertToMessages(MessageIterator iterator){
         List<MurmurMessage> messages = new ArrayList<>();
-        cursor.moveToFirst();
-
-        int messageIdColIndex = cursor.getColumnIndex(COL_MESSAGE_ID);
-        int trustColIndex = cursor.getColumnIndex(COL_TRUST);
-        int priorityColIndex = cursor.getColumnIndex(COL_LIKES);
-        int messageColIndex = cursor.getColumnIndex(COL_MESSAGE);
-        int pseudonymColIndex = cursor.getColumnIndex(COL_PSEUDONYM);
-        int timestampColIndex = cursor.getColumnIndex(COL_TIMESTAMP);
-        int latlongColIndex = cursor.getColumnIndex(COL_LATLONG);
-        int timeboundColIndex = cursor.getColumnIndex(COL_EXPIRE);
-        int parentColIndex = cursor.getColumnIndex(COL_PARENT);
-        int bigparentColIndex = cursor.getColumnIndex(COL_BIGPARENT);
-        int hopColIndex = cursor.getColumnIndex(COL_HOP);
-        int hopContactsColIndex = cursor.getColumnIndex(COL_MIN_CONTACTS_FOR_HOP);
-
-        if (cursor.getCount() > 0) {
-            while (!cursor.isAfterLast()){
-                messages.add(new MurmurMessage(
-                        cursor.getString(messageIdColIndex),
-                        cursor.getString(messageColIndex),
-                        cursor.getDouble(trustColIndex),
-                        cursor.getInt(priorityColIndex),
-                        cursor.getString(pseudonymColIndex),
-                        cursor.getLong(timestampColIndex),
-                        cursor.getString(latlongColIndex),
-                        cursor.getLong(timeboundColIndex),
-                        cursor.getString(parentColIndex),
-                        cursor.getInt(hopColIndex),
-                        cursor.getString(bigparentColIndex),
-                        cursor.getInt(hopContactsColIndex)
-                ));
-                cursor.moveToNext();
-            }
+        for(MurmurMessage message : iterator){
+            messages.add(message);
         }
-
         return messages;
     }
 
@@ -240,7 +1153,7 @@ public class MessageStore extends SQLiteOpenHelper {
         if(db != null) {
             String query = "SELECT * FROM " + TABLE
                     + " WHERE "
-                        + (!getReplies ? "("+COL_BIGPARENT+ " IS NULL OR "+COL_BIGPARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+") AND "+COL_PARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+ "))" : "")
+                        + (!getReplies ? COL_ROOT+"="+TRUE : "")
                         + " "+(!getDeleted ? ((!getReplies ? " AND " : "") + COL_DELETED + "=" + FALSE) : "")
                     + " " + sortOption
                     + (limit > 0 ? " LIMIT " + limit : "")
@@ -257,17 +1170,17 @@ public class MessageStore extends SQLiteOpenHelper {
      * @return List of Message items based on database items matching conditions
      */
     public List<MurmurMessage> getMessages(boolean getDeleted, boolean getReplies, int limit){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            Cursor cursor = getMessagesCursor(getDeleted, getReplies, limit);
-            if(cursor != null && cursor.getCount() > 0){
-                List<MurmurMessage> result = convertToMessages(cursor);
-                cursor.close();
-                return result;
-            }
-            cursor.close();
-        }
-        return new ArrayList<>();
+        return convertToMessages(iterateMessages(getDeleted, getReplies, limit));
+    }
+
+    /** Return a lazily decoding iterator over messages sorted according to the current sort order,
+     * the iterator must be closed if not exhausted.
+     * @param getDeleted whether or not results should include deleted items
+     * @param getReplies whether or not results should include items which are replies on other message
+     * @param limit Maximum number of items to return or -1 for unlimited
+     */
+    public MessageIterator iterateMessages(boolean getDeleted, boolean getReplies, int limit){
+        return new MessageIterator(getMessagesCursor(getDeleted, getReplies, limit));
     }
 
     /** Return a cursor pointing to messages sorted according to current sort order and deleted state
@@ -277,100 +1190,136 @@ public class MessageStore extends SQLiteOpenHelper {
      * @return Cursor of Message items based on database items matching conditions
      */
     public Cursor getMessagesContainingCursor(String message, boolean getDeleted, boolean getReplies, int limit){
-        if(message == null) message = "";
-        message = Utils.makeTextSafeForSQL(message);
-
         SQLiteDatabase db = getWritableDatabase();
         if(db != null) {
-
-            String likeQuery ="";
-
-            String messageNoSpace = message.replaceAll("\\s","");
-
-            if(message.length() == 0 || messageNoSpace.length() == 0) likeQuery =  (COL_MESSAGE + " LIKE '%" + message + "%'");
-
-            if(likeQuery.length() == 0){
-                message = message.replaceAll("[\n\"]", " ");
-
-                while(message.charAt(0) == ' '){
-                    message = message.substring(1);
-                }
-
-                String[] words = message.split("\\s");
-
-                for(int i=0; i<words.length; i++){
-                    if(words[i].length() > 0)
-                    {
-                        if (likeQuery.length() > 0)
-                        {
-                            likeQuery += " OR ";
-                        }
-                        likeQuery += " " + COL_MESSAGE + " LIKE '%" + words[i] + "%' ";
-                    }
-                }
-            }
-
-            String query = "SELECT * FROM " + TABLE +
-                    " WHERE (" + likeQuery + ")"
-                    + (!getReplies ? "AND ("+COL_BIGPARENT+ " IS NULL OR "+COL_BIGPARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+") AND "+COL_PARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+ "))" : "")
-                    + (!getDeleted ? " AND " + COL_DELETED + "=" + FALSE : "")
-                    + " "+sortOption
-                    + (limit > 0 ? " LIMIT " + limit : "")
-                    + ";";
-            return db.rawQuery(query, null);
+            String condition = (!getReplies ? " AND "+COL_ROOT+"="+TRUE : "")
+                    + (!getDeleted ? " AND " + COL_DELETED + "=" + FALSE : "");
+            return getMatchingCursor(db, SearchHelper.toMatchExpression(message), condition, limit);
         }
         return null;
     }
 
-    /** Return a cursor pointing to messages sorted according to current sort order and deleted state
+    /** Return a cursor pointing to favorite messages sorted according to current sort order and deleted state
      * @param getDeleted whether or not results should include deleted items
      * @param getReplies whether or not results should include items which are replies on other message
      * @param limit Maximum number of items to return or -1 for unlimited
      * @return Cursor of Message items based on database items matching conditions
      */
     public Cursor getFavoriteMessagesContainingCursor(String message, boolean getDeleted, boolean getReplies, int limit){
-        if(message == null) message = "";
-        message = Utils.makeTextSafeForSQL(message);
-
         SQLiteDatabase db = getWritableDatabase();
         if(db != null) {
+            String condition = " AND "+COL_FAVIRITE+"="+TRUE
+                    + (!getReplies ? " AND "+COL_ROOT+"="+TRUE : "")
+                    + (!getDeleted ? " AND " + COL_DELETED + "=" + FALSE : "");
+            return getMatchingCursor(db, SearchHelper.toMatchExpression(message), condition, limit);
+        }
+        return null;
+    }
 
-            String likeQuery ="";
-
-            String messageNoSpace = message.replaceAll("\\s","");
-
-            if(message.length() == 0 || messageNoSpace.length() == 0) likeQuery =  (COL_MESSAGE + " LIKE '%" + message + "%'");
+    /** Return a cursor pointing to messages matching the full text search expression, most
+     * relevant first and then by the current sort order. If no search expression is supplied all
+     * the messages matching the condition are returned.
+     * @param matchExpression full text search expression as returned by SearchHelper.toMatchExpression or null
+     * @param condition additional conditions, each starting with AND
+     * @param limit Maximum number of items to return or -1 for unlimited
+     */
+    private Cursor getMatchingCursor(SQLiteDatabase db, String matchExpression, String condition, int limit){
+        if(matchExpression == null){
+            return db.rawQuery("SELECT *, 0 AS " + COL_RELEVANCE + " FROM " + TABLE
+                    + " WHERE 1" + condition
+                    + " " + sortOption
+                    + (limit > 0 ? " LIMIT " + limit : "")
+                    + ";", null);
+        }
+        return db.rawQuery("SELECT " + TABLE + ".*, " + RELEVANCE_EXPRESSION + " AS " + COL_RELEVANCE
+                + " FROM " + TABLE + " JOIN " + TABLE_FTS + " ON " + TABLE + "." + COL_ROWID + "=" + TABLE_FTS + "." + COL_FTS_DOCID
+                + " WHERE " + TABLE_FTS + " MATCH ?" + condition
+                + " ORDER BY " + COL_RELEVANCE + " DESC," + sortOrder
+                + (limit > 0 ? " LIMIT " + limit : "")
+                + ";", new String[]{matchExpression});
+    }
 
-            if(likeQuery.length() == 0){
-                message = message.replaceAll("[\n\"]", " ");
+    /** Return an SQL condition selecting the messages matching the supplied search text using the
+     * full text index, or null if the text holds nothing to search for. The condition holds a
+     * single ? to be bound to SearchHelper.toMatchExpression(text).
+     */
+    public static String getMatchCondition(String text){
+        if(SearchHelper.toMatchExpression(text) == null) return null;
+        return COL_ROWID + " IN (SELECT " + COL_FTS_DOCID + " FROM " + TABLE_FTS + " WHERE " + TABLE_FTS + " MATCH ?)";
+    }
 
-                while(message.charAt(0) == ' '){
-                    message = message.substring(1);
-                }
+    /** Return an SQL condition selecting the messages tagged with the supplied hashtag, or with
+     * a hashtag starting with it, as a range scan of the hashtag index. Like the text search a
+     * partly typed tag already finds its messages.
+     * @param hashtag the hashtag including its leading #, an empty one selects every tagged message
+     */
+    public static String getHashtagCondition(String hashtag){
+        String prefix = hashtag != null ? normalizeHashtag(hashtag) : "";
+        if(prefix.isEmpty()){
+            return COL_ROWID + " IN (SELECT " + COL_HASHTAG_MESSAGE + " FROM " + TABLE_HASHTAGS + ")";
+        }
+        //the first string sorting after all the strings starting with the prefix
+        String prefixEnd = prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+        return COL_ROWID + " IN (SELECT " + COL_HASHTAG_MESSAGE + " FROM " + TABLE_HASHTAGS
+                + " WHERE " + COL_HASHTAG_TAG + ">=" + DatabaseUtils.sqlEscapeString(prefix)
+                + " AND " + COL_HASHTAG_TAG + "<" + DatabaseUtils.sqlEscapeString(prefixEnd) + ")";
+    }
 
-                String[] words = message.split("\\s");
+    /** Return the hashtags used by the most messages added within the supplied trending window,
+     * most used first.
+     * @param window one of TRENDING_DAY or TRENDING_WEEK
+     * @param limit Maximum number of hashtags to return
+     * @return map of hashtag to the number of messages using it, in trending order
+     */
+    public Map<String, Long> getTrendingHashtags(long window, int limit){
+        Map<String, Long> trending = new LinkedHashMap<>();
+        SQLiteDatabase db = getReadableDatabase();
+        if(db == null || limit <= 0) return trending;
 
-                for(int i=0; i<words.length; i++){
-                    if(words[i].length() > 0) {
-                        if (likeQuery.length() > 0) {
-                            likeQuery += " OR ";
-                        }
+        Cursor cursor = db.rawQuery("SELECT " + COL_HASHTAG_TAG + "," + COL_HASHTAG_COUNT + " FROM " + TABLE_HASHTAG_COUNTS
+                + " WHERE " + COL_HASHTAG_COUNT_WINDOW + "=" + window + " AND " + COL_HASHTAG_COUNT + ">0"
+                + " ORDER BY " + COL_HASHTAG_COUNT + " DESC LIMIT " + limit + ";", null);
+        try {
+            while (cursor.moveToNext()) {
+                trending.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return trending;
+    }
 
-                        likeQuery += " " + COL_MESSAGE + " LIKE '%" + words[i] + "%' ";
-                    }
+    /** Slide the trending windows up to the current time, removing from the trending counts the
+     * hashtags of the buckets which left each window. Should be called at least every
+     * HASHTAG_BUCKET for the counts to stay accurate.
+     */
+    public void advanceTrendingWindows(){
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db == null) return null;
+
+                long now = System.currentTimeMillis();
+                for(long window : TRENDING_WINDOWS){
+                    long cutoff = statements.queryForLong(-1, "SELECT " + COL_HASHTAG_WINDOW_CUTOFF + " FROM " + TABLE_HASHTAG_WINDOWS
+                            + " WHERE " + COL_HASHTAG_COUNT_WINDOW + "=" + window + ";");
+                    long newCutoff = hashtagBucket(now - window);
+                    if(cutoff == -1 || newCutoff <= cutoff) continue;
+
+                    String expired = " FROM " + TABLE_HASHTAGS + " WHERE " + COL_HASHTAG_BUCKET + ">=" + cutoff + " AND " + COL_HASHTAG_BUCKET + "<" + newCutoff;
+                    db.execSQL("UPDATE " + TABLE_HASHTAG_COUNTS + " SET " + COL_HASHTAG_COUNT + "=" + COL_HASHTAG_COUNT
+                            + "-(SELECT COUNT(*)" + expired + " AND " + TABLE_HASHTAGS + "." + COL_HASHTAG_TAG + "=" + TABLE_HASHTAG_COUNTS + "." + COL_HASHTAG_TAG + ")"
+                            + " WHERE " + COL_HASHTAG_COUNT_WINDOW + "=" + window
+                            + " AND " + COL_HASHTAG_TAG + " IN (SELECT " + COL_HASHTAG_TAG + expired + ");");
+                    db.execSQL("DELETE FROM " + TABLE_HASHTAG_COUNTS + " WHERE " + COL_HASHTAG_COUNT_WINDOW + "=" + window
+                            + " AND " + COL_HASHTAG_COUNT + "<=0;");
+                    db.execSQL("UPDATE " + TABLE_HASHTAG_WINDOWS + " SET " + COL_HASHTAG_WINDOW_CUTOFF + "=" + newCutoff
+                            + " WHERE " + COL_HASHTAG_COUNT_WINDOW + "=" + window + ";");
                 }
+                return null;
             }
-
-            String query = "SELECT * FROM " + TABLE +
-                    " WHERE "+COL_FAVIRITE+"="+TRUE+" AND ("+ likeQuery+")"
-                    + (!getReplies ? "AND ("+COL_BIGPARENT+ " IS NULL OR "+COL_BIGPARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+") AND "+COL_PARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+ "))" : "")
-                    + (!getDeleted ? " AND " + COL_DELETED + "=" + FALSE : "")
-                    + " "+sortOption
-                    + (limit > 0 ? " LIMIT " + limit : "")
-                    + ";";
-            return db.rawQuery(query, null);
-        }
-        return null;
+        });
     }
 
     /** Return an array of messages sorted by according their priority and deleted state
@@ -394,151 +1343,392 @@ public class MessageStore extends SQLiteOpenHelper {
         return new ArrayList<>();
     }
 
-    /** Return a single message matching supplied text or null if no match can be found.
-     * @param getDeleted whether or not results should include deleted items
-     * @return A Message item based on database item matching conditions or null
-     */
-    private Cursor getMessageCursor(String message, boolean getDeleted) throws IllegalArgumentException{
+    /** return if message exists in database and is not in removed state **/
+    public boolean contains(String message){
         if(message == null || message.isEmpty()) throw new IllegalArgumentException("Message cannot be empty or null ["+message+"].");
+        return statements.queryForLong(0, "SELECT COUNT(*) FROM " + TABLE + " WHERE " + COL_HASH + "=? AND " + COL_DELETED + "=" + FALSE + ";", hashOf(message)) > 0;
+    }
 
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            String query = "SELECT * FROM " + TABLE + " WHERE " + COL_MESSAGE + "='" + Utils.makeTextSafeForSQL(message) + "'"
-                    +(!getDeleted ? " AND "+COL_DELETED+"="+FALSE : "")
-                    +" LIMIT 1;";
-            return db.rawQuery(query, null);
-        }
-        return null;
+    /** return if message exists in database, even if is in removed state or was purged after being removed **/
+    public boolean containsOrRemoved(String message){
+        if(message == null || message.isEmpty()) throw new IllegalArgumentException("Message cannot be empty or null ["+message+"].");
+        String hash = hashOf(message);
+        return statements.queryForLong(0, "SELECT (SELECT COUNT(*) FROM " + TABLE + " WHERE " + COL_HASH + "=?)"
+                + "+(SELECT COUNT(*) FROM " + TABLE_TOMBSTONES + " WHERE " + COL_HASH + "=?);", hash, hash) > 0;
     }
 
-    /** Return a single message matching supplied text or null if no match can be found.
-     * @param getDeleted whether or not results should include deleted items
-     * @return A Message item based on database item matching conditions or null
+    /** return the message in position K from the database. K position is calculated
+     * after sorting results based on trust. removed messages do not count.
+     * @param position position of the message to be returned
+     * @return Message in the K position based on priority or null if position too high
      */
-    private MurmurMessage getMessage(String message, boolean getDeleted) throws IllegalArgumentException{
-        if(message == null || message.isEmpty()) throw new IllegalArgumentException("Message cannot be empty or null ["+message+"].");
+    public MurmurMessage getKthMessage(int position){
+        String messageId = statements.queryForString("SELECT " + COL_MESSAGE_ID + " FROM " + TABLE
+                + " WHERE " + COL_ROOT + "=" + TRUE + " AND " + COL_DELETED + "=" + FALSE
+                + " " + sortOption + " LIMIT 1 OFFSET ?;", position);
+        return messageId != null ? getMessage(messageId) : null;
+    }
 
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            Cursor cursor = getMessageCursor(message, getDeleted);
-            if(cursor.getCount() > 0){
-                MurmurMessage result = convertToMessages(cursor).get(0);
-                cursor.close();
-                return result;
-            }
+    /** return the live message with the supplied id, or null if no such message exists. Messages are
+     * served from the message cache when possible.
+     */
+    public MurmurMessage getMessage(String messageId){
+        if(messageId == null) return null;
+
+        MurmurMessage cached = cache.get(messageId, getStoreVersion());
+        if(cached != null) return cached;
+
+        return readThrough(COL_MESSAGE_ID + "=? AND " + COL_DELETED + "=" + FALSE, messageId);
+    }
+
+    /** query a single message, caching it if it is live
+     * @param selection the condition selecting the message, with a single ? placeholder
+     * @param arg the value bound to the placeholder
+     * @return the message or null if no message matches the selection
+     */
+    private MurmurMessage readThrough(String selection, String arg){
+        SQLiteDatabase db = getReadableDatabase();
+        if(db == null) return null;
+
+        long generation = cache.getGeneration();
+        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE + " WHERE " + selection + " LIMIT 1;", new String[]{arg});
+        try {
+            if(!cursor.moveToFirst()) return null;
+
+            boolean live = cursor.getInt(cursor.getColumnIndex(COL_DELETED)) == FALSE;
+            String hash = cursor.getString(cursor.getColumnIndex(COL_HASH));
+            MurmurMessage message = new MessageIterator(cursor).next();
+            if(live) cache.put(message, hash, generation, getStoreVersion());
+            return message;
+        } finally {
             cursor.close();
         }
-        return null;
     }
 
-    /** return if message exists in database and is not in removed state **/
-    public boolean contains(String message){
-        return getMessage(message, false) != null;
+    /** change the memory budget of the message cache
+     * @param budget estimated memory in bytes the cached messages may use
+     */
+    public void setCacheBudget(int budget){
+        cache.setBudget(budget);
     }
 
-    /** return if message exists in database, even if is in removed state **/
-    public boolean containsOrRemoved(String message){
-        return getMessage(message, true) != null;
+    /** return the number of message lookups served from the message cache */
+    public int getCacheHitCount(){
+        return cache.getHitCount();
     }
 
-    /** return the message in position K from the database. K position is calculated
-     * after sorting results based on trust. removed messages do not count.
-     * @param position position of the message to be returned
-     * @return Message in the K position based on priority or null if position too high
+    /** return the number of message lookups which had to query the database */
+    public int getCacheMissCount(){
+        return cache.getMissCount();
+    }
+
+    /**
+     * Adds the given message with the given priority.
+     *
+     * @param message The message to add.
+     * @param trust The trust to associate with the message. The trust must
+     *                 be [0,1].
+     * @param priority The priority to associate with the message.
+     * @param pseudonym The senders pseudonym.
+     * @param enforceLimit whether or not the trust should be streamlined to the limits
+     *                     if set to false and value is outside of limit, an exception is thrown
+     * @return Returns true if the message was added. If message already exists, update its values
      */
-    public MurmurMessage getKthMessage(int position){
-        List<MurmurMessage> result = getMessages(false, false, position + 1);
-        return (result.size() > position) ? result.get(position) : null;
+    public boolean addMessage(final Context context, final String messageId, final String message, final double trust, final double priority, final String pseudonym, final long timestamp, final boolean enforceLimit, final long timebound, final Location location, final String parent, final boolean isRead, final int minContactsHop, final int hop, final String exchange, final String bigparent){
+        if(!isValidMessageId(messageId) || !isValidMessageId(parent) || !isValidMessageId(bigparent)){
+            log.warn("Refusing message with invalid id [" + messageId + "] parent [" + parent + "] big parent [" + bigparent + "]");
+            return false;
+        }
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    double messageTrust = trust;
+                    if (enforceLimit) {
+                        messageTrust = streamlineTrust(trust);
+                    } else {
+                        checkTrust(trust);
+                    }
+
+                    enforceFeedSize(db, SecurityManager.getCurrentProfile(context), 1);
+
+                    //update inserted message in case a better big parent can be found locally
+                    String messageBigparent = bigparent;
+                    Cursor cursr = db.rawQuery("SELECT "+COL_BIGPARENT+" FROM "+TABLE+" WHERE "+COL_MESSAGE_ID+"='"+bigparent+"' limit 1;",null);
+                    if(cursr.getCount() > 0){
+                        cursr.moveToFirst();
+                        String tempBigparent = cursr.getString(cursr.getColumnIndex(COL_BIGPARENT));
+                        if(tempBigparent != null) messageBigparent = tempBigparent;
+                    }
+                    cursr.close();
+
+                    // update descendants with this message's big parent
+                    if(messageBigparent != null && messageId != null) updateDescendantsBigparent(messageId, messageBigparent);
+
+                    String text = message.length() > MAX_MESSAGE_SIZE ? message.substring(0, MAX_MESSAGE_SIZE) : message;
+
+                    Calendar tempCal = Calendar.getInstance();
+                    tempCal.setTimeInMillis(timestamp);
+                    Calendar reducedTimestamp = Utils.reduceCalendarMin(tempCal);
+
+                    //the user adding a purged message again restores it
+                    statements.executeUpdateDelete("DELETE FROM " + TABLE_TOMBSTONES + " WHERE " + COL_HASH + "=?;", hashOf(text));
+                    if(containsOrRemoved(text)) {
+                        db.execSQL("UPDATE "+TABLE+" SET "
+                                +COL_TRUST+"="+messageTrust+","
+                                +COL_DELETED+"="+FALSE+","
+                                + COL_LIKES +"="+priority+","
+                                +COL_PSEUDONYM+"='"+pseudonym+"',"
+                                +COL_BIGPARENT+"='"+messageBigparent+"',"
+                                +COL_PARENT+"='"+parent+"',"
+                                + COL_READ +"="+(isRead ? TRUE : FALSE)+","
+                                + ((location != null) ? (COL_LATLONG+"='"+location.getLatitude()+" "+location.getLongitude()+"',") : "")
+                                +COL_TIMESTAMP+"="+reducedTimestamp.getTimeInMillis()+","
+                                + ((exchange != null) ? (COL_EXCHANGE+"="+exchange+",") : "")
+                                +COL_EXPIRE+"="+timebound
+                                +" WHERE " + COL_HASH + "=?;", new Object[]{hashOf(text)});
+                        //restore the hashtags in case the message was marked as deleted
+                        long rowId = statements.queryForLong(-1, "SELECT " + COL_ROWID + " FROM " + TABLE + " WHERE " + COL_HASH + "=?;", hashOf(text));
+                        if(rowId != -1) indexHashtags(rowId, text, hashtagBucket(System.currentTimeMillis()));
+                        log.debug( "Message was already in store and was simply updated.");
+                    } else {
+                        ContentValues content = new ContentValues();
+                        content.put(COL_MESSAGE_ID, messageId);
+                        content.put(COL_MESSAGE, text);
+                        content.put(COL_HASH, hashOf(text));
+                        content.put(COL_TRUST, messageTrust);
+                        content.put(COL_LIKES, priority);
+                        if(location != null) content.put(COL_LATLONG, location.getLatitude()+" "+location.getLongitude());
+                        content.put(COL_PSEUDONYM, pseudonym);
+                        content.put(COL_EXPIRE, timebound);
+                        content.put(COL_TIMESTAMP, reducedTimestamp.getTimeInMillis());
+                        content.put(COL_BIGPARENT, messageBigparent);
+                        content.put(COL_PARENT, parent);
+                        content.put(COL_READ, isRead ? TRUE : FALSE);
+                        if(exchange != null) content.put(COL_EXCHANGE, exchange);
+                        content.put(COL_MIN_CONTACTS_FOR_HOP, minContactsHop);
+                        content.put(COL_HOP, hop);
+                        long rowId = db.insert(TABLE, null, content);
+                        if(rowId != -1) indexHashtags(rowId, text, hashtagBucket(System.currentTimeMillis()));
+                        log.debug( "Message added to store.");
+                    }
+                    cache.invalidateAll();
+                    return true;
+                }
+                log.debug( "Message not added to store, either message or database is null. ["+message+"]");
+                return false;
+            }
+        });
+    }
+
+    /** Mark messages as deleted, in the order of the profile's eviction policy, so that after
+     * adding the specified amount of new messages the store will not hold more than the profile's
+     * feed size of non deleted messages.
+     *
+     * @param profile profile holding the feed size, 0 or less for unlimited, and eviction policy
+     * @param incoming number of messages about to be added
+     */
+    private void enforceFeedSize(SQLiteDatabase db, SecurityProfile profile, int incoming){
+        int feedSize = profile.getFeedSize();
+        if(feedSize <= 0) return;
+
+        long overflow = getCounter(db, COUNTER_LIVE) + incoming - feedSize;
+        if (overflow > 0) {
+            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_ROWID +
+                    " IN (SELECT " + COL_ROWID + " FROM " + TABLE + " WHERE " + COL_DELETED + "=" + FALSE + " ORDER BY " + profile.getEvictionPolicy().order + " LIMIT " + overflow + ");");
+        }
+    }
+
+    /** return the current value of the named counter from the counters table */
+    private long getCounter(SQLiteDatabase db, String name){
+        try {
+            return DatabaseUtils.longForQuery(db, "SELECT " + COL_COUNTER_VALUE + " FROM " + TABLE_COUNTERS
+                    + " WHERE " + COL_COUNTER_NAME + "=?;", new String[]{name});
+        } catch (SQLiteDoneException e){
+            return 0;
+        }
     }
 
     /**
-     * Adds the given message with the given priority.
+     * Integrate the messages received in an exchange into the store. Messages already in the
+     * store (even if removed) only have their trust updated, the rest are added as unread.
+     * The whole batch is written in a single transaction using precompiled statements.
      *
-     * @param message The message to add.
-     * @param trust The trust to associate with the message. The trust must
-     *                 be [0,1].
-     * @param priority The priority to associate with the message.
-     * @param pseudonym The senders pseudonym.
-     * @param enforceLimit whether or not the trust should be streamlined to the limits
-     *                     if set to false and value is outside of limit, an exception is thrown
-     * @return Returns true if the message was added. If message already exists, update its values
+     * @param messages the messages received from the remote peer
+     * @param exchangeId identifier of the exchange the messages were received in
+     * @param friendOverlap number of friends in common with the remote peer
+     * @param myFriendCount number of friends in the local friend store
+     * @return the outcome of each message, in the same order as the supplied list
      */
-    public boolean addMessage(Context context, String messageId, String message, double trust, double priority, String pseudonym, long timestamp,boolean enforceLimit, long timebound, Location location, String parent, boolean isRead, int minContactsHop, int hop, String exchange, String bigparent){
+    public List<IngestResult> ingestExchange(final Context context, final List<MurmurMessage> messages, final String exchangeId, final int friendOverlap, final int myFriendCount){
+        return write(new Callable<List<IngestResult>>() {
+            @Override
+            public List<IngestResult> call() {
+                List<IngestResult> results = new ArrayList<>();
+                if(messages == null || messages.isEmpty()) return results;
+
+                SQLiteDatabase db = getWritableDatabase();
+                if(db == null){
+                    for(int i=0; i<messages.size(); i++){
+                        results.add(IngestResult.IGNORED);
+                    }
+                    return results;
+                }
 
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            if (enforceLimit) {
-                trust = streamlineTrust(trust);
-            } else {
-                checkTrust(trust);
-            }
+                SQLiteStatement selectTrust = db.compileStatement("SELECT " + COL_TRUST + " FROM " + TABLE + " WHERE " + COL_HASH + "=?;");
+                SQLiteStatement selectTombstone = db.compileStatement("SELECT COUNT(*) FROM " + TABLE_TOMBSTONES + " WHERE " + COL_HASH + "=?;");
+                SQLiteStatement updateTrust = db.compileStatement("UPDATE " + TABLE + " SET " + COL_TRUST + "=? WHERE " + COL_HASH + "=?;");
+                SQLiteStatement selectBigparent = db.compileStatement("SELECT " + COL_BIGPARENT + " FROM " + TABLE + " WHERE " + COL_MESSAGE_ID + "=? LIMIT 1;");
+                SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE + " ("
+                        + COL_MESSAGE_ID + "," + COL_MESSAGE + "," + COL_HASH + "," + COL_TRUST + "," + COL_LIKES + ","
+                        + COL_PSEUDONYM + "," + COL_LATLONG + "," + COL_EXPIRE + "," + COL_TIMESTAMP + ","
+                        + COL_BIGPARENT + "," + COL_PARENT + "," + COL_READ + "," + COL_EXCHANGE + ","
+                        + COL_MIN_CONTACTS_FOR_HOP + "," + COL_HOP
+                        + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?);");
+
+                int added = 0;
+                long bucket = hashtagBucket(System.currentTimeMillis());
+                db.beginTransaction();
+                try {
+                    for (MurmurMessage message : messages) {
+                        if (message == null || message.text == null || message.text.isEmpty()) {
+                            results.add(IngestResult.IGNORED);
+                            continue;
+                        }
+                        if (!isValidMessageId(message.messageid) || !isValidMessageId(message.parent) || !isValidMessageId(message.bigparent)) {
+                            log.warn("Ignoring message with invalid id [" + message.messageid + "] received in exchange");
+                            results.add(IngestResult.IGNORED);
+                            continue;
+                        }
 
-            if(SecurityManager.getCurrentProfile(context).getFeedSize() > 0) {
-                Cursor cursor = db.rawQuery("SELECT " + COL_ROWID + " FROM " + TABLE + " WHERE " + COL_DELETED + "=" + FALSE + " ORDER BY " + COL_ROWID + " ASC;", null);
-                int overflow = cursor.getCount() - SecurityManager.getCurrentProfile(context).getFeedSize();
-                cursor.close();
-                if (overflow >= 0) {
-                    db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_ROWID +
-                            " IN (SELECT " + COL_ROWID + " FROM " + TABLE + " WHERE " + COL_DELETED + "=" + FALSE + " ORDER BY " + COL_ROWID + " ASC LIMIT " + (1 + overflow) + ");");
+                        String hash = hashOf(message.text);
+                        Double stored = null;
+                        selectTrust.bindString(1, hash);
+                        try {
+                            stored = Double.parseDouble(selectTrust.simpleQueryForString());
+                        } catch (SQLiteDoneException e) {
+                            //not in store
+                        }
+                        double remote = message.trust != null ? message.trust : MIN_TRUST;
+                        double newTrust = streamlineTrust(Exchange.newPriority(remote, stored != null ? stored : 0, friendOverlap, myFriendCount));
+
+                        if (stored != null) {
+                            //update existing message trust even if marked as removed by user
+                            updateTrust.bindDouble(1, newTrust);
+                            updateTrust.bindString(2, hash);
+                            updateTrust.executeUpdateDelete();
+                            results.add(IngestResult.UPDATED);
+                            continue;
+                        }
+
+                        selectTombstone.bindString(1, hash);
+                        if (selectTombstone.simpleQueryForLong() > 0) {
+                            //removed by user and purged since
+                            results.add(IngestResult.IGNORED);
+                            continue;
+                        }
+
+                        //update inserted message in case a better big parent can be found locally
+                        String bigparent = message.bigparent;
+                        bindStringOrNull(selectBigparent, 1, bigparent);
+                        try {
+                            String tempBigparent = selectBigparent.simpleQueryForString();
+                            if (tempBigparent != null) bigparent = tempBigparent;
+                        } catch (SQLiteDoneException e) {
+                            //big parent is not in store
+                        }
+
+                        // update descendants with this message's big parent
+                        if (bigparent != null && message.messageid != null) {
+                            updateDescendantsBigparent(message.messageid, bigparent);
+                        }
+
+                        String text = message.text.length() > MAX_MESSAGE_SIZE ? message.text.substring(0, MAX_MESSAGE_SIZE) : message.text;
+                        Calendar tempCal = Calendar.getInstance();
+                        tempCal.setTimeInMillis(message.timestamp);
+                        Location location = message.getLocation();
+
+                        insert.clearBindings();
+                        bindStringOrNull(insert, 1, message.messageid);
+                        insert.bindString(2, text);
+                        insert.bindString(3, hash);
+                        insert.bindDouble(4, newTrust);
+                        insert.bindLong(5, message.priority != null ? message.priority : 0);
+                        bindStringOrNull(insert, 6, message.pseudonym);
+                        bindStringOrNull(insert, 7, location != null ? location.getLatitude() + " " + location.getLongitude() : null);
+                        insert.bindLong(8, message.timebound);
+                        insert.bindLong(9, Utils.reduceCalendarMin(tempCal).getTimeInMillis());
+                        bindStringOrNull(insert, 10, bigparent);
+                        bindStringOrNull(insert, 11, message.parent);
+                        insert.bindLong(12, FALSE);
+                        bindStringOrNull(insert, 13, exchangeId);
+                        insert.bindLong(14, message.contacts_hop);
+                        insert.bindLong(15, message.hop);
+
+                        long rowId = insert.executeInsert();
+                        if (rowId != -1) {
+                            indexHashtags(rowId, text, bucket);
+                            added++;
+                            results.add(IngestResult.NEW);
+                        } else {
+                            log.error("Failed to insert message received in exchange [" + message.text + "]");
+                            results.add(IngestResult.IGNORED);
+                        }
+                    }
+
+                    enforceFeedSize(db, SecurityManager.getCurrentProfile(context), 0);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    cache.invalidateAll();
+                    selectTrust.close();
+                    selectTombstone.close();
+                    updateTrust.close();
+                    selectBigparent.close();
+                    insert.close();
                 }
-            }
 
-            //update inserted message in case a better big parent can be found locally
-            Cursor cursr = db.rawQuery("SELECT "+COL_BIGPARENT+" FROM "+TABLE+" WHERE "+COL_MESSAGE_ID+"='"+bigparent+"' limit 1;",null);
-            if(cursr.getCount() > 0){
-                cursr.moveToFirst();
-                String tempBigparent = cursr.getString(cursr.getColumnIndex(COL_BIGPARENT));
-                if(tempBigparent != null) bigparent = tempBigparent;
+                log.debug("Ingested " + messages.size() + " messages from exchange, " + added + " of them new.");
+                return results;
             }
-            cursr.close();
-
-            // update descendants with this message's big parent
-            if(bigparent != null) db.execSQL("UPDATE "+TABLE+" SET "+COL_BIGPARENT+"='"+bigparent+"' WHERE "+COL_PARENT+"='"+messageId+"';");
-
-            if(message.length() > MAX_MESSAGE_SIZE) message = message.substring(0, MAX_MESSAGE_SIZE);
-
-            Calendar tempCal = Calendar.getInstance();
-            tempCal.setTimeInMillis(timestamp);
-            Calendar reducedTimestamp = Utils.reduceCalendarMin(tempCal);
-
-            if(containsOrRemoved(message)) {
-                db.execSQL("UPDATE "+TABLE+" SET "
-                        +COL_TRUST+"="+trust+","
-                        +COL_DELETED+"="+FALSE+","
-                        + COL_LIKES +"="+priority+","
-                        +COL_PSEUDONYM+"='"+pseudonym+"',"
-                        +COL_BIGPARENT+"='"+bigparent+"',"
-                        +COL_PARENT+"='"+parent+"',"
-                        + COL_READ +"="+(isRead ? TRUE : FALSE)+","
-                        + ((location != null) ? (COL_LATLONG+"='"+location.getLatitude()+" "+location.getLongitude()+"',") : "")
-                        +COL_TIMESTAMP+"="+reducedTimestamp.getTimeInMillis()+","
-                        + ((exchange != null) ? (COL_EXCHANGE+"="+exchange+",") : "")
-                        +COL_EXPIRE+"="+timebound
-                        +" WHERE " + COL_MESSAGE + "='" + message + "';");
-                log.debug( "Message was already in store and was simply updated.");
-            } else {
-                ContentValues content = new ContentValues();
-                content.put(COL_MESSAGE_ID, messageId);
-                content.put(COL_MESSAGE, message);
-                content.put(COL_TRUST, trust);
-                content.put(COL_LIKES, priority);
-                if(location != null) content.put(COL_LATLONG, location.getLatitude()+" "+location.getLongitude());
-                content.put(COL_PSEUDONYM, pseudonym);
-                content.put(COL_EXPIRE, timebound);
-                content.put(COL_TIMESTAMP, reducedTimestamp.getTimeInMillis());
-                content.put(COL_BIGPARENT, bigparent);
-                content.put(COL_PARENT, parent);
-                content.put(COL_READ, isRead ? TRUE : FALSE);
-                if(exchange != null) content.put(COL_EXCHANGE, exchange);
-                content.put(COL_MIN_CONTACTS_FOR_HOP, minContactsHop);
-                content.put(COL_HOP, hop);
-                db.insert(TABLE, null, content);
-                log.debug( "Message added to store.");
+        });
+    }
+
+    /**
+     * Integrate the messages received in an exchange as ingestExchange does and record the peer
+     * watermark so the next exchange with the peer only sends the messages changed since.
+     *
+     * @param peerAddress the bluetooth address of the remote peer
+     * @param sentSequence the sequence number up to which all the changes were sent to the peer
+     *                     in this exchange, or -1 if the sent messages were truncated
+     * @see #getPeerWatermark(String)
+     */
+    public List<IngestResult> ingestExchange(final Context context, final List<MurmurMessage> messages, final String exchangeId, final int friendOverlap, final int myFriendCount,
+                                             final String peerAddress, final long sentSequence){
+        return write(new Callable<List<IngestResult>>() {
+            @Override
+            public List<IngestResult> call() {
+                SQLiteDatabase db = getWritableDatabase();
+                long before = getCounter(db, COUNTER_SEQUENCE);
+                List<IngestResult> results = ingestExchange(context, messages, exchangeId, friendOverlap, myFriendCount);
+                if(peerAddress != null && sentSequence >= 0) {
+                    //the received messages are known to the peer, unless other changes came in
+                    // between they are skipped along with the sent ones
+                    setPeerWatermark(peerAddress, sentSequence >= before ? getCounter(db, COUNTER_SEQUENCE) : sentSequence);
+                }
+                return results;
             }
-            return true;
+        });
+    }
+
+    /** bind the supplied value to a compiled statement or bind null if value is null */
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value){
+        if(value != null){
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
         }
-        log.debug( "Message not added to store, either message or database is null. ["+message+"]");
-        return false;
     }
 
     /**
@@ -549,14 +1739,21 @@ public class MessageStore extends SQLiteOpenHelper {
      * @return Returns true if the message was removed. If the message was not
      * found, returns false.
      */
-    public boolean removeMessage(String message){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_MESSAGE + "='" + message + "';");
-            return  true;
-        }
-        log.debug( "Message not added to store, either message or database is null. ["+message+"]");
-        return false;
+    public boolean removeMessage(final String message){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    String hash = hashOf(message);
+                    statements.executeUpdateDelete("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_HASH + "=?;", hash);
+                    cache.invalidate(hash);
+                    return  true;
+                }
+                log.debug( "Message not added to store, either message or database is null. ["+message+"]");
+                return false;
+            }
+        });
     }
 
     /**
@@ -567,13 +1764,19 @@ public class MessageStore extends SQLiteOpenHelper {
      * found, returns false.
      */
     public boolean removeCheckedMessage(){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_CHECKED + "=" + TRUE + ";");
-            return  true;
-        }
-        log.debug( "Message not added to store, database is null.");
-        return false;
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null){
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_CHECKED + "=" + TRUE + ";");
+                    cache.invalidateAll();
+                    return  true;
+                }
+                log.debug( "Message not added to store, database is null.");
+                return false;
+            }
+        });
     }
 
     /**
@@ -582,14 +1785,21 @@ public class MessageStore extends SQLiteOpenHelper {
      * @param message The message to remove.
      * @return Returns true if the message was removed or not found, false otherwise
      */
-    public boolean deleteMessage(String message) {
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null && message != null) {
-            db.execSQL("DELETE FROM " + TABLE + " WHERE " + COL_MESSAGE + "='" + message + "';");
-            return true;
-        }
-        log.debug( "Message not deleted from store, either message or database is null. [" + message + "]");
-        return false;
+    public boolean deleteMessage(final String message){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if (db != null && message != null) {
+                    String hash = hashOf(message);
+                    statements.executeUpdateDelete("DELETE FROM " + TABLE + " WHERE " + COL_HASH + "=?;", hash);
+                    cache.invalidate(hash);
+                    return true;
+                }
+                log.debug( "Message not deleted from store, either message or database is null. [" + message + "]");
+                return false;
+            }
+        });
     }
 
     /** return the amount of items in the database.
@@ -598,32 +1808,20 @@ public class MessageStore extends SQLiteOpenHelper {
      * @return number of items in the database.
      */
     public long getMessageCount(boolean countDeleted, boolean countReplies){
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null){
-            String query = "";
-            if(!countDeleted) {
-                query += COL_DELETED + "=" + FALSE;
-                if(!countReplies)
-                    query += " AND ";
-            }
-            if(!countReplies)
-            {
-                query += "(" + COL_BIGPARENT + " IS NULL OR " + COL_BIGPARENT + " NOT IN (SELECT " + COL_MESSAGE_ID + " FROM " + TABLE + " WHERE " + COL_DELETED + "=" + FALSE + ") AND " + COL_PARENT + " NOT IN (SELECT " + COL_MESSAGE_ID + " FROM " + TABLE + " WHERE " + COL_DELETED + "=" + FALSE + "))";
-            }
-            return DatabaseUtils.queryNumEntries(db, TABLE, query);
+        MessageCounts current = getCounts();
+        if(countDeleted){
+            return countReplies ? current.total : current.roots;
         }
-        return 0;
+        return countReplies ? current.live : current.liveRoots;
     }
 
     /** return the trust of the given message or 0 if message not exists**/
     public double getTrust(String message){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            Cursor cursor = db.rawQuery("SELECT "+COL_TRUST+" FROM "+TABLE+" WHERE "+COL_MESSAGE+"='"+Utils.makeTextSafeForSQL(message)+"';", null);
-            if(cursor.getCount() > 0){
-                cursor.moveToFirst();
-                return cursor.getDouble(cursor.getColumnIndex(COL_TRUST));
-            }
+        if(message != null){
+            String hash = hashOf(message);
+            MurmurMessage result = cache.getByHash(hash, getStoreVersion());
+            if(result == null) result = readThrough(COL_HASH + "=?", hash);
+            if(result != null) return result.trust;
         }
         return 0;
     }
@@ -632,11 +1830,7 @@ public class MessageStore extends SQLiteOpenHelper {
     public double getPriority(String message){
         SQLiteDatabase db = getWritableDatabase();
         if(db != null && message != null){
-            Cursor cursor = db.rawQuery("SELECT "+ COL_LIKES +" FROM "+TABLE+" WHERE "+COL_MESSAGE+"='"+Utils.makeTextSafeForSQL(message)+"';", null);
-            if(cursor.getCount() > 0){
-                cursor.moveToFirst();
-                return cursor.getInt(cursor.getColumnIndex(COL_LIKES));
-            }
+            return statements.queryForLong(0, "SELECT "+ COL_LIKES +" FROM "+TABLE+" WHERE "+COL_HASH+"=?;", hashOf(message));
         }
         return 0;
     }
@@ -651,24 +1845,32 @@ public class MessageStore extends SQLiteOpenHelper {
      * @return True if the message was in the store (and its priority was changed),
      * false otherwise.
      */
-    public boolean updateMessage(String message, double trust, boolean enforceLimit/*, int likes*/) {
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            if(enforceLimit){
-                trust = streamlineTrust(trust);
-            } else {
-                checkTrust(trust);
+    public boolean updateMessage(final String message, final double trust, final boolean enforceLimit/*, int likes*/){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    double messageTrust = trust;
+                    if(enforceLimit){
+                        messageTrust = streamlineTrust(trust);
+                    } else {
+                        checkTrust(trust);
+                    }
+                    String hash = hashOf(message);
+                    statements.executeUpdateDelete("UPDATE "+TABLE+" SET "
+                                    +COL_TRUST+"=?"
+                                    //+COL_LIKES+"="+likes+","
+                            +" WHERE "+COL_HASH+"=?;", messageTrust, hash);
+                    cache.invalidate(hash);
+
+                    log.debug( "Message trust changed in the store.");
+                    return true;
+                }
+                log.debug( "Message was not edited, either message or database is null. ["+message+"]");
+                return false;
             }
-            db.execSQL("UPDATE "+TABLE+" SET "
-                            +COL_TRUST+"="+trust
-                            //+COL_LIKES+"="+likes+","
-                    +" WHERE "+COL_MESSAGE+"='"+Utils.makeTextSafeForSQL(message)+"';");
-
-            log.debug( "Message trust changed in the store.");
-            return true;
-        }
-        log.debug( "Message was not edited, either message or database is null. ["+message+"]");
-        return false;
+        });
     }
 
     /**
@@ -679,16 +1881,23 @@ public class MessageStore extends SQLiteOpenHelper {
      * @return True if the message was in the store (and its priority was changed),
      * false otherwise.
      */
-    public boolean updateMessage(String message, int priority) {
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            db.execSQL("UPDATE "+TABLE+" SET "+ COL_LIKES +"="+priority+" WHERE "+COL_MESSAGE+"='"+Utils.makeTextSafeForSQL(message)+"';");
-
-            log.debug("Message priority changed in the store.");
-            return true;
-        }
-        log.debug( "Message was not edited, either message or database is null. ["+message+"]");
-        return false;
+    public boolean updateMessage(final String message, final int priority){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    String hash = hashOf(message);
+                    statements.executeUpdateDelete("UPDATE "+TABLE+" SET "+ COL_LIKES +"=? WHERE "+COL_HASH+"=?;", priority, hash);
+                    cache.invalidate(hash);
+
+                    log.debug("Message priority changed in the store.");
+                    return true;
+                }
+                log.debug( "Message was not edited, either message or database is null. ["+message+"]");
+                return false;
+            }
+        });
     }
 
     /**
@@ -699,16 +1908,23 @@ public class MessageStore extends SQLiteOpenHelper {
      * @return True if the message was in the store (and its priority was changed),
      * false otherwise.
      */
-    public boolean updatePriority(String message, int priority) {
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            db.execSQL("UPDATE "+TABLE+" SET "+ COL_LIKES +"="+priority+" WHERE "+COL_MESSAGE+"='"+Utils.makeTextSafeForSQL(message)+"';");
-
-            log.debug("Message priority changed in the store.");
-            return true;
-        }
-        log.debug( "Message was not edited, either message or database is null. ["+message+"]");
-        return false;
+    public boolean updatePriority(final String message, final int priority){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    String hash = hashOf(message);
+                    statements.executeUpdateDelete("UPDATE "+TABLE+" SET "+ COL_LIKES +"=? WHERE "+COL_HASH+"=?;", priority, hash);
+                    cache.invalidate(hash);
+
+                    log.debug("Message priority changed in the store.");
+                    return true;
+                }
+                log.debug( "Message was not edited, either message or database is null. ["+message+"]");
+                return false;
+            }
+        });
     }
 
     /** Updating the priority of a message by either +1 or -1 and set the message state as liked or not liked
@@ -717,101 +1933,118 @@ public class MessageStore extends SQLiteOpenHelper {
      * @param like if to set the like status of the message to true or false
      * @return true if message was found and edited, false otherwise (false is also returned if message was already in the liked status
      */
-    public boolean likeMessage(String message, boolean like){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            int likedStatus = like ? FALSE : TRUE;
-            Cursor c = db.rawQuery("SELECT "+COL_LIKES+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+" AND "+COL_LIKED+"="+likedStatus+" AND "+COL_MESSAGE+" ='"+Utils.makeTextSafeForSQL(message)+"';",null);
-            c.moveToFirst();
-            if(c.getCount() > 0){
-                int likes = c.getInt(c.getColumnIndex(COL_LIKES)) + (like ? 1 : -1);
-                c.close();
-                likes = Math.max(0, likes);
-                db.execSQL("UPDATE "+TABLE+" SET "+COL_LIKED+"="+(like ? TRUE : FALSE)+","+COL_LIKES +"="+likes+" WHERE "+COL_DELETED+" ="+FALSE+" AND "+COL_LIKED+"="+likedStatus+" AND "+COL_MESSAGE+" ='"+Utils.makeTextSafeForSQL(message)+"';");
-                return true;
+    public boolean likeMessage(final String message, final boolean like){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    int likedStatus = like ? FALSE : TRUE;
+                    String hash = hashOf(message);
+                    int changed = statements.executeUpdateDelete("UPDATE "+TABLE+" SET "+COL_LIKED+"=?,"+COL_LIKES+"=MAX(0,"+COL_LIKES+"+?)"
+                            +" WHERE "+COL_HASH+"=? AND "+COL_DELETED+"="+FALSE+" AND "+COL_LIKED+"=?;",
+                            like ? TRUE : FALSE, like ? 1 : -1, hash, likedStatus);
+                    if(changed > 0){
+                        cache.invalidate(hash);
+                        return true;
+                    }
+                }
+                log.debug( "Message was not edited, either message or database is null. ["+message+"]");
+                return false;
             }
-        }
-        log.debug( "Message was not edited, either message or database is null. ["+message+"]");
-        return false;
+        });
     }
 
     /** set the favorite state of the specified message as true or false */
-    public boolean favoriteMessage(String message, boolean favorite){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_FAVIRITE + "=" + (favorite ? TRUE : FALSE) + " WHERE " + COL_DELETED + " =" + FALSE + " AND " + COL_MESSAGE + " ='" + Utils.makeTextSafeForSQL(message) + "';");
-            return true;
-        }
-        return false;
+    public boolean favoriteMessage(final String message, final boolean favorite){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    statements.executeUpdateDelete("UPDATE " + TABLE + " SET " + COL_FAVIRITE + "=? WHERE " + COL_HASH + "=? AND " + COL_DELETED + "=" + FALSE + ";", favorite ? TRUE : FALSE, hashOf(message));
+                    return true;
+                }
+                return false;
+            }
+        });
     }
 
     /** set the checked state of the specified message as true or false */
-    public boolean checkMessage(String message, boolean check){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_CHECKED + "=" + (check ? TRUE : FALSE) + " WHERE " + COL_DELETED + " =" + FALSE + " AND " + COL_MESSAGE + " ='" + Utils.makeTextSafeForSQL(message) + "';");
-            return true;
-        }
-        return false;
+    public boolean checkMessage(final String message, final boolean check){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    statements.executeUpdateDelete("UPDATE " + TABLE + " SET " + COL_CHECKED + "=? WHERE " + COL_HASH + "=? AND " + COL_DELETED + "=" + FALSE + ";", check ? TRUE : FALSE, hashOf(message));
+                    return true;
+                }
+                return false;
+            }
+        });
     }
 
     /** set the checked state of the all messages as true or false */
-    public boolean checkAllMessages(boolean check, boolean checkReplies){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            String parentOnly = " AND ("+COL_BIGPARENT+ " IS NULL OR "+COL_BIGPARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+") AND "+COL_PARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+ "))";
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_CHECKED + "=" + (check ? TRUE : FALSE) + " WHERE (" + COL_DELETED + " =" + FALSE + ") " + (checkReplies ? "" : parentOnly) + " ;");
-            return true;
-        }
-        return false;
+    public boolean checkAllMessages(final boolean check, final boolean checkReplies){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null){
+                    String parentOnly = " AND "+COL_ROOT+"="+TRUE;
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_CHECKED + "=" + (check ? TRUE : FALSE) + " WHERE (" + COL_DELETED + " =" + FALSE + ") " + (checkReplies ? "" : parentOnly) + " ;");
+                    return true;
+                }
+                return false;
+            }
+        });
     }
 
-    /** set the checked state of the all messages as true or false */
-    public boolean checkAllQueriedMessages(boolean check, String query){
-        if(query == null || query.length() == 0){
-            return checkAllMessages(check, false);
-        }
+    /** set the checked state of the all messages as true or false
+     * @param query conditions as returned by SearchHelper.searchToSQL
+     * @param queryArgs values bound to the ? of the conditions, or null
+     */
+    public boolean checkAllQueriedMessages(final boolean check, final String query, final String[] queryArgs){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if(query == null || query.length() == 0){
+                    return checkAllMessages(check, false);
+                }
 
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            String parentOnly = " AND ("+COL_BIGPARENT+ " IS NULL OR "+COL_BIGPARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+") AND "+COL_PARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+ "))";
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_CHECKED + "=" + (check ? TRUE : FALSE) + " WHERE " + COL_DELETED + " =" + FALSE + " " + query + parentOnly + ";");
-            return true;
-        }
-        return false;
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null){
+                    String parentOnly = " AND "+COL_ROOT+"="+TRUE;
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_CHECKED + "=" + (check ? TRUE : FALSE) + " WHERE " + COL_DELETED + " =" + FALSE + " " + query + parentOnly + ";",
+                            queryArgs != null ? queryArgs : new String[0]);
+                    return true;
+                }
+                return false;
+            }
+        });
     }
 
     /** set the checked state of the all messages as true or false */
-    public boolean checkAllMessagesContaining(boolean check, String message){
-        if(message == null || message.length() == 0){
-            return checkAllMessages(check, false);
-        }
-        message = Utils.makeTextSafeForSQL(message);
-
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-
-            String likeQuery ="";
-            String messageNoSpace = message.replaceAll("\\s","");
-            if(message.length() == 0 || messageNoSpace.length() == 0) likeQuery =  (COL_MESSAGE + " LIKE '%" + message + "%'");
-            if(likeQuery.length() == 0){
-                message = message.replaceAll("[\n\"]", " ");
-                while(message.charAt(0) == ' '){
-                    message = message.substring(1);
+    public boolean checkAllMessagesContaining(final boolean check, final String message){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                String matchCondition = getMatchCondition(message);
+                if(matchCondition == null){
+                    return checkAllMessages(check, false);
                 }
-                String[] words = message.split("\\s");
-                for(int i=0; i<words.length; i++){
-                    if(i > 0){
-                        likeQuery +=" OR ";
-                    }
-                    likeQuery += " "+COL_MESSAGE + " LIKE '%"+words[i]+"%' ";
+
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null){
+                    String parentOnly = " AND "+COL_ROOT+"="+TRUE;
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_CHECKED + "=" + (check ? TRUE : FALSE) + " WHERE " + COL_DELETED + " =" + FALSE+" AND "+matchCondition + parentOnly + ";",
+                            new String[]{SearchHelper.toMatchExpression(message)});
+                    return true;
                 }
+                return false;
             }
-            String parentOnly = " AND ("+COL_BIGPARENT+ " IS NULL OR "+COL_BIGPARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+") AND "+COL_PARENT+" NOT IN (SELECT "+COL_MESSAGE_ID+" FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+ "))";
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_CHECKED + "=" + (check ? TRUE : FALSE) + " WHERE " + COL_DELETED + " =" + FALSE+" AND ("+likeQuery+")" + parentOnly + ";");
-            return true;
-        }
-        return false;
+        });
     }
 
     /** return a cursor pointing at all the messages in the store with checked state set to true */
@@ -836,66 +2069,137 @@ public class MessageStore extends SQLiteOpenHelper {
     }
 
     /** set the read state of the supplied message to either read or unread */
-    public boolean setRead(String message, boolean isRead){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null && message != null){
-            int read = isRead ? TRUE : FALSE;
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_READ + "=" + read + " WHERE " + COL_MESSAGE + "='" + Utils.makeTextSafeForSQL(message) + "';");
-
-            log.debug("Message read state changed in the store.");
-            return true;
-        }
-        log.debug( "Message was not edited, either message or database is null. ["+message+"]");
-        return false;
+    public boolean setRead(final String message, final boolean isRead){
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null && message != null){
+                    int read = isRead ? TRUE : FALSE;
+                    statements.executeUpdateDelete("UPDATE " + TABLE + " SET " + COL_READ + "=? WHERE " + COL_HASH + "=?;", read, hashOf(message));
+
+                    log.debug("Message read state changed in the store.");
+                    return true;
+                }
+                log.debug( "Message was not edited, either message or database is null. ["+message+"]");
+                return false;
+            }
+        });
     }
 
     /** reset the local storage to make all the messages marked as read */
     public boolean setAllAsRead(){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            db.execSQL("UPDATE "+TABLE+" SET "+COL_READ+"="+TRUE+";");
-
-            log.debug("Messages read state changed in the store.");
-            //clear exchange history
-            ExchangeHistoryTracker.getInstance().resetExchangeCount();
-            return true;
-        }
-        log.debug( "Messages not edited, database is null.");
-        return false;
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if(db != null){
+                    db.execSQL("UPDATE "+TABLE+" SET "+COL_READ+"="+TRUE+";");
+
+                    log.debug("Messages read state changed in the store.");
+                    //clear exchange history
+                    ExchangeHistoryTracker.getInstance().resetExchangeCount();
+                    return true;
+                }
+                log.debug( "Messages not edited, database is null.");
+                return false;
+            }
+        });
     }
 
     public long getUnreadCount(){
-        SQLiteDatabase db = getWritableDatabase();
-        if(db != null){
-            return DatabaseUtils.queryNumEntries(db, TABLE, COL_READ + "=" + FALSE);
-        }
-        return  0;
+        return getCounts().unread;
     }
 
     /** completely delete records from the database based on passed security profile
      *
      * @param currentProfile
      */
-    public void deleteOutdatedOrIrrelevant(SecurityProfile currentProfile){
-
-        if(currentProfile == null || !currentProfile.isAutodelete()) return;
-
-        SQLiteDatabase db = getWritableDatabase();
-        if(db == null) return;
-
-        Calendar reducedAge = Utils.reduceCalendar(Calendar.getInstance());
+    public void deleteOutdatedOrIrrelevant(final SecurityProfile currentProfile){
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if(currentProfile == null || !currentProfile.isAutodelete()) return null;
+
+                SQLiteDatabase db = getWritableDatabase();
+                if(db == null) return null;
+
+                Calendar reducedAge = Utils.reduceCalendar(Calendar.getInstance());
+
+                long ageThreshold = reducedAge.getTimeInMillis() - TimeUnit.DAYS.toMillis(currentProfile.getAutodeleteAge());
+
+                //one statement per condition so each is answered by an index range rather than a table scan
+                //delete untrusted, the deleted column leads the trust index
+                db.execSQL("DELETE FROM "+TABLE+" WHERE "+COL_DELETED+" IN ("+FALSE+","+TRUE+") AND "+COL_TRUST+"<="+currentProfile.getAutodeleteTrust()+";");
+                //delete old
+                db.execSQL("DELETE FROM "+TABLE+" WHERE "+COL_TIMESTAMP+">0 AND "+COL_TIMESTAMP+"<"+ageThreshold+";");
+                //delete expired (self-destruct)
+                db.execSQL("DELETE FROM "+TABLE+" WHERE "+COL_EXPIRES_AT+"<"+System.currentTimeMillis()+";");
+                cache.invalidateAll();
+                return null;
+            }
+        });
+    }
 
-        long ageThreshold = reducedAge.getTimeInMillis() - TimeUnit.DAYS.toMillis(currentProfile.getAutodeleteAge());
+    /** Return the earliest time at which a message will be deleted by deleteOutdatedOrIrrelevant
+     * for being too old or self destructing.
+     *
+     * @param currentProfile the profile deleteOutdatedOrIrrelevant is called with
+     * @return the time in milliseconds or -1 if no message will ever be outdated
+     */
+    public long getNextExpiry(SecurityProfile currentProfile){
+        if(currentProfile == null || !currentProfile.isAutodelete()) return -1;
+
+        long next = statements.queryForLong(-1, "SELECT MIN(" + COL_EXPIRES_AT + ") FROM " + TABLE + ";");
+        long oldest = statements.queryForLong(-1, "SELECT MIN(" + COL_TIMESTAMP + ") FROM " + TABLE + " WHERE " + COL_TIMESTAMP + ">0;");
+        if(oldest > 0){
+            //messages are aged by the day, the oldest is outdated once the day after it reached the age starts
+            Calendar outdated = Calendar.getInstance();
+            outdated.setTimeInMillis(oldest + TimeUnit.DAYS.toMillis(currentProfile.getAutodeleteAge()));
+            Utils.reduceCalendar(outdated).add(Calendar.DAY_OF_MONTH, 1);
+            next = next > 0 ? Math.min(next, outdated.getTimeInMillis()) : outdated.getTimeInMillis();
+        }
+        return next > 0 ? next : -1;
+    }
 
-        db.execSQL("DELETE FROM "+TABLE+" WHERE "/*"UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE "*/
-                + COL_TRUST+"<="+(currentProfile.isAutodelete() ? currentProfile.getAutodeleteTrust() : 0) //delete untrusted
-                + " OR ("+COL_TIMESTAMP+"> 0 AND "+COL_TIMESTAMP+"<"+ageThreshold+")" //delete old
-                + " OR ("+COL_EXPIRE+"> 0 AND "+COL_TIMESTAMP+">0 AND ("+COL_EXPIRE  +"+"+COL_TIMESTAMP+") <"+System.currentTimeMillis() //delete expired (self-destruct)
-                +");"
-        );
+    /** Purge the messages removed for longer than the supplied retention from the messages table,
+     * keeping only their hash so they are still refused when received again, and release the
+     * freed pages back to the file system.
+     *
+     * @param retention time in milliseconds removed messages are kept before being purged
+     * @return number of database pages released
+     */
+    public long compactTombstones(long retention){
+        final SQLiteDatabase db = getWritableDatabase();
+        if(db == null) return 0;
+
+        final long threshold = System.currentTimeMillis() - retention;
+        return write(new Callable<Long>() {
+            @Override
+            public Long call() {
+                String expired = " WHERE " + COL_DELETED + "=" + TRUE + " AND " + COL_DELETED_AT + "<?;";
+                statements.executeUpdateDelete("INSERT OR IGNORE INTO " + TABLE_TOMBSTONES + " (" + COL_HASH + ")"
+                        + " SELECT " + COL_HASH + " FROM " + TABLE + expired, threshold);
+                int purged = statements.executeUpdateDelete("DELETE FROM " + TABLE + expired, threshold);
+                if(purged == 0) return 0L;
+
+                long freeBefore = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count;", null);
+                //each step of the pragma releases a single page, read the cursor through to release them all
+                Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum;", null);
+                cursor.getCount();
+                cursor.close();
+                long released = freeBefore - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count;", null);
+                log.info("Purged " + purged + " removed messages, released " + released + " pages");
+                return released;
+            }
+        });
     }
 
-    public Cursor getMessagesByQuery(String query){
+    /** return the live messages matching the supplied conditions in the current sort order
+     * @param query conditions as returned by SearchHelper.searchToSQL
+     * @param queryArgs values bound to the ? of the conditions, or null
+     */
+    public Cursor getMessagesByQuery(String query, String[] queryArgs){
         SQLiteDatabase db = getWritableDatabase();
         if(db == null || query == null) return null;
 
@@ -903,7 +2207,7 @@ public class MessageStore extends SQLiteOpenHelper {
         String posttext = " "+sortOption;
 
         try {
-            Cursor cursor = db.rawQuery(pretext + query + posttext, null);
+            Cursor cursor = db.rawQuery(pretext + query + posttext, queryArgs);
             return cursor;
         } catch (Exception e){
             e.printStackTrace();
@@ -911,18 +2215,34 @@ public class MessageStore extends SQLiteOpenHelper {
         }
     }
 
-    public void deleteByLikes(int likes){
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null) {
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_LIKES + "<=" + likes + ";");
-        }
+    public void deleteByLikes(final int likes){
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if (db != null) {
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_LIKES + "<=" + likes + ";");
+                    cache.invalidateAll();
+                }
+                return null;
+            }
+        });
     }
 
-    public void deleteTree(String bigparent){
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null && bigparent != null) {
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE "+COL_MESSAGE_ID+" = '"+bigparent+"' OR "+ COL_BIGPARENT + "='" + bigparent + "';");
-        }
+    public void deleteTree(final String bigparent){
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if (db != null && bigparent != null) {
+                    String prefix = getSubtreePrefix(bigparent);
+                    statements.executeUpdateDelete("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_MESSAGE_ID + "=? OR (" + SUBTREE_CONDITION + ");",
+                            bigparent, prefix, subtreeEnd(prefix));
+                    cache.invalidateAll();
+                }
+                return null;
+            }
+        });
     }
 
     public int getMessagesByLikeCount(int likes){
@@ -936,11 +2256,18 @@ public class MessageStore extends SQLiteOpenHelper {
         return 0;
     }
 
-    public void deleteByTrust(float trust){
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null) {
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_TRUST + "<=" + trust + ";");
-        }
+    public void deleteByTrust(final float trust){
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if (db != null) {
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_TRUST + "<=" + trust + ";");
+                    cache.invalidateAll();
+                }
+                return null;
+            }
+        });
     }
 
     public int getMessagesByTrustCount(float trust){
@@ -954,11 +2281,18 @@ public class MessageStore extends SQLiteOpenHelper {
         return 0;
     }
 
-    public void deleteBySender(String sender){
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null && sender != null && sender.length() > 0) {
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_PSEUDONYM + "='" + sender + "';");
-        }
+    public void deleteBySender(final String sender){
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if (db != null && sender != null && sender.length() > 0) {
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_PSEUDONYM + "='" + sender + "';");
+                    cache.invalidateAll();
+                }
+                return null;
+            }
+        });
     }
 
     public int getMessagesBySenderCount(String sender){
@@ -972,11 +2306,18 @@ public class MessageStore extends SQLiteOpenHelper {
         return 0;
     }
 
-    public void deleteByExchange(String exchange){
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null && exchange != null && exchange.length() > 0) {
-            db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_EXCHANGE + "='" + exchange + "';");
-        }
+    public void deleteByExchange(final String exchange){
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if (db != null && exchange != null && exchange.length() > 0) {
+                    db.execSQL("UPDATE " + TABLE + " SET " + COL_DELETED + "=" + TRUE + " WHERE " + COL_EXCHANGE + "='" + exchange + "';");
+                    cache.invalidateAll();
+                }
+                return null;
+            }
+        });
     }
 
     public int getMessagesByExchangeCount(String exchange){
@@ -991,11 +2332,18 @@ public class MessageStore extends SQLiteOpenHelper {
     }
 
     public void purgeStore(){
-        SQLiteDatabase db = getWritableDatabase();
-        if (db != null) {
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
-            onCreate(db);
-        }
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                SQLiteDatabase db = getWritableDatabase();
+                if (db != null) {
+                    statements.clear();
+                    recreateTable(db);
+                    cache.invalidateAll();
+                }
+                return null;
+            }
+        });
     }
 
     public void setSortOption(String[] columns, boolean ascending){
@@ -1005,6 +2353,20 @@ public class MessageStore extends SQLiteOpenHelper {
             if(col.equals(COL_ROWID)) needSecondaryByRowId = false;
         }
 
+        List<String> keyColumns = new ArrayList<>();
+        List<Boolean> keyDescending = new ArrayList<>();
+        for(String col : defaultSort){
+            keyColumns.add(col);
+            keyDescending.add(false);
+        }
+        if(columns != null){
+            for(String col : columns){
+                keyColumns.add(col);
+                keyDescending.add(false);
+            }
+            if(columns.length > 0) keyDescending.set(keyDescending.size() - 1, !ascending);
+        }
+
         String options = "";
         for (int i = 0; i < defaultSort.length; i++) {
             options += defaultSort[i];
@@ -1021,88 +2383,287 @@ public class MessageStore extends SQLiteOpenHelper {
                 }
             }
         }
-        sortOption = "ORDER BY "+options+(ascending ? " ASC" : " DESC");
-
+        sortOrder = options+(ascending ? " ASC" : " DESC");
 
         if(needSecondaryByRowId){
-            sortOption += ", "+COL_ROWID+" DESC";
+            sortOrder += ", "+COL_ROWID+" DESC";
+            keyColumns.add(COL_ROWID);
+            keyDescending.add(true);
+        }
+        sortOption = "ORDER BY "+sortOrder;
+
+        sortColumns = keyColumns.toArray(new String[keyColumns.size()]);
+        sortDescending = new boolean[keyDescending.size()];
+        for(int i = 0; i < sortDescending.length; i++){
+            sortDescending[i] = keyDescending.get(i);
         }
     }
 
-    /** return comments of a certain message parent */
+    /** Return the key of the row the cursor currently points at, to be passed as the afterKey of
+     * the following page. Keys are only valid for the sort order they were read under.
+     * @param cursor a cursor returned by one of the page queries, positioned on the last row of the page
+     * @return the sort column values of the row or null if the cursor is not on a row
+     */
+    public String[] getPageKey(Cursor cursor){
+        if(cursor == null || cursor.isBeforeFirst() || cursor.isAfterLast()) return null;
+
+        String[] columns = sortColumns;
+        String[] key = new String[columns.length];
+        for(int i = 0; i < columns.length; i++){
+            int index = cursor.getColumnIndexOrThrow(columns[i]);
+            // read real values through getDouble so they compare equal when bound back
+            key[i] = cursor.getType(index) == Cursor.FIELD_TYPE_FLOAT ?
+                    Double.toString(cursor.getDouble(index)) : cursor.getString(index);
+        }
+        return key;
+    }
+
+    /** Return a page of messages matching the condition in the current sort order, starting right
+     * after the row identified by afterKey. Since the sort always ends with the row id the order is
+     * stable, messages arriving while paging do not shift the following pages.
+     * @param afterKey key of the last row of the previous page as returned by getPageKey or null for the first page
+     * @param pageSize maximum number of items to return
+     * @param condition conditions the items must match, each starting with AND
+     * @param conditionArgs values bound to the placeholders in condition or null
+     * @return Cursor of Message items in the page
+     */
+    public Cursor getPage(String[] afterKey, int pageSize, String condition, String[] conditionArgs){
+        SQLiteDatabase db = getReadableDatabase();
+        if(db == null) return null;
+
+        String[] columns = sortColumns;
+        boolean[] descending = sortDescending;
+        List<String> args = new ArrayList<>();
+        if(conditionArgs != null) Collections.addAll(args, conditionArgs);
+
+        String keyCondition = "";
+        if(afterKey != null && afterKey.length == columns.length){
+            // expands (c1,c2,..) > (k1,k2,..) as c1>k1 OR (c1=k1 AND (c2>k2 OR (c2=k2 AND ..)))
+            for(int i = columns.length - 1; i >= 0; i--){
+                String after = columns[i] + (descending[i] ? "<?" : ">?");
+                if(keyCondition.length() == 0){
+                    keyCondition = after;
+                } else {
+                    keyCondition = after + " OR (" + columns[i] + "=? AND (" + keyCondition + "))";
+                }
+            }
+            keyCondition = " AND (" + keyCondition + ")";
+            for(int i = 0; i < columns.length - 1; i++){
+                args.add(afterKey[i]);
+                args.add(afterKey[i]);
+            }
+            args.add(afterKey[columns.length - 1]);
+        }
+
+        return db.rawQuery("SELECT *, 0 AS " + COL_RELEVANCE + " FROM " + TABLE
+                + " WHERE 1" + (condition != null ? condition : "") + keyCondition
+                + " " + sortOption
+                + " LIMIT " + pageSize
+                + ";", args.toArray(new String[args.size()]));
+    }
+
+    /** Return a page of the message feed, excluding deleted messages and replies. See getPage */
+    public Cursor getFeedPage(String[] afterKey, int pageSize){
+        return getPage(afterKey, pageSize, " AND " + COL_ROOT + "=" + TRUE + " AND " + COL_DELETED + "=" + FALSE, null);
+    }
+
+    /** Return a page of the favorite messages, excluding deleted messages and replies. See getPage */
+    public Cursor getFavoritesPage(String[] afterKey, int pageSize){
+        return getPage(afterKey, pageSize, " AND " + COL_FAVIRITE + "=" + TRUE + " AND " + COL_ROOT + "=" + TRUE + " AND " + COL_DELETED + "=" + FALSE, null);
+    }
+
+    /** Return the number of items in the favorites pages */
+    public long getFavoriteCount(){
+        return getCounts().favorites;
+    }
+
+    /** Return a page of the comments of a certain message parent, i.e. all the messages in its
+     * subtree. See getPage */
+    public Cursor getCommentsPage(String parentId, String[] afterKey, int pageSize){
+        String prefix = getSubtreePrefix(parentId);
+        return getPage(afterKey, pageSize, " AND " + COL_DELETED + "=" + FALSE + " AND " + SUBTREE_CONDITION, new String[]{prefix, subtreeEnd(prefix)});
+    }
+
+    /** return comments of a certain message parent, i.e. all the messages in its subtree */
     public Cursor getComments(String parentId){
         SQLiteDatabase db = getReadableDatabase();
         if(db != null){
-            return db.rawQuery("SELECT * FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+" AND ("+COL_PARENT+"='"+parentId+"' OR "+COL_BIGPARENT+"='"+parentId+"') "+sortOption+";",null);
+            String prefix = getSubtreePrefix(parentId);
+            return db.rawQuery("SELECT * FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+" AND "+SUBTREE_CONDITION+" "+sortOption+";", new String[]{prefix, subtreeEnd(prefix)});
         }
         return null;
     }
 
     /** return comments of a certain message parent */
-    public Cursor getCommentsByQuery(String parentId, String query){
-        return getMessagesByQuery("AND ("+COL_PARENT+"='"+parentId+"' OR "+COL_BIGPARENT+"='"+parentId+"') "+query);
+    public Cursor getCommentsByQuery(String parentId, String query, String[] queryArgs){
+        return getMessagesByQuery("AND "+subtreeCondition(parentId)+" "+query, queryArgs);
     }
 
-    /** return comments of a certain message parent containing the query in the message */
+    /** return comments of a certain message parent containing the query in the message, most relevant first */
     public Cursor getCommentsContaining(String parentId, String query){
-        if(query == null) query = "";
-        query = Utils.makeTextSafeForSQL(query);
-        String likeQuery = "";
-        String queryNoSpace = query.replaceAll("\\s","");
-
-        if(query.length() == 0 || queryNoSpace.length() == 0) likeQuery = (COL_MESSAGE + " LIKE '%" + query + "%'");
-
-        if(likeQuery.length() == 0){
-            query = query.replaceAll("[\n\"]", " ");
-
-            while(query.charAt(0) == ' '){
-                query = query.substring(1);
-            }
-
-            String[] words = query.split("\\s");
+        SQLiteDatabase db = getReadableDatabase();
+        if(db != null){
+            String condition = " AND "+COL_DELETED+"="+FALSE+" AND "+subtreeCondition(parentId);
+            return getMatchingCursor(db, SearchHelper.toMatchExpression(query), condition, -1);
+        }
+        return null;
+    }
 
-            for(int i=0; i<words.length; i++){
-                if(words[i].length() > 0)
-                {
-                    if (likeQuery.length() > 0)
-                    {
-                        likeQuery += " OR ";
-                    }
-                    likeQuery += " " + COL_MESSAGE + " LIKE '%" + words[i] + "%' ";
-                }
-            }
+    /** return the number of live comments of a certain message parent, feed rows should read
+     * {@link #COL_REPLY_COUNT} from their cursor instead */
+    public int getCommentCount(String parentId){
+        SQLiteDatabase db = getReadableDatabase();
+        if(db != null && parentId != null){
+            String prefix = getSubtreePrefix(parentId);
+            return (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE + " WHERE " + COL_DELETED + "=" + FALSE
+                    + " AND " + SUBTREE_CONDITION + ";", new String[]{prefix, subtreeEnd(prefix)});
         }
+        return 0;
+    }
 
+    /** return the sequence number of the latest message change relevant to exchanges */
+    public long getSequence(){
+        return statements.queryForLong(0, "SELECT " + COL_COUNTER_VALUE + " FROM " + TABLE_COUNTERS
+                + " WHERE " + COL_COUNTER_NAME + "=?;", COUNTER_SEQUENCE);
+    }
 
-        return getCommentsByQuery(parentId, "AND (" + likeQuery + ")");
+    /** return the sequence number up to which all the message changes were sent to the supplied
+     * peer, or 0 if the whole candidate pool should be sent
+     * @param address the bluetooth address of the peer
+     */
+    public long getPeerWatermark(String address){
+        if(address == null) return 0;
+        return statements.queryForLong(0, "SELECT " + COL_WATERMARK_SEQUENCE + " FROM " + TABLE_WATERMARKS
+                + " WHERE " + COL_WATERMARK_ADDRESS + "=? AND " + COL_WATERMARK_TIME + ">?;",
+                address, System.currentTimeMillis() - WATERMARK_EXPIRY);
     }
 
-    public int getCommentCount(String parentId){
-        Cursor c = getComments(parentId);
-        int count = c.getCount();
-        c.close();
-        return count;
+    /** record the sequence number up to which all the message changes were sent to the supplied peer */
+    private void setPeerWatermark(String address, long sequence){
+        //the time of the first watermark is kept so the peer is sent the whole pool once it expires
+        statements.executeUpdateDelete("INSERT OR REPLACE INTO " + TABLE_WATERMARKS + " ("
+                + COL_WATERMARK_ADDRESS + "," + COL_WATERMARK_SEQUENCE + "," + COL_WATERMARK_TIME + ")"
+                + " VALUES (?,?,IFNULL((SELECT " + COL_WATERMARK_TIME + " FROM " + TABLE_WATERMARKS
+                + " WHERE " + COL_WATERMARK_ADDRESS + "=? AND " + COL_WATERMARK_TIME + ">?),?));",
+                address, sequence, address, System.currentTimeMillis() - WATERMARK_EXPIRY, System.currentTimeMillis());
     }
 
     /** return a cursor with a single message based on passed messageId */
     public Cursor getMessageById(String messageId){
         SQLiteDatabase db = getReadableDatabase();
         if(db != null){
-            return db.rawQuery("SELECT * FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+" AND "+COL_MESSAGE_ID+"='"+messageId+"' LIMIT 1;",null);
+            return db.rawQuery("SELECT * FROM "+TABLE+" WHERE "+COL_DELETED+"="+FALSE+" AND "+COL_MESSAGE_ID+"=? LIMIT 1;", new String[]{messageId});
         }
         return null;
     }
 
     public List<MurmurMessage> getMessagesForExchange(int sharedContacts){
+        return getMessagesForExchange(sharedContacts, -1);
+    }
+
+    /** Return the messages to be sent in an exchange, most trusted and then most endorsed first.
+     * Messages which may not hop to a peer with the supplied amount of shared contacts and expired
+     * messages are excluded.
+     * @param sharedContacts number of contacts shared with the peer
+     * @param limit maximum number of messages to return or -1 for unlimited, usually the amount the peer accepts
+     */
+    public List<MurmurMessage> getMessagesForExchange(int sharedContacts, int limit){
+        return convertToMessages(iterateMessagesForExchange(sharedContacts, limit));
+    }
+
+    /** Return a lazily decoding iterator over the messages to be sent in an exchange, in the order
+     * and with the filters of getMessagesForExchange. The iterator must be closed if not exhausted.
+     * @param sharedContacts number of contacts shared with the peer
+     * @param limit maximum number of messages to return or -1 for unlimited
+     */
+    public MessageIterator iterateMessagesForExchange(int sharedContacts, int limit){
+        return iterateMessagesForExchange(sharedContacts, limit, 0);
+    }
+
+    /** Return a lazily decoding iterator over the messages to be sent in an exchange which changed
+     * after the supplied sequence number, see getSequence and getPeerWatermark.
+     * @param sharedContacts number of contacts shared with the peer
+     * @param limit maximum number of messages to return or -1 for unlimited
+     * @param afterSequence only messages changed after this sequence number are returned, 0 for all
+     */
+    public MessageIterator iterateMessagesForExchange(int sharedContacts, int limit, long afterSequence){
         SQLiteDatabase db = getReadableDatabase();
         if(db != null){
-            return convertToMessages(db.rawQuery("SELECT * FROM " + TABLE + " WHERE "
-                    + COL_DELETED + "=" + FALSE +
-                    " AND ((" + COL_HOP + " = " + 0 + " AND " + COL_MIN_CONTACTS_FOR_HOP + " > 0 AND " + COL_MIN_CONTACTS_FOR_HOP + " <= " + sharedContacts +
-                        ") OR (" + COL_MIN_CONTACTS_FOR_HOP + " <= 0))" +
-                    " ORDER BY "+COL_ROWID+" DESC;"
-                    , null));
+            Cursor cursor = db.rawQuery("SELECT *" + exchangeCandidates(sharedContacts, afterSequence) + " LIMIT " + limit + ";", null);
+            return new MessageIterator(cursor);
+        }
+        return new MessageIterator(null);
+    }
+
+    /** Return the hashes of the messages iterateMessagesForExchange would return, in the same
+     * order, reading only their hashes rather than decoding the messages.
+     * @param sharedContacts number of contacts shared with the peer
+     * @param limit maximum number of hashes to return or -1 for unlimited
+     * @param afterSequence only messages changed after this sequence number are returned, 0 for all
+     */
+    public List<String> getExchangeCandidates(int sharedContacts, int limit, long afterSequence){
+        List<String> hashes = new ArrayList<>();
+        SQLiteDatabase db = getReadableDatabase();
+        if(db == null) return hashes;
+
+        Cursor cursor = db.rawQuery("SELECT " + COL_HASH + exchangeCandidates(sharedContacts, afterSequence) + " LIMIT " + limit + ";", null);
+        try {
+            while (cursor.moveToNext()) {
+                hashes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return hashes;
+    }
+
+    /** return the FROM, WHERE and ORDER BY clauses selecting the messages to be sent in an
+     * exchange, most trusted and then most endorsed first */
+    private static String exchangeCandidates(int sharedContacts, long afterSequence){
+        return " FROM " + TABLE + " WHERE "
+                + COL_DELETED + "=" + FALSE +
+                (afterSequence > 0 ? " AND " + COL_SEQUENCE + ">" + afterSequence : "") +
+                " AND ((" + COL_HOP + " = " + 0 + " AND " + COL_MIN_CONTACTS_FOR_HOP + " > 0 AND " + COL_MIN_CONTACTS_FOR_HOP + " <= " + sharedContacts +
+                    ") OR (" + COL_MIN_CONTACTS_FOR_HOP + " <= 0))" +
+                " AND (" + COL_EXPIRES_AT + " IS NULL OR " + COL_EXPIRES_AT + ">=" + System.currentTimeMillis() + ")" +
+                " ORDER BY " + COL_TRUST + " DESC," + COL_LIKES + " DESC," + COL_ROWID + " DESC";
+    }
+
+    /** Return a lazily decoding iterator over the live messages with the supplied hashes, in the
+     * order of iterateMessagesForExchange. Only the requested rows are read.
+     * @param hashes hashes of the messages, see getExchangeCandidates
+     */
+    public MessageIterator iterateMessagesByHash(List<String> hashes){
+        SQLiteDatabase db = getReadableDatabase();
+        if(db == null || hashes.isEmpty()) return new MessageIterator(null);
+
+        StringBuilder in = new StringBuilder();
+        for(String hash : hashes){
+            if(in.length() > 0) in.append(',');
+            in.append(DatabaseUtils.sqlEscapeString(hash));
+        }
+        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE + " WHERE " + COL_DELETED + "=" + FALSE
+                + " AND " + COL_HASH + " IN (" + in + ")"
+                + " ORDER BY " + COL_TRUST + " DESC," + COL_LIKES + " DESC," + COL_ROWID + " DESC;", null);
+        return new MessageIterator(cursor);
+    }
+
+    /** Return which of the messages offered by a peer are already in the store, including
+     * removed ones and the tombstones of purged ones, so the peer can skip sending them.
+     * @param digests digests of the offered messages, see MessageOffer.digestOf
+     * @return whether each offered message is held, in the order of the offer
+     */
+    public boolean[] getHeldMessages(List<ByteString> digests){
+        boolean[] held = new boolean[digests.size()];
+        for(int i = 0; i < digests.size(); i++){
+            //a digest is the leading characters of the stored hashes, looked up as a range of
+            // the hash indexes
+            String from = MessageOffer.prefixOf(digests.get(i));
+            String to = from.substring(0, from.length() - 1) + (char) (from.charAt(from.length() - 1) + 1);
+            held[i] = statements.queryForLong(0, "SELECT EXISTS(SELECT 1 FROM " + TABLE
+                    + " WHERE " + COL_HASH + ">=? AND " + COL_HASH + "<?) OR EXISTS(SELECT 1 FROM " + TABLE_TOMBSTONES
+                    + " WHERE " + COL_HASH + ">=? AND " + COL_HASH + "<?);", from, to, from, to) > 0;
         }
-        return new ArrayList<MurmurMessage>();
+        return held;
     }
 }
\ No newline at end of file
@@ -0,0 +1,307 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Single writer of a database. Mutations are submitted as commands which are queued and executed
+ * in order by a dedicated writer thread. All the commands waiting in the queue when the writer
+ * becomes free are executed in a single transaction (group commit) so a burst of small mutations
+ * costs a single journal sync rather than one each.
+ *
+ * The future of a command completes only once the transaction holding it was committed, so its
+ * result is visible to readers using other connections. If a command fails the transaction of
+ * its group is rolled back and the other commands of the group are executed again one by one,
+ * each in its own transaction, so a failing command never affects the others.
+ *
+ * Should the writer thread stop, the commands still queued or being executed fail rather than
+ * leave their callers waiting forever, and so do the commands submitted afterwards.
+ */
+public class MessageWriter {
+
+    private static final String TAG = "MessageWriter";
+    private static final Logger log = Logger.getLogger(TAG);
+
+    /** maximum number of commands committed in a single transaction */
+    private static final int MAX_GROUP_SIZE = 64;
+
+    private SQLiteOpenHelper helper;
+    private Runnable onCommit;
+    private BlockingQueue<Command<?>> queue = new LinkedBlockingQueue<>();
+    private Thread thread;
+    /** set once the writer thread stopped, see writeLoop */
+    private volatile boolean stopped = false;
+
+    /**
+     * @param helper the helper of the database the commands are writing to
+     * @param onCommit optional callback run by the writer thread after each committed transaction
+     */
+    public MessageWriter(SQLiteOpenHelper helper, Runnable onCommit) {
+        this.helper = helper;
+        this.onCommit = onCommit;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** queue the supplied command for execution by the writer thread
+     * @return future completing with the result of the command once it was committed
+     */
+    public <T> Future<T> submit(Callable<T> command){
+        return submit(command, null);
+    }
+
+    /** queue the supplied command for execution by the writer thread
+     * @param onDone optional callback run by the writer thread once the command was committed or failed
+     * @return future completing with the result of the command once it was committed
+     */
+    public <T> Future<T> submit(Callable<T> command, Runnable onDone){
+        Command<T> queued = new Command<>(command, onDone);
+        queue.add(queued);
+        //checked after queueing so a command is never left behind by a stopping writer
+        if(stopped) failQueued(new IllegalStateException("Writer thread stopped"));
+        return queued;
+    }
+
+    /** return true if the calling thread is the writer thread, i.e. is executing a command */
+    public boolean isWriterThread(){
+        return Thread.currentThread() == thread;
+    }
+
+    private void writeLoop(){
+        List<Command<?>> group = new ArrayList<>();
+        Throwable cause = null;
+        try {
+            while(true){
+                try {
+                    group.add(queue.take());
+                } catch (InterruptedException e){
+                    log.debug("Writer thread interrupted, stopping.");
+                    return;
+                }
+                queue.drainTo(group, MAX_GROUP_SIZE - 1);
+                commitGroup(group);
+                group.clear();
+            }
+        } catch (RuntimeException | Error e){
+            cause = e;
+            log.error("Writer thread failed, stopping.", e);
+            throw e;
+        } finally {
+            stopped = true;
+            rollback();
+            IllegalStateException e = new IllegalStateException("Writer thread stopped", cause);
+            for(Command<?> command : group){
+                if(!command.isDone()) command.fail(e);
+            }
+            failQueued(e);
+        }
+    }
+
+    /** end any transaction left open by the writer thread, rolling it back */
+    private void rollback(){
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            while(db.inTransaction()){
+                db.endTransaction();
+            }
+        } catch (RuntimeException e){
+            log.error("Failed to roll back the transaction of the writer thread", e);
+        }
+    }
+
+    /** fail every command still waiting in the queue */
+    private void failQueued(Throwable e){
+        List<Command<?>> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for(Command<?> command : pending){
+            command.fail(e);
+        }
+    }
+
+    private void commitGroup(List<Command<?>> group){
+        SQLiteDatabase db;
+        try {
+            db = helper.getWritableDatabase();
+        } catch (RuntimeException e){
+            for(Command<?> command : group){
+                command.fail(e);
+            }
+            return;
+        }
+
+        // commands catch their own errors so the transaction is always ended here
+        Command<?> failed = null;
+        db.beginTransaction();
+        for(Command<?> command : group){
+            if(!command.execute()){
+                failed = command;
+                break;
+            }
+        }
+        if(failed == null) db.setTransactionSuccessful();
+        if(!endTransaction(db, group)) return;
+
+        if(failed == null){
+            for(Command<?> command : group){
+                command.complete();
+            }
+            return;
+        }
+
+        log.debug("Command failed in a group of " + group.size() + ", executing the others separately.");
+        failed.complete();
+        for(Command<?> command : group){
+            if(command == failed) continue;
+            db.beginTransaction();
+            if(command.execute()) db.setTransactionSuccessful();
+            if(endTransaction(db, Collections.<Command<?>>singletonList(command))) command.complete();
+        }
+    }
+
+    /** end the current transaction of the writer thread, failing the supplied commands if it
+     * could not be committed
+     * @return true if the transaction was ended successfully
+     */
+    private boolean endTransaction(SQLiteDatabase db, List<Command<?>> commands){
+        try {
+            db.endTransaction();
+        } catch (RuntimeException e){
+            log.error("Failed to commit a transaction of " + commands.size() + " commands", e);
+            for(Command<?> command : commands){
+                command.fail(e);
+            }
+            return false;
+        }
+        if(onCommit != null) onCommit.run();
+        return true;
+    }
+
+    /** a queued command and the future of its result */
+    private static class Command<T> implements Future<T> {
+
+        private Callable<T> callable;
+        private Runnable onDone;
+        private CountDownLatch done = new CountDownLatch(1);
+        private T result;
+        private Throwable error;
+
+        Command(Callable<T> callable, Runnable onDone) {
+            this.callable = callable;
+            this.onDone = onDone;
+        }
+
+        /** execute the command in the current transaction
+         * @return false if the command threw, the transaction must then be rolled back
+         */
+        boolean execute(){
+            result = null;
+            error = null;
+            try {
+                result = callable.call();
+                return true;
+            } catch (Throwable e){
+                //errors are kept in the command too so the transaction is always ended
+                error = e;
+                return false;
+            }
+        }
+
+        void fail(Throwable e){
+            error = e;
+            complete();
+        }
+
+        /** publish the result of the command to waiting threads */
+        void complete(){
+            done.countDown();
+            if(onDone == null) return;
+            try {
+                onDone.run();
+            } catch (RuntimeException e){
+                log.error("Command completion callback failed", e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if(!done.await(timeout, unit)) throw new TimeoutException();
+            return getResult();
+        }
+
+        private T getResult() throws ExecutionException {
+            if(error != null) throw new ExecutionException(error);
+            return result;
+        }
+    }
+}
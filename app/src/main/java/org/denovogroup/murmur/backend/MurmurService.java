@@ -63,6 +63,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.System;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -90,9 +91,18 @@ public class MurmurService extends Service {
     /** Cancellable scheduling of backgroundTasks. */
     private ScheduledFuture mBackgroundExecution;
 
-    /** Cancellable scheduling of cleanup. */
+    /** Cancellable scheduling of the next cleanup, rescheduled after every run. */
     private ScheduledFuture mCleanupExecution;
 
+    /** Shortest time between two cleanups of the message store, in milliseconds. */
+    private static final long MIN_CLEANUP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Time the last cleanup of the message store started, in milliseconds. */
+    private volatile long mLastCleanupMillis = 0;
+
+    /** Cancellable scheduling of the message store tombstone compaction. */
+    private ScheduledFuture mCompactionExecution;
+
     /** Handle to app's PeerManager. */
     private PeerManager mPeerManager;
 
@@ -267,16 +277,18 @@ public class MurmurService extends Service {
             }
         }, 0, 1, TimeUnit.SECONDS);
 
-        mCleanupExecution = mScheduleTaskExecutor.scheduleAtFixedRate(new Runnable() {
+        scheduleCleanup(0);
+
+        mCompactionExecution = mScheduleTaskExecutor.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
                 try {
-                    cleanupMessageStore();
+                    MessageStore.getInstance(MurmurService.this).compactTombstones(MessageStore.TOMBSTONE_RETENTION);
                 } catch (Exception e){
-                    log.error("exception during cleanup message store scheduled task",e);
+                    log.error("exception during message store compaction scheduled task",e);
                 }
             }
-        }, 0, 1, TimeUnit.MINUTES);
+        }, 1, 6, TimeUnit.HOURS);
 
         TIME_BETWEEN_EXCHANGES_MILLIS = SecurityManager.getCurrentProfile(this).getCooldown() * 1000;
         log.info( "MurmurService created.");
@@ -306,6 +318,10 @@ public class MurmurService extends Service {
         }
         log.debug("MurmurService onDestroy");
       mBackgroundExecution.cancel(true);
+        mCompactionExecution.cancel(false);
+        synchronized (this) {
+            if (mCleanupExecution != null) mCleanupExecution.cancel(false);
+        }
         SharedPreferences pref = getSharedPreferences(MainActivity.PREF_FILE, Context.MODE_PRIVATE);
         if(pref.contains(MainActivity.WIFI_NAME) && mWifiDirectSpeaker != null){
             log.debug( "Restoring wifi name");
@@ -559,37 +575,20 @@ public class MurmurService extends Service {
       @Override
       public void success(Exchange exchange) {
           ServiceWatchDog.getInstance().notifyLastExchange();
-          boolean hasNew = false;
         List<MurmurMessage> newMessages = exchange.getReceivedMessages();
         int friendOverlap = exchange.getCommonFriends();
         log.info( "Got " + newMessages.size() + " messages in exchangeCallback");
         log.info( "Got " + friendOverlap + " common friends in exchangeCallback");
           Set<String> myFriends = mFriendStore.getAllFriends();
-        for (MurmurMessage message : newMessages) {
-          double stored = mMessageStore.getTrust(message.text);
-          double remote = message.trust;
-          double newTrust = Exchange.newPriority(remote, stored, friendOverlap, myFriends.size());
-          try {
-            if (mMessageStore.containsOrRemoved(message.text)){
-                //update existing message priority unless its marked as removed by user
-                mMessageStore.updateMessage(message.text, newTrust, true);
-            } else {
-                hasNew = true;
-
-                mMessageStore.addMessage(MurmurService.this, message.messageid, message.text, newTrust, message.priority, message.pseudonym, message.timestamp ,true, message.timebound, message.getLocation(), message.parent, false, message.contacts_hop, message.hop, exchange.toString(), message.bigparent);
-                //mark this message as unread
-                mMessageStore.setRead(message.text, false);
-            }
-          } catch (IllegalArgumentException e) {
-            log.error( String.format("Attempted to add/update message %s with trust (%f/%f)" +
-                                    ", %d friends, %d friends in common",
-                                    message.text, newTrust, message.priority,
-                                    myFriends.size(), friendOverlap));
-          }
-        }
+          //records how far the store was sent to the peer so the next exchange only sends the changes
+          List<MessageStore.IngestResult> results = mMessageStore.ingestExchange(MurmurService.this,
+                  newMessages, exchange.toString(), friendOverlap, myFriends.size(),
+                  exchange.getPeerAddress(), exchange.getSentSequence());
+          boolean hasNew = results.contains(MessageStore.IngestResult.NEW);
 
           if(hasNew){
               mMessageStore.updateStoreVersion();
+              rescheduleCleanup();
               ExchangeHistoryTracker.getInstance().incrementExchangeCount();
               ExchangeHistoryTracker.getInstance().updateHistory(MurmurService.this, exchange.getPeerAddress());
               if(isAppInForeground()) {
@@ -609,6 +608,8 @@ public class MurmurService extends Service {
               log.debug( "Exchange finished without receiving new messages from new peer, creating history track");
               ExchangeHistoryTracker.getInstance().updateHistory(MurmurService.this, exchange.getPeerAddress());
           }
+          log.info("Exchange traffic: " + exchange.getTraffic());
+          ExchangeHistoryTracker.getInstance().updateTrafficHistory(exchange.getPeerAddress(), exchange.getTraffic());
 
         MurmurService.this.cleanupAfterExchange();
       }
@@ -626,35 +627,18 @@ public class MurmurService extends Service {
             boolean hasNew = false;
             List<MurmurMessage> newMessages = exchange.getReceivedMessages();
             int friendOverlap = Math.max(exchange.getCommonFriends(), 0);
-            log.info( "Got " + newMessages.size() + " messages in exchangeCallback");
-            log.info( "Got " + friendOverlap + " common friends in exchangeCallback");
             if(newMessages != null) {
-                for (MurmurMessage message : newMessages) {
-                    Set<String> myFriends = mFriendStore.getAllFriends();
-                    double stored = mMessageStore.getTrust(message.text);
-                    double remote = message.priority;
-                    double newTrust = Exchange.newPriority(remote, stored, friendOverlap, myFriends.size());
-                    try {
-                        if (mMessageStore.containsOrRemoved(message.text)){
-                            //update existing message priority unless its marked as removed by user
-                            mMessageStore.updateMessage(message.text, newTrust, true);
-                        } else {
-                            hasNew = true;
-                            mMessageStore.addMessage(MurmurService.this, message.messageid, message.text, newTrust, message.priority, message.pseudonym, message.timestamp ,true, message.timebound, message.getLocation(), message.parent, false, message.contacts_hop, message.hop, exchange.toString(), message.bigparent);
-                            //mark this message as unread
-                            mMessageStore.setRead(message.text, false);
-                        }
-                    } catch (IllegalArgumentException e) {
-                        log.error( String.format("Attempted to add/update message %s with trust (%f/%f)" +
-                                        ", %d friends, %d friends in common",
-                                message.text, newTrust, message.priority,
-                                myFriends.size(), friendOverlap),e);
-                    }
-                }
+                log.info( "Got " + newMessages.size() + " messages in exchangeCallback");
+                log.info( "Got " + friendOverlap + " common friends in exchangeCallback");
+                Set<String> myFriends = mFriendStore.getAllFriends();
+                List<MessageStore.IngestResult> results = mMessageStore.ingestExchange(MurmurService.this,
+                        newMessages, exchange.toString(), friendOverlap, myFriends.size());
+                hasNew = results.contains(MessageStore.IngestResult.NEW);
             }
 
             if(hasNew){
                 mMessageStore.updateStoreVersion();
+                rescheduleCleanup();
                 ExchangeHistoryTracker.getInstance().incrementExchangeCount();
                 ExchangeHistoryTracker.getInstance().updateHistory(MurmurService.this, exchange.getPeerAddress());
                 if(isAppInForeground()) {
@@ -667,6 +651,7 @@ public class MurmurService extends Service {
             } else {
                 ExchangeHistoryTracker.getInstance().updateAttemptsHistory(exchange.getPeerAddress());
             }
+            ExchangeHistoryTracker.getInstance().updateTrafficHistory(exchange.getPeerAddress(), exchange.getTraffic());
 
             MurmurService.this.cleanupAfterExchange();
         }
@@ -835,9 +820,67 @@ public class MurmurService extends Service {
         }
     }
 
+    /** Run the message store cleanup as soon as MIN_CLEANUP_INTERVAL_MILLIS passed since the last
+     * one, should be called whenever messages which may expire were added or the autodelete
+     * settings of the current profile changed since the cleanup otherwise sleeps until the next
+     * expiry it knows of. Does nothing if the service is not running.
+     */
+    public static void rescheduleCleanup(){
+        MurmurService service = sRangzenServiceInstance;
+        if(service != null){
+            service.scheduleCleanup(0);
+        }
+    }
+
+    /** replace the pending cleanup of the message store with one running after the supplied delay,
+     * postponed until MIN_CLEANUP_INTERVAL_MILLIS passed since the last cleanup */
+    private synchronized void scheduleCleanup(long delayMillis){
+        if(mScheduleTaskExecutor == null || mScheduleTaskExecutor.isShutdown()) return;
+        if(mCleanupExecution != null) mCleanupExecution.cancel(false);
+
+        delayMillis = Math.max(delayMillis, mLastCleanupMillis + MIN_CLEANUP_INTERVAL_MILLIS - System.currentTimeMillis());
+        log.debug("next message store cleanup in " + delayMillis + " ms");
+        mCleanupExecution = mScheduleTaskExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mLastCleanupMillis = System.currentTimeMillis();
+                try {
+                    cleanupMessageStore();
+                } catch (Exception e){
+                    log.error("exception during cleanup message store scheduled task",e);
+                    scheduleCleanup(MessageStore.HASHTAG_BUCKET);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
     private void cleanupMessageStore(){
-        SecurityProfile currentProfile = SecurityManager.getCurrentProfile(this);
-        MessageStore.getInstance(this).deleteOutdatedOrIrrelevant(currentProfile);
+        final SecurityProfile currentProfile = SecurityManager.getCurrentProfile(this);
+        final MessageStore store = MessageStore.getInstance(this);
+        // queued without waiting so the shared scheduler thread never blocks behind an exchange ingest
+        store.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                // sleep until the next message is due instead of polling the whole table, waking
+                // at least once per hashtag bucket to slide the trending windows
+                long delay = MessageStore.HASHTAG_BUCKET;
+                try {
+                    store.deleteOutdatedOrIrrelevant(currentProfile);
+                    store.advanceTrendingWindows();
+
+                    long nextExpiry = store.getNextExpiry(currentProfile);
+                    if(nextExpiry > 0) {
+                        delay = Math.min(delay, nextExpiry - System.currentTimeMillis());
+                    }
+                } catch (RuntimeException e){
+                    log.error("exception during cleanup message store", e);
+                } finally {
+                    // a failed cleanup is retried rather than left until the next reschedule
+                    scheduleCleanup(delay);
+                }
+                return null;
+            }
+        });
     }
 
     private Peer pickBestPeer(List<Peer> peers){
@@ -30,7 +30,10 @@
 */
 package org.denovogroup.murmur.backend;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Created by Liran on 12/7/2015.
@@ -39,15 +42,29 @@ import java.util.Calendar;
  */
 public abstract class SearchHelper {
 
-    public static String searchToSQL(String query){
+    /** return whether the supplied query holds labeled, hashtag or pseudonym conditions rather
+     * than only free text */
+    public static boolean hasConditions(String query){
+        return searchToSQL(query, new ArrayList<String>()) != null;
+    }
+
+    /** convert the labeled, hashtag and pseudonym parts of a query into SQL conditions
+     *
+     * @param args receives the values bound to the ? of the conditions, in order
+     * @return the SQL conditions or null if the query holds none
+     */
+    public static String searchToSQL(String query, List<String> args){
         String userQuery = query;
         String sqlQuery = "";
 
+        String hashtagQuery = hashtagsToSQL(userQuery);
+        if(hashtagQuery != null) return hashtagQuery;
+
         if(userQuery.indexOf("@") > -1 && userQuery.length() > 1){
             String[] words = userQuery.split(" ");
             for(String string: words){
                 if(string.indexOf("@") > -1 && string.length() > 1){
-                    String sqlMatch = matchSQL(MessageStore.COL_PSEUDONYM, string.substring(1, string.length()));
+                    String sqlMatch = matchSQL(MessageStore.COL_PSEUDONYM, string.substring(1, string.length()), args);
 
                     if(sqlMatch != null){
                         sqlQuery += " AND "+sqlMatch;
@@ -71,7 +88,7 @@ public abstract class SearchHelper {
 
             userQuery = hasSpaceBeforeLabel ? userQuery.substring(0, labelStart-1) : userQuery.substring(0, labelStart);
 
-            String sqlMatch = matchSQL(label, value);
+            String sqlMatch = matchSQL(label, value, args);
 
             if(sqlMatch != null){
                 sqlQuery += " AND "+sqlMatch;
@@ -81,12 +98,39 @@ public abstract class SearchHelper {
         return sqlQuery.length() > 0 ? sqlQuery : null;
     }
 
-    private static String matchSQL(String label, String value){
+    /** convert a query made only of hashtags into conditions selecting the messages tagged
+     * with all of them using the hashtag index. Punctuation following a tag is ignored as it is
+     * when messages are indexed.
+     *
+     * @return the SQL conditions or null if the query holds anything other than hashtags
+     */
+    private static String hashtagsToSQL(String query){
+        if(query == null) return null;
+
+        String sqlQuery = "";
+        for(String word : query.trim().split("\\s+")){
+            if(word.length() < 2 || word.charAt(0) != '#') return null;
+            Set<String> hashtags = Utils.getHashtags(word);
+            if(hashtags.size() != 1) return null;
+            sqlQuery += " AND "+MessageStore.getHashtagCondition(hashtags.iterator().next());
+        }
+        return sqlQuery;
+    }
+
+    /** return whether the results of the supplied query should highlight its words, i.e. if it
+     * searches for text or hashtags rather than for labeled values */
+    public static boolean isKeywordSearch(String query){
+        return !hasConditions(query) || hashtagsToSQL(query) != null;
+    }
+
+    private static String matchSQL(String label, String value, List<String> args){
 
         if(value == null || value.length() == 0) return null;
 
         if(label.equals(MessageStore.COL_MESSAGE)){
-            return MessageStore.COL_MESSAGE+" LIKE '%"+value+"%'";
+            String condition = MessageStore.getMatchCondition(value);
+            if(condition != null) args.add(toMatchExpression(value));
+            return condition;
         } else if(label.equals(MessageStore.COL_TRUST)){
             try{
                 float asFloat = Float.parseFloat(value);
@@ -109,4 +153,31 @@ public abstract class SearchHelper {
         return null;
     }
 
+    /** convert free text into a full text search expression matching messages containing any of
+     * its words (or words starting with them). Characters which are not letters or digits are
+     * treated as word separators, the same as the full text index tokenizer does.
+     *
+     * @param text the text to search for
+     * @return the search expression or null if the text contains no words
+     */
+    public static String toMatchExpression(String text){
+        if(text == null) return null;
+
+        StringBuilder expression = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for(int i=0; i<=text.length(); i++){
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if(c >= 128){
+                word.append(c);
+            } else if(Character.isLetterOrDigit(c)){
+                //keep ascii words in lower case so they are never taken for an OR/AND/NOT operator
+                word.append(Character.toLowerCase(c));
+            } else if(word.length() > 0){
+                if(expression.length() > 0) expression.append(" OR ");
+                expression.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return expression.length() > 0 ? expression.toString() : null;
+    }
 }
@@ -78,6 +78,7 @@ public class SecurityManager {
     private static final String PROFILE_USE_TRUST_KEY = "useTrust";
     private static final String PROFILE_RANDOM_EXCHANGE_KEY = "randomExchange";
     private static final String PROFILE_MIN_CONTACTS_FOR_HOP_KEY = "minContactsForHop";
+    private static final String PROFILE_EVICTION_POLICY_KEY = "evictionPolicy";
 
 
     /** Default security profile value if none is stored */
@@ -191,6 +192,14 @@ public class SecurityManager {
                 pref.getBoolean(PROFILE_RANDOM_EXCHANGE_KEY, profiles.get(DEFAULT_SECURITY_PROFILE).isRandomExchange()),
                 pref.getInt(PROFILE_MIN_CONTACTS_FOR_HOP_KEY, profiles.get(DEFAULT_SECURITY_PROFILE).getMinContactsForHop())
         );
+        String evictionPolicy = pref.getString(PROFILE_EVICTION_POLICY_KEY, null);
+        if(evictionPolicy != null) {
+            try {
+                customProfile.setEvictionPolicy(MessageStore.EvictionPolicy.valueOf(evictionPolicy));
+            } catch (IllegalArgumentException e) {
+                //policy written by a newer version, keep the default
+            }
+        }
 
         return customProfile;
     }
@@ -232,9 +241,12 @@ public class SecurityManager {
             pref.putBoolean(PROFILE_USE_TRUST_KEY, profile.isUseTrust());
             pref.putBoolean(PROFILE_RANDOM_EXCHANGE_KEY, profile.isRandomExchange());
             pref.putInt(PROFILE_MIN_CONTACTS_FOR_HOP_KEY, profile.getMinContactsForHop());
+            pref.putString(PROFILE_EVICTION_POLICY_KEY, profile.getEvictionPolicy().name());
             pref.commit();
 
         MurmurService.TIME_BETWEEN_EXCHANGES_MILLIS = profile.getCooldown() * 1000;
+        //autodelete thresholds may have changed
+        MurmurService.rescheduleCleanup();
     }
 
     /** read the currently set user pseudonym from local storage */
@@ -71,6 +71,8 @@ public class SecurityProfile {
     boolean randomExchange;
     /** minimum contacts required for restericted messages to be exchanged */
     int minContactsForHop;
+    /** order in which messages are removed when the feed size is exceeded */
+    MessageStore.EvictionPolicy evictionPolicy = MessageStore.EvictionPolicy.OLDEST;
 
     public SecurityProfile(int strength){
         this.strength = strength;
@@ -212,7 +214,7 @@ public class SecurityProfile {
     }
 
     public SecurityProfile clone(){
-        return new SecurityProfile(
+        SecurityProfile clone = new SecurityProfile(
                 strength,
                 name,
                 timestamp,
@@ -232,6 +234,8 @@ public class SecurityProfile {
                 useTrust,
                 randomExchange,
                 minContactsForHop);
+        clone.evictionPolicy = evictionPolicy;
+        return clone;
     }
 
     public float getAutodeleteTrust() {
@@ -305,4 +309,13 @@ public class SecurityProfile {
     public int getMinContactsForHop() {
         return minContactsForHop;
     }
+
+    public MessageStore.EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public SecurityProfile setEvictionPolicy(MessageStore.EvictionPolicy evictionPolicy) {
+        if(evictionPolicy != null) this.evictionPolicy = evictionPolicy;
+        return this;
+    }
 }
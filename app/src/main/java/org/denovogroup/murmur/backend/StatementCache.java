@@ -0,0 +1,143 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the compiled statements of a database so frequently used queries are compiled once and
+ * then executed again with fresh bindings. Statements are identified by their SQL which should
+ * therefore use ? placeholders rather than literal values.
+ *
+ * A compiled statement may only be bound and executed by one thread at a time, all the execute
+ * methods are synchronized on the cache.
+ */
+public class StatementCache {
+
+    private SQLiteOpenHelper helper;
+    private SQLiteDatabase database;
+    private Map<String, SQLiteStatement> statements = new HashMap<>();
+
+    public StatementCache(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    /** return the compiled statement for the supplied sql with its bindings cleared and the
+     * supplied arguments bound. Must be called while holding the cache lock.
+     */
+    private SQLiteStatement prepare(String sql, Object[] args){
+        SQLiteDatabase db = helper.getWritableDatabase();
+        if(db != database){
+            clear();
+            database = db;
+        }
+
+        SQLiteStatement statement = statements.get(sql);
+        if(statement == null){
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+
+        statement.clearBindings();
+        if(args != null){
+            for(int i = 0; i < args.length; i++){
+                bind(statement, i + 1, args[i]);
+            }
+        }
+        return statement;
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value){
+        if(value == null){
+            statement.bindNull(index);
+        } else if(value instanceof Double || value instanceof Float){
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if(value instanceof Number){
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if(value instanceof Boolean){
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if(value instanceof byte[]){
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /** execute an UPDATE or DELETE statement
+     * @return the number of rows affected
+     */
+    public synchronized int executeUpdateDelete(String sql, Object... args){
+        return prepare(sql, args).executeUpdateDelete();
+    }
+
+    /** execute an INSERT statement
+     * @return the row id of the inserted row or -1 if the insert failed
+     */
+    public synchronized long executeInsert(String sql, Object... args){
+        return prepare(sql, args).executeInsert();
+    }
+
+    /** execute a query returning a single number
+     * @return the value of the first column of the first row or defaultValue if there are no rows
+     */
+    public synchronized long queryForLong(long defaultValue, String sql, Object... args){
+        try {
+            return prepare(sql, args).simpleQueryForLong();
+        } catch (SQLiteDoneException e){
+            return defaultValue;
+        }
+    }
+
+    /** execute a query returning a single text value
+     * @return the value of the first column of the first row or null if there are no rows
+     */
+    public synchronized String queryForString(String sql, Object... args){
+        try {
+            return prepare(sql, args).simpleQueryForString();
+        } catch (SQLiteDoneException e){
+            return null;
+        }
+    }
+
+    /** close all the compiled statements, should be called before the schema of the database changes */
+    public synchronized void clear(){
+        for(SQLiteStatement statement : statements.values()){
+            statement.close();
+        }
+        statements.clear();
+    }
+}
@@ -206,31 +206,26 @@ public class Utils {
     public static Set<String> getHashtags(String text){
         Set<String> hashtags = new HashSet<>();
 
-        while(text.contains("#")){
-
-            String hashtag;
-            int hashtagStart = text.indexOf("#");
-            hashtag = text.substring(hashtagStart);
-            int hashtagEnd = hashtag.length();
-
-            charloop:
-            for(int i=0; i< hashtag.length(); i++){
-                char c = hashtag.charAt(i);
-                if((c == ' ') || (c == '\n')){
-                    hashtagEnd = i;
-                    break charloop;
-                }
+        //a hashtag runs from the # sign over the following letters, digits and underscores so
+        // punctuation after it is left out, scanned in a single pass
+        int hashtagStart = text.indexOf('#');
+        while(hashtagStart > -1){
+            int hashtagEnd = hashtagStart + 1;
+            while(hashtagEnd < text.length() && isHashtagChar(text.charAt(hashtagEnd))){
+                hashtagEnd++;
             }
-
-            if(hashtagEnd < hashtag.length()-1) {
-                hashtag = hashtag.substring(0, hashtagEnd);
+            if(hashtagEnd > hashtagStart + 1) {
+                hashtags.add(text.substring(hashtagStart, hashtagEnd));
             }
-            hashtags.add(hashtag);
-            text = text.substring(hashtagStart + hashtag.length());
+            hashtagStart = text.indexOf('#', hashtagEnd);
         }
         return hashtags;
     }
 
+    private static boolean isHashtagChar(char c){
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
     /** create a gaussian noise around supplied mean value based on supplied standardDiviation
      *
      * @param mean The value that most values will tend to cluster around
@@ -0,0 +1,289 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.Context;
+
+import org.denovogroup.murmur.objects.MurmurMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.ByteString;
+
+/**
+ * Compact binary encoding of the frames sent in a cryptographic exchange, used instead of JSON
+ * when both peers advertise support for it (see ClientMessage.codecVersion).
+ *
+ * A binary frame starts with the codec version byte, which can never be confused with the '{'
+ * opening a JSON frame, so receivers accept both formats regardless of what was negotiated.
+ * Numbers are written as unsigned base 128 varints (signed ones zigzag encoded first), strings
+ * as a varint byte length followed by their UTF-8 bytes and group elements as raw bytes.
+ */
+public final class WireCodec {
+
+    /** version of the binary codec written by this implementation */
+    public static final int VERSION = 1;
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** first byte of every JSON frame */
+    private static final byte JSON_START = '{';
+
+    private WireCodec(){}
+
+    /** return true if the supplied frame was written by the binary codec rather than as JSON */
+    public static boolean isBinary(byte[] frame){
+        return frame != null && frame.length > 0 && frame[0] != JSON_START && frame[0] > 0 && frame[0] <= VERSION;
+    }
+
+    /** encode the number of messages about to be sent in an exchange */
+    public static byte[] encodeCount(int count){
+        Writer writer = new Writer();
+        writer.writeVarint(count);
+        return writer.toByteArray();
+    }
+
+    public static int decodeCount(byte[] frame) throws IOException {
+        long count = new Reader(frame).readVarint();
+        if(count < 0 || count > Integer.MAX_VALUE) throw new IOException("Invalid message count " + count);
+        return (int) count;
+    }
+
+    /** encode messages the same way MurmurMessage.toJSON does, i.e according to the current
+     * security profile and with noise added to their trust */
+    public static byte[] encodeMessages(Context context, List<MurmurMessage> messages, int sharedFriends, int myFriends){
+        Writer writer = new Writer();
+        writer.writeVarint(messages.size());
+        SecurityProfile profile = SecurityManager.getCurrentProfile(context);
+        for(MurmurMessage message : messages){
+            message.writeTo(writer, profile, sharedFriends, myFriends);
+        }
+        return writer.toByteArray();
+    }
+
+    /** encode a single message without a frame header, to be packed with others by frameMessages */
+    public static byte[] encodeMessage(SecurityProfile profile, MurmurMessage message, int sharedFriends, int myFriends){
+        Writer writer = new Writer(false);
+        message.writeTo(writer, profile, sharedFriends, myFriends);
+        return writer.toByteArray();
+    }
+
+    /** build a frame readable by decodeMessages out of messages encoded by encodeMessage */
+    public static byte[] frameMessages(List<byte[]> messages){
+        Writer writer = new Writer();
+        writer.writeVarint(messages.size());
+        for(byte[] message : messages){
+            writer.writeRaw(message);
+        }
+        return writer.toByteArray();
+    }
+
+    /** decode messages the same way MurmurMessage.fromJSON does */
+    public static List<MurmurMessage> decodeMessages(Context context, byte[] frame) throws IOException {
+        Reader reader = new Reader(frame);
+        int count = reader.readLength(1);
+        SecurityProfile profile = SecurityManager.getCurrentProfile(context);
+        List<MurmurMessage> messages = new ArrayList<>(count);
+        for(int i=0; i<count; i++){
+            messages.add(MurmurMessage.readFrom(reader, profile));
+        }
+        return messages;
+    }
+
+    /** Builds a binary frame, starting with the codec version */
+    public static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        public Writer(){
+            this(VERSION);
+        }
+
+        /** start a frame readable by peers supporting the supplied codec version, such as the
+         * version negotiated with a peer running an older implementation */
+        public Writer(int version){
+            this(version, true);
+        }
+
+        private Writer(boolean header){
+            this(VERSION, header);
+        }
+
+        private Writer(int version, boolean header){
+            if(version < 1 || version > VERSION) throw new IllegalArgumentException("Unsupported codec version " + version);
+            if(header) out.write(version);
+        }
+
+        public void writeVarint(long value){
+            while((value & ~0x7FL) != 0){
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        /** write a value which may be negative, zigzag encoded so small negatives stay short */
+        public void writeSignedVarint(long value){
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        public void writeFloat(float value){
+            int bits = Float.floatToIntBits(value);
+            out.write(bits >>> 24);
+            out.write(bits >>> 16);
+            out.write(bits >>> 8);
+            out.write(bits);
+        }
+
+        public void writeBytes(byte[] value){
+            writeVarint(value.length);
+            writeRaw(value);
+        }
+
+        /** write bytes without their length, such as an already encoded part of the frame */
+        public void writeRaw(byte[] value){
+            out.write(value, 0, value.length);
+        }
+
+        public void writeString(String value){
+            writeBytes(value.getBytes(UTF8));
+        }
+
+        /** write group elements, as a single width followed by the raw elements if all have the
+         * same width or with the length of each element otherwise */
+        public void writeElements(List<ByteString> elements){
+            int width = elements.isEmpty() ? 0 : elements.get(0).size();
+            for(ByteString element : elements){
+                if(element.size() != width) width = 0;
+            }
+            writeVarint(elements.size());
+            writeVarint(width);
+            for(ByteString element : elements){
+                if(width == 0) {
+                    writeBytes(element.toByteArray());
+                } else {
+                    byte[] raw = element.toByteArray();
+                    out.write(raw, 0, raw.length);
+                }
+            }
+        }
+
+        public byte[] toByteArray(){
+            return out.toByteArray();
+        }
+    }
+
+    /** Reads a binary frame, failing with an IOException on truncated or malformed input */
+    public static final class Reader {
+        private final byte[] frame;
+        private int position;
+
+        public Reader(byte[] frame) throws IOException {
+            if(!isBinary(frame)) throw new IOException("Not a binary frame");
+            this.frame = frame;
+            this.position = 1;
+        }
+
+        /** return true if the frame holds more data, such as fields added by a newer version */
+        public boolean hasRemaining(){
+            return position < frame.length;
+        }
+
+        private int readByte() throws IOException {
+            if(position >= frame.length) throw new IOException("Truncated binary frame");
+            return frame[position++] & 0xFF;
+        }
+
+        public long readVarint() throws IOException {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7){
+                int b = readByte();
+                //the tenth byte holds the single remaining bit of a 64 bit value
+                if(shift == 63 && b > 1) break;
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint in binary frame");
+        }
+
+        public long readSignedVarint() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat((readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte());
+        }
+
+        /** read a length, checking that the frame holds enough bytes for that many items of the
+         * supplied minimal size so a corrupt length never causes a huge allocation */
+        public int readLength(int itemSize) throws IOException {
+            long length = readVarint();
+            //divided rather than multiplied so a huge length cannot overflow past the check
+            if(length < 0 || length > (frame.length - position) / Math.max(itemSize, 1)) {
+                throw new IOException("Length " + length + " exceeds binary frame");
+            }
+            return (int) length;
+        }
+
+        private byte[] readRaw(int length) throws IOException {
+            if(length > frame.length - position) throw new IOException("Truncated binary frame");
+            byte[] value = new byte[length];
+            System.arraycopy(frame, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        public byte[] readBytes() throws IOException {
+            return readRaw(readLength(1));
+        }
+
+        public String readString() throws IOException {
+            int length = readLength(1);
+            String value = new String(frame, position, length, UTF8);
+            position += length;
+            return value;
+        }
+
+        public ArrayList<ByteString> readElements() throws IOException {
+            int count = readLength(1);
+            int width = readLength(count);
+            ArrayList<ByteString> elements = new ArrayList<>(count);
+            for(int i=0; i<count; i++){
+                elements.add(ByteString.of(width == 0 ? readBytes() : readRaw(width)));
+            }
+            return elements;
+        }
+    }
+}
@@ -31,10 +31,13 @@
 package org.denovogroup.murmur.objects;
 
 
+import org.denovogroup.murmur.backend.WireCodec;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -49,6 +52,17 @@ public final class ClientMessage extends Message {
   public static final List<ByteString> DEFAULT_BLINDEDFRIENDS = Collections.emptyList();
     private static final String MESSAGES = "messages";
     private static final String FRIENDS = "friends";
+    private static final String ACCEPT = "accept";
+    private static final String CODEC = "codec";
+    private static final String BATCH = "batch";
+    private static final String BATCH_BYTES = "batch_bytes";
+    private static final String CAPABILITIES = "caps";
+
+    /** capability bit of clients reading frames deflated by FrameCompression */
+    public static final int CAPABILITY_DEFLATE = 1;
+
+    /** capability bit of clients exchanging a summary of their messages before sending them */
+    public static final int CAPABILITY_RECONCILE = 2;
 
   /**
    * The client's messages to propagate.
@@ -60,6 +74,33 @@ public final class ClientMessage extends Message {
    */
   public List<ByteString> blindedFriends;
 
+    /**
+     * The maximum number of messages the client accepts in the exchange, or -1 if not advertised.
+     */
+    public int maxMessages = -1;
+
+    /**
+     * The highest WireCodec version the client can read, or 0 if it only understands JSON.
+     */
+    public int codecVersion = 0;
+
+    /**
+     * The maximum number of messages the client reads from a single frame, or 0 if it expects
+     * every message in its own frame.
+     */
+    public int batchMessages = 0;
+
+    /**
+     * The size in bytes the client wishes frames of several messages not to exceed, or 0 if not
+     * advertised.
+     */
+    public int batchBytes = 0;
+
+    /**
+     * Bitmask of the optional features the client supports, such as CAPABILITY_DEFLATE.
+     */
+    public int capabilities = 0;
+
   public ClientMessage(ArrayList<JSONObject> messages, ArrayList<ByteString> blindedFriends) {
     this.messages = (messages != null) ?(List<JSONObject>)messages.clone() : DEFAULT_MESSAGES;
     this.blindedFriends = (blindedFriends != null) ? (List<ByteString>) blindedFriends.clone() :DEFAULT_BLINDEDFRIENDS;
@@ -79,6 +120,11 @@ public final class ClientMessage extends Message {
         try {
             json.put(MESSAGES,messagesArray);
             json.put(FRIENDS,friendsArray);
+            if(maxMessages >= 0) json.put(ACCEPT, maxMessages);
+            if(codecVersion > 0) json.put(CODEC, codecVersion);
+            if(batchMessages > 0) json.put(BATCH, batchMessages);
+            if(batchBytes > 0) json.put(BATCH_BYTES, batchBytes);
+            if(capabilities != 0) json.put(CAPABILITIES, capabilities);
         } catch (JSONException e) {
             e.printStackTrace();
         }
@@ -99,10 +145,70 @@ public final class ClientMessage extends Message {
             for(int i=0; i<friendsArray.length(); i++){
                 friends.add(ByteString.decodeBase64((String) friendsArray.get(i)));
             }
-            return new ClientMessage((ArrayList<JSONObject>)messages,(ArrayList<ByteString>)friends);
+            ClientMessage clientMessage = new ClientMessage((ArrayList<JSONObject>)messages,(ArrayList<ByteString>)friends);
+            clientMessage.maxMessages = json.optInt(ACCEPT, -1);
+            clientMessage.codecVersion = json.optInt(CODEC, 0);
+            clientMessage.batchMessages = json.optInt(BATCH, 0);
+            clientMessage.batchBytes = json.optInt(BATCH_BYTES, 0);
+            clientMessage.capabilities = json.optInt(CAPABILITIES, 0);
+            return clientMessage;
         } catch (JSONException e) {
             e.printStackTrace();
         }
         return null;
     }
+
+    /** build the JSON frame of a ClientMessage holding the supplied serialized messages and no
+     * friends, without parsing the messages back into JSONObjects */
+    public static byte[] toJSONFrame(List<byte[]> messages){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] start = ("{\"" + MESSAGES + "\":[").getBytes(WireCodec.UTF8);
+        byte[] end = ("],\"" + FRIENDS + "\":[]}").getBytes(WireCodec.UTF8);
+        out.write(start, 0, start.length);
+        for(int i=0; i<messages.size(); i++){
+            if(i > 0) out.write(',');
+            out.write(messages.get(i), 0, messages.get(i).length);
+        }
+        out.write(end, 0, end.length);
+        return out.toByteArray();
+    }
+
+    /** encode the handshake fields in the binary wire format, messages are sent in their own
+     * frames by WireCodec.encodeMessages */
+    public byte[] toBinary(){
+        return toBinary(WireCodec.VERSION);
+    }
+
+    /** encode the handshake fields in a frame readable by peers supporting the supplied codec
+     * version, while still advertising codecVersion */
+    public byte[] toBinary(int frameVersion){
+        WireCodec.Writer writer = new WireCodec.Writer(frameVersion);
+        writer.writeSignedVarint(maxMessages);
+        writer.writeVarint(codecVersion);
+        writer.writeElements(blindedFriends);
+        writer.writeVarint(batchMessages);
+        writer.writeVarint(batchBytes);
+        writer.writeVarint(capabilities);
+        return writer.toByteArray();
+    }
+
+    public static ClientMessage fromBinary(byte[] frame){
+        try {
+            WireCodec.Reader reader = new WireCodec.Reader(frame);
+            int maxMessages = (int) reader.readSignedVarint();
+            int codecVersion = (int) reader.readVarint();
+            ClientMessage clientMessage = new ClientMessage(null, reader.readElements());
+            clientMessage.maxMessages = maxMessages;
+            clientMessage.codecVersion = codecVersion;
+            if(reader.hasRemaining()) {
+                clientMessage.batchMessages = (int) reader.readVarint();
+                clientMessage.batchBytes = (int) reader.readVarint();
+            }
+            if(reader.hasRemaining()) clientMessage.capabilities = (int) reader.readVarint();
+            return clientMessage;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 }
@@ -40,6 +40,7 @@ import org.denovogroup.murmur.backend.SecurityManager;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.Calendar;
 
 /**
@@ -70,6 +71,14 @@ public final class MurmurMessage extends Message {
 
     private static final boolean USE_SIMPLE_NOISE = false;
 
+    /** bits marking which of the optional fields follow in the binary encoding */
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_BIGPARENT = 1 << 1;
+    private static final int HAS_TIMEBOUND = 1 << 2;
+    private static final int HAS_TRUST = 1 << 3;
+    private static final int HAS_PSEUDONYM = 1 << 4;
+    private static final int HAS_LATLONG = 1 << 5;
+
     /**
      * The message's id, as a String.
      */
@@ -239,6 +248,62 @@ public final class MurmurMessage extends Message {
         return result;
     }
 
+    /** write the message in the binary wire format, holding the same fields toJSON would */
+    public void writeTo(WireCodec.Writer writer, SecurityProfile profile, int sharedFriends, int myFriends){
+        int flags = 0;
+        if(parent != null) flags |= HAS_PARENT;
+        if(bigparent != null) flags |= HAS_BIGPARENT;
+        if(timebound > 0) flags |= HAS_TIMEBOUND;
+        if(profile.isUseTrust()) flags |= HAS_TRUST;
+        if(profile.isPseudonyms() && pseudonym != null) flags |= HAS_PSEUDONYM;
+        if(profile.isShareLocation() && latlong != null) flags |= HAS_LATLONG;
+
+        writer.writeVarint(flags);
+        writer.writeString(messageid);
+        writer.writeString(text);
+        writer.writeSignedVarint(priority);
+        writer.writeVarint(hop + 1);
+        writer.writeVarint(contacts_hop);
+        if((flags & HAS_PARENT) != 0) writer.writeString(parent);
+        if((flags & HAS_BIGPARENT) != 0) writer.writeString(bigparent);
+        if((flags & HAS_TIMEBOUND) != 0) writer.writeVarint(timebound);
+        if((flags & HAS_TRUST) != 0) writer.writeFloat(makeNoise(trust, sharedFriends, myFriends));
+        if((flags & HAS_PSEUDONYM) != 0) writer.writeString(pseudonym);
+        if((flags & HAS_LATLONG) != 0) writer.writeString(latlong);
+    }
+
+    /** read a message written by writeTo, applying the security profile the same way fromJSON does */
+    public static MurmurMessage readFrom(WireCodec.Reader reader, SecurityProfile securityProfile) throws IOException {
+        int flags = (int) reader.readVarint();
+        String messageid = reader.readString();
+        String text = reader.readString();
+        int priority = (int) reader.readSignedVarint();
+        int hop = (int) reader.readVarint();
+        int contactsHop = (int) reader.readVarint();
+        String parent = (flags & HAS_PARENT) != 0 ? reader.readString() : null;
+        String bigparent = (flags & HAS_BIGPARENT) != 0 ? reader.readString() : null;
+        long timebound = (flags & HAS_TIMEBOUND) != 0 ? reader.readVarint() : -1L;
+        double trust = (flags & HAS_TRUST) != 0 ? reader.readFloat() : DEFAULT_TRUST;
+        String pseudonym = (flags & HAS_PSEUDONYM) != 0 ? reader.readString() : DEFAULT_PSEUDONYM;
+        String latlong = (flags & HAS_LATLONG) != 0 ? reader.readString() : null;
+
+        return new MurmurMessage(
+                messageid,
+                text,
+                trust,
+                priority,
+                pseudonym,
+                securityProfile.isTimestamp() ?
+                        Utils.reduceCalendarMin(Calendar.getInstance()).getTimeInMillis() : 0L,
+                securityProfile.isShareLocation() ? latlong : null,
+                timebound,
+                parent,
+                hop,
+                bigparent,
+                contactsHop
+        );
+    }
+
     public Location getLocation(){
         if(latlong == null) return null;
 
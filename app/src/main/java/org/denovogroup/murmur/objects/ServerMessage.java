@@ -31,10 +31,12 @@
 package org.denovogroup.murmur.objects;
 
 
+import org.denovogroup.murmur.backend.WireCodec;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -107,5 +109,23 @@ public final class ServerMessage extends Message {
         }
         return null;
     }
-}
 
+    /** encode the message in the binary wire format, keeping the elements as raw bytes */
+    public byte[] toBinary(){
+        WireCodec.Writer writer = new WireCodec.Writer();
+        writer.writeElements(doubleBlindedFriends);
+        writer.writeElements(hashedBlindedFriends);
+        return writer.toByteArray();
+    }
+
+    public static ServerMessage fromBinary(byte[] frame){
+        try {
+            WireCodec.Reader reader = new WireCodec.Reader(frame);
+            ArrayList<ByteString> doubleBlindedFriends = reader.readElements();
+            return new ServerMessage(doubleBlindedFriends, reader.readElements());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
@@ -111,7 +111,7 @@ public class ContactsFragment extends Fragment implements View.OnClickListener,
     public void onTextChanged(CharSequence s, int start, int before, int count) {
         query = s.toString();
         ContactAdapter adapter = new ContactAdapter(getActivity(), getCursor(), inSelectionMode);
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(!SearchHelper.hasConditions(query)) {
             adapter.setHighlight(Utils.getKeywords(query));
         }
         contactListView.setAdapter(adapter);
@@ -209,7 +209,7 @@ public class ContactsFragment extends Fragment implements View.OnClickListener,
 
         CursorAdapter newAdapter = ((CursorAdapter) contactListView.getAdapter());
         newAdapter.swapCursor(getCursor());
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(!SearchHelper.hasConditions(query)) {
             ((ContactAdapter) newAdapter).setHighlight(Utils.getKeywords(query));
         }
         contactListView.setAdapter(newAdapter);
@@ -60,9 +60,11 @@ import org.denovogroup.murmur.R;
 import org.denovogroup.murmur.backend.MessageStore;
 import org.denovogroup.murmur.backend.SearchHelper;
 import org.denovogroup.murmur.backend.Utils;
+import org.denovogroup.murmur.objects.MurmurMessage;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Created by Liran on 12/30/2015.
@@ -83,6 +85,7 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
 
     ListView parentMessage;
     ListView listView;
+    FeedPager repliesPager;
     Spinner sortSpinner;
 
     private boolean inSearchMode = false;
@@ -137,15 +140,19 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
 
         View view = inflater.inflate(R.layout.expanded_message_fragment, container,false);
 
-        Cursor message = MessageStore.getInstance(getActivity()).getMessageById(messageId);
-        message.moveToFirst();
-        sender = message.getString(message.getColumnIndex(MessageStore.COL_PSEUDONYM));
-        message.close();
+        MurmurMessage message = MessageStore.getInstance(getActivity()).getMessage(messageId);
+        sender = message != null ? message.pseudonym : null;
 
         parentMessage = (ListView) view.findViewById(R.id.expanded_item);
         parentMessage.setAdapter(new FeedAdapter(getActivity(), MessageStore.getInstance(getActivity()).getMessageById(messageId), false, feedAdapterCallbacks));
 
         listView = (ListView) view.findViewById(R.id.listView);
+        repliesPager = new FeedPager(listView, new FeedPager.PageSource() {
+            @Override
+            public Cursor getPage(String[] afterKey, int pageSize) {
+                return MessageStore.getInstance(getActivity()).getCommentsPage(messageId, afterKey, pageSize);
+            }
+        });
         listView.setAdapter(new FeedReplyAdapter(getActivity(), getCursor()));
 
         searchView = (EditText) ((MainActivity) getActivity()).getToolbar().findViewById(R.id.searchView);
@@ -165,21 +172,45 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
         return view;
     }
 
+    /** apply a store change without blocking the UI thread on the store writer, then run the
+     * supplied UI update once the change is committed unless the fragment was detached meanwhile */
+    private <T> void updateStore(Callable<T> change, final Runnable onCommitted){
+        MessageStore.getInstance(getActivity()).submit(change, new Runnable() {
+            @Override
+            public void run() {
+                if(isAdded() && onCommitted != null) onCommitted.run();
+            }
+        });
+    }
+
     FeedAdapter.FeedAdapterCallbacks feedAdapterCallbacks = new FeedAdapter.FeedAdapterCallbacks() {
+
+        /** reloads the parent message once a change to it is committed */
+        private final Runnable refreshParent = new Runnable() {
+            @Override
+            public void run() {
+                swapCursor();
+            }
+        };
+
         @Override
-        public void onUpvote(String message, int oldPriority) {
-            MessageStore.getInstance(getActivity()).likeMessage(
-                    message,
-                    true);
-            swapCursor();
+        public void onUpvote(final String message, int oldPriority) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().likeMessage(message, true);
+                }
+            }, refreshParent);
         }
 
         @Override
-        public void onDownvote(String message, int oldPriority) {
-            MessageStore.getInstance(getActivity()).likeMessage(
-                    message,
-                    false);
-            swapCursor();
+        public void onDownvote(final String message, int oldPriority) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().likeMessage(message, false);
+                }
+            }, refreshParent);
         }
 
         @Override
@@ -204,11 +235,13 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
         }
 
         @Override
-        public void onFavorite(String message, boolean isFavoriteBefore) {
-            MessageStore.getInstance(getActivity()).favoriteMessage(
-                    message,
-                    !isFavoriteBefore);
-            swapCursor();
+        public void onFavorite(final String message, final boolean isFavoriteBefore) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().favoriteMessage(message, !isFavoriteBefore);
+                }
+            }, refreshParent);
         }
 
         private void swapCursor(){
@@ -239,7 +272,7 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
 
         CursorAdapter newAdapter = ((CursorAdapter) listView.getAdapter());
         newAdapter.swapCursor(getCursor());
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(SearchHelper.isKeywordSearch(query)) {
             ((FeedReplyAdapter) newAdapter).setHighlight(Utils.getKeywords(query));
         }
         listView.setAdapter(newAdapter);
@@ -287,6 +320,7 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
                             break;
                     }
 
+                    repliesPager.reset();
                     swapCursor();
                     listView.setSelectionFromTop(0,0);
                 }
@@ -338,9 +372,14 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
     }
 
     private Cursor getCursor(){
-        String sqlQuery = SearchHelper.searchToSQL(query);
+        List<String> queryArgs = new ArrayList<>();
+        String sqlQuery = SearchHelper.searchToSQL(query, queryArgs);
+        if(sqlQuery == null && SearchHelper.toMatchExpression(query) == null){
+            return repliesPager.load();
+        }
+        repliesPager.reset();
         return (sqlQuery != null) ?
-                MessageStore.getInstance(getActivity()).getCommentsByQuery(messageId, sqlQuery) :
+                MessageStore.getInstance(getActivity()).getCommentsByQuery(messageId, sqlQuery, queryArgs.toArray(new String[queryArgs.size()])) :
                 MessageStore.getInstance(getActivity()).getCommentsContaining(messageId, query);
     }
 
@@ -359,8 +398,9 @@ public class ExpandedMessageFragment extends Fragment implements TextWatcher, Fr
     @Override
     public void onTextChanged(CharSequence s, int start, int before, int count) {
         query = s.toString();
+        repliesPager.reset();
         FeedReplyAdapter adapter = new FeedReplyAdapter(getActivity(), getCursor());
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(SearchHelper.isKeywordSearch(query)) {
             adapter.setHighlight(Utils.getKeywords(query));
         }
         listView.setAdapter(adapter);
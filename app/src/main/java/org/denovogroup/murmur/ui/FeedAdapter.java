@@ -78,6 +78,7 @@ public class FeedAdapter extends CursorAdapter {
     private int favorite_colIndex;
     private int checked_colIndex;
     private int restricted_colIndex;
+    private int replyCount_colIndex;
 
     private boolean selectionMode;
 
@@ -140,6 +141,7 @@ public class FeedAdapter extends CursorAdapter {
         favorite_colIndex = cursor.getColumnIndexOrThrow(MessageStore.COL_FAVIRITE);
         checked_colIndex =  cursor.getColumnIndexOrThrow(MessageStore.COL_CHECKED);
         restricted_colIndex =  cursor.getColumnIndexOrThrow(MessageStore.COL_MIN_CONTACTS_FOR_HOP);
+        replyCount_colIndex =  cursor.getColumnIndexOrThrow(MessageStore.COL_REPLY_COUNT);
     }
 
     @Override
@@ -219,7 +221,7 @@ public class FeedAdapter extends CursorAdapter {
         }
         viewHolder.navigate.setVisibility(hasLocation ? View.VISIBLE : View.GONE);
 
-        viewHolder.replies.setText(String.valueOf(MessageStore.getInstance(context).getCommentCount(cursor.getString(messageId_colIndex))));
+        viewHolder.replies.setText(String.valueOf(cursor.getInt(replyCount_colIndex)));
 
         viewHolder.favorite.setActivated(cursor.getInt(favorite_colIndex) == MessageStore.TRUE);
 
@@ -72,6 +72,7 @@ import org.denovogroup.murmur.backend.SecurityManager;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Created by Liran on 12/27/2015.
@@ -91,6 +92,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
     private boolean selectAll = false;
 
     private ListView feedListView;
+    private FeedPager feedPager;
     private Button newPostButton;
 
     private ViewGroup newMessagesNotification;
@@ -105,14 +107,59 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
 
     private String query = "";
 
+    /** marks all the messages as read, submitted whenever the feed is shown or left */
+    private final Callable<Boolean> setAllAsRead = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return MessageStore.getInstance().setAllAsRead();
+        }
+    };
+
+    /** unchecks all the messages when leaving selection mode */
+    private final Callable<Boolean> uncheckAll = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return MessageStore.getInstance().checkAllMessages(false, true);
+        }
+    };
+
+    /** reloads the list once a store change submitted by updateStore is committed */
+    private final Runnable refreshList = new Runnable() {
+        @Override
+        public void run() {
+            swapCursor();
+        }
+    };
+
+    /** reloads the unread messages notification and the list once the messages were marked as read */
+    private final Runnable refreshUnread = new Runnable() {
+        @Override
+        public void run() {
+            setPendingUnreadMessagesDisplay();
+            swapCursor();
+        }
+    };
+
+    /** apply a store change without blocking the UI thread on the store writer, then run the
+     * supplied UI update once the change is committed unless the fragment was detached meanwhile */
+    private <T> void updateStore(Callable<T> change, final Runnable onCommitted){
+        MessageStore.getInstance(getActivity()).submit(change, new Runnable() {
+            @Override
+            public void run() {
+                if(isAdded() && onCommitted != null) onCommitted.run();
+            }
+        });
+    }
+
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
 
     @Override
     public void onTextChanged(CharSequence s, int start, int before, int count) {
         query = s.toString();
+        feedPager.reset();
         FeedAdapter adapter = new FeedAdapter(getActivity(), getCursor(), false, feedAdapterCallbacks);
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(SearchHelper.isKeywordSearch(query)) {
             adapter.setHighlight(Utils.getKeywords(query));
         }
         feedListView.setAdapter(adapter);
@@ -194,6 +241,12 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
         View v = inflater.inflate(R.layout.feed_fragment, container, false);
 
         feedListView = (ListView) v.findViewById(R.id.feed_listView);
+        feedPager = new FeedPager(feedListView, new FeedPager.PageSource() {
+            @Override
+            public Cursor getPage(String[] afterKey, int pageSize) {
+                return MessageStore.getInstance(getActivity()).getFeedPage(afterKey, pageSize);
+            }
+        });
         newPostButton = (Button) v.findViewById(R.id.new_post_button);
             newPostButton.setOnClickListener(this);
         newMessagesNotification = (ViewGroup) v.findViewById(R.id.new_message_notification);
@@ -201,7 +254,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
         newMessagesNotification_button = (Button) v.findViewById(R.id.new_message_notification_btn);
             newMessagesNotification_button.setOnClickListener(this);
 
-        MessageStore.getInstance(getActivity()).setAllAsRead();
+        updateStore(setAllAsRead, refreshList);
 
         setListView();
 
@@ -265,6 +318,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
                             break;
                     }
 
+                    feedPager.reset();
                     feedListView.setAdapter(new FeedAdapter(getActivity(), getCursor(), inSelectionMode, feedAdapterCallbacks));
                 }
 
@@ -299,27 +353,33 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
     /** callback handler from clicks on buttons inside the feed list view */
     FeedAdapter.FeedAdapterCallbacks feedAdapterCallbacks = new FeedAdapter.FeedAdapterCallbacks() {
         @Override
-        public void onUpvote(String message, int oldPriority) {
-            MessageStore.getInstance(getActivity()).likeMessage(
-                    message,
-                    true);
-            swapCursor();
+        public void onUpvote(final String message, int oldPriority) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().likeMessage(message, true);
+                }
+            }, refreshList);
         }
 
         @Override
-        public void onDownvote(String message, int oldPriority) {
-            MessageStore.getInstance(getActivity()).likeMessage(
-                    message,
-                    false);
-            swapCursor();
+        public void onDownvote(final String message, int oldPriority) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().likeMessage(message, false);
+                }
+            }, refreshList);
         }
 
         @Override
-        public void onFavorite(String message, boolean isFavoriteBefore) {
-            MessageStore.getInstance(getActivity()).favoriteMessage(
-                    message,
-                    !isFavoriteBefore);
-            swapCursor();
+        public void onFavorite(final String message, final boolean isFavoriteBefore) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().favoriteMessage(message, !isFavoriteBefore);
+                }
+            }, refreshList);
         }
 
         @Override
@@ -348,10 +408,20 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
         }
     };
 
+    /** return true if the feed is displaying search results rather than the paged feed */
+    private boolean isSearching(){
+        return SearchHelper.hasConditions(query) || SearchHelper.toMatchExpression(query) != null;
+    }
+
     private Cursor getCursor(){
-        String sqlQuery = SearchHelper.searchToSQL(query);
+        if(!isSearching()){
+            return feedPager.load();
+        }
+        feedPager.reset();
+        List<String> queryArgs = new ArrayList<>();
+        String sqlQuery = SearchHelper.searchToSQL(query, queryArgs);
         return (sqlQuery != null) ?
-                MessageStore.getInstance(getActivity()).getMessagesByQuery(sqlQuery) :
+                MessageStore.getInstance(getActivity()).getMessagesByQuery(sqlQuery, queryArgs.toArray(new String[queryArgs.size()])) :
                 MessageStore.getInstance(getActivity()).getMessagesContainingCursor(query, false, false, -1);
     }
 
@@ -365,7 +435,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
 
         CursorAdapter newAdapter = ((CursorAdapter) feedListView.getAdapter());
         newAdapter.swapCursor(getCursor());
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(SearchHelper.isKeywordSearch(query)) {
             ((FeedAdapter) newAdapter).setHighlight(Utils.getKeywords(query));
         }
         feedListView.setAdapter(newAdapter);
@@ -402,68 +472,81 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 Cursor c = ((CursorAdapter) feedListView.getAdapter()).getCursor();
                 c.moveToPosition(position);
-                boolean isChecked = c.getInt(c.getColumnIndex(MessageStore.COL_CHECKED)) == MessageStore.TRUE;
-                String message = c.getString(c.getColumnIndex(MessageStore.COL_MESSAGE));
+                final boolean isChecked = c.getInt(c.getColumnIndex(MessageStore.COL_CHECKED)) == MessageStore.TRUE;
+                final String message = c.getString(c.getColumnIndex(MessageStore.COL_MESSAGE));
 
-                MessageStore.getInstance(getActivity()).checkMessage(message, !isChecked);
-                swapCursor();
+                updateStore(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return MessageStore.getInstance().checkMessage(message, !isChecked);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        swapCursor();
+                        updateSelectionMenu();
+                    }
+                });
+            }
+        });
+        setActionbar();
 
-                Cursor checkedCursor = MessageStore.getInstance(getActivity()).getCheckedMessages();
-                int checkedCount = checkedCursor.getCount();
-                updateSelectAll();
-                ((AppCompatActivity) getActivity()).getSupportActionBar().setTitle(checkedCount <= 99 ? String.valueOf(checkedCount) : "+99");
+        newPostButton.setVisibility(View.INVISIBLE);
+    }
 
-                if (menu != null) {
-                    menu.findItem(R.id.action_delete).setEnabled(checkedCount > 0);
+    /** update the action bar title and the delete actions to the currently checked messages */
+    private void updateSelectionMenu(){
+        Cursor checkedCursor = MessageStore.getInstance(getActivity()).getCheckedMessages();
+        int checkedCount = checkedCursor.getCount();
+        updateSelectAll();
+        ((AppCompatActivity) getActivity()).getSupportActionBar().setTitle(checkedCount <= 99 ? String.valueOf(checkedCount) : "+99");
 
-                    boolean canDeleteTrust = false;
-                    boolean canDeleteLikes = false;
-                    boolean canDeleteSender = false;
-                    boolean canDeleteExchange = false;
-                    boolean canDeleteTree = false;
+        if (menu != null) {
+            menu.findItem(R.id.action_delete).setEnabled(checkedCount > 0);
 
-                    if (checkedCount == 1) {
-                        checkedCursor.moveToFirst();
-                        String sender = checkedCursor.getString(checkedCursor.getColumnIndex(MessageStore.COL_PSEUDONYM));
+            boolean canDeleteTrust = false;
+            boolean canDeleteLikes = false;
+            boolean canDeleteSender = false;
+            boolean canDeleteExchange = false;
+            boolean canDeleteTree = false;
 
-                        if (sender != null)
-                            canDeleteSender = MessageStore.getInstance(getActivity()).getMessagesBySenderCount(sender) > 0;
+            if (checkedCount == 1) {
+                checkedCursor.moveToFirst();
+                String sender = checkedCursor.getString(checkedCursor.getColumnIndex(MessageStore.COL_PSEUDONYM));
 
-                        String exchange = checkedCursor.getString(checkedCursor.getColumnIndex(MessageStore.COL_EXCHANGE));
+                if (sender != null)
+                    canDeleteSender = MessageStore.getInstance(getActivity()).getMessagesBySenderCount(sender) > 0;
 
-                        if (exchange != null)
-                            canDeleteExchange = MessageStore.getInstance(getActivity()).getMessagesByExchangeCount(exchange) > 0;
+                String exchange = checkedCursor.getString(checkedCursor.getColumnIndex(MessageStore.COL_EXCHANGE));
 
-                        float trust = checkedCursor.getFloat(checkedCursor.getColumnIndex(MessageStore.COL_TRUST));
+                if (exchange != null)
+                    canDeleteExchange = MessageStore.getInstance(getActivity()).getMessagesByExchangeCount(exchange) > 0;
 
-                        canDeleteTrust = SecurityManager.getCurrentProfile(getActivity()).isUseTrust() &&MessageStore.getInstance(getActivity()).getMessagesByTrustCount(trust) > 0;
+                float trust = checkedCursor.getFloat(checkedCursor.getColumnIndex(MessageStore.COL_TRUST));
 
-                        int likes = checkedCursor.getInt(checkedCursor.getColumnIndex(MessageStore.COL_LIKES));
+                canDeleteTrust = SecurityManager.getCurrentProfile(getActivity()).isUseTrust() &&MessageStore.getInstance(getActivity()).getMessagesByTrustCount(trust) > 0;
 
-                        canDeleteLikes = MessageStore.getInstance(getActivity()).getMessagesByLikeCount(likes) > 0;
+                int likes = checkedCursor.getInt(checkedCursor.getColumnIndex(MessageStore.COL_LIKES));
 
-                        String treeId = checkedCursor.getString(checkedCursor.getColumnIndex(MessageStore.COL_MESSAGE_ID));
-                        canDeleteTree = treeId != null && MessageStore.getInstance(getActivity()).getCommentCount(treeId) > 0;
-                    }
+                canDeleteLikes = MessageStore.getInstance(getActivity()).getMessagesByLikeCount(likes) > 0;
 
-                    menu.findItem(R.id.action_delete_by_connection).setEnabled(checkedCount == 1 && canDeleteTrust);
-                    menu.findItem(R.id.action_delete_by_exchange).setEnabled(checkedCount == 1 && canDeleteExchange);
-                    menu.findItem(R.id.action_delete_from_sender).setEnabled(checkedCount == 1 && canDeleteSender);
-                    menu.findItem(R.id.action_delete_tree).setEnabled(checkedCount == 1 && canDeleteTree);
-                    menu.findItem(R.id.action_retweet).setEnabled(checkedCount == 1);
-                    menu.findItem(R.id.action_share).setEnabled(checkedCount == 1);
-                }
-                checkedCursor.close();
+                String treeId = checkedCursor.getString(checkedCursor.getColumnIndex(MessageStore.COL_MESSAGE_ID));
+                canDeleteTree = treeId != null && MessageStore.getInstance(getActivity()).getCommentCount(treeId) > 0;
             }
-        });
-        setActionbar();
 
-        newPostButton.setVisibility(View.INVISIBLE);
+            menu.findItem(R.id.action_delete_by_connection).setEnabled(checkedCount == 1 && canDeleteTrust);
+            menu.findItem(R.id.action_delete_by_exchange).setEnabled(checkedCount == 1 && canDeleteExchange);
+            menu.findItem(R.id.action_delete_from_sender).setEnabled(checkedCount == 1 && canDeleteSender);
+            menu.findItem(R.id.action_delete_tree).setEnabled(checkedCount == 1 && canDeleteTree);
+            menu.findItem(R.id.action_retweet).setEnabled(checkedCount == 1);
+            menu.findItem(R.id.action_share).setEnabled(checkedCount == 1);
+        }
+        checkedCursor.close();
     }
 
     private void setListInDisplayMode(){
         inSelectionMode = false;
-        MessageStore.getInstance(getActivity()).checkAllMessages(false, true);
+        updateStore(uncheckAll, refreshList);
                 ((FeedAdapter) feedListView.getAdapter()).setSelectionMode(false);
         feedListView.setOnItemLongClickListener(longClickListener);
         feedListView.setOnItemClickListener(null/*new AdapterView.OnItemClickListener() {
@@ -595,16 +678,34 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
             leftText.setOnClickListener(inSelectionMode ? new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    String sqlQuery = SearchHelper.searchToSQL(query);
-                    if (sqlQuery != null) {
-                        MessageStore.getInstance(getActivity()).checkAllQueriedMessages(!selectAll, sqlQuery);
-                    } else {
-                        MessageStore.getInstance(getActivity()).checkAllMessagesContaining(!selectAll, query);
+                    //select the same messages the list shows, see getCursor
+                    List<String> queryArgs = new ArrayList<>();
+                    String sqlQuery = SearchHelper.searchToSQL(query, queryArgs);
+                    if (sqlQuery == null) {
+                        sqlQuery = "";
+                        String matchCondition = MessageStore.getMatchCondition(query);
+                        if (matchCondition != null) {
+                            sqlQuery = " AND " + matchCondition;
+                            queryArgs.add(SearchHelper.toMatchExpression(query));
+                        }
                     }
-                    selectAll = !selectAll;
-                    swapCursor();
 
-                    setActionbar();
+                    final String condition = sqlQuery;
+                    final String[] conditionArgs = queryArgs.toArray(new String[queryArgs.size()]);
+                    final boolean check = !selectAll;
+                    updateStore(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return MessageStore.getInstance().checkAllQueriedMessages(check, condition, conditionArgs);
+                        }
+                    }, new Runnable() {
+                        @Override
+                        public void run() {
+                            swapCursor();
+                            setActionbar();
+                        }
+                    });
+                    selectAll = check;
                 }
             } : null);
         }
@@ -613,7 +714,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
     private void updateSelectAll() {
         //TODO: Danielk Should this contain replies as well?
         int checkedCount = MessageStore.getInstance(getActivity()).getCheckedMessages().getCount();
-        long totalCount = getCursor().getCount();
+        long totalCount = isSearching() ? getCursor().getCount() : MessageStore.getInstance(getActivity()).getMessageCount(false, false);
         selectAll = checkedCount == totalCount;
         if(leftText != null)
         {
@@ -682,7 +783,13 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).removeCheckedMessage();
+                        updateStore(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                return MessageStore.getInstance().removeCheckedMessage();
+                            }
+                        }, refreshList);
+                        //queued after the removal, which still sees the checked messages
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -703,9 +810,13 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteByTrust(
-                                trust
-                        );
+                        updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteByTrust(trust);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -726,7 +837,13 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteByExchange(exchange);
+                        updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteByExchange(exchange);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -747,9 +864,13 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteBySender(
-                                senderName
-                        );
+                        updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteBySender(senderName);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -770,7 +891,13 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteTree(treeId);
+                        updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteTree(treeId);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -799,11 +926,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
                     @Override
                     public void onClick(View v) {
                         //mark all the messages as read
-                        MessageStore.getInstance(getActivity()).setAllAsRead();
-                        setPendingUnreadMessagesDisplay();
-
-                        swapCursor();
-                        setPendingUnreadMessagesDisplay();
+                        updateStore(setAllAsRead, refreshUnread);
                     }
                 });
             } else {
@@ -817,9 +940,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
     public void onResume() {
         super.onResume();
 
-        MessageStore.getInstance(getActivity()).setAllAsRead();
-        setPendingUnreadMessagesDisplay();
-        swapCursor();
+        updateStore(setAllAsRead, refreshUnread);
 
         receiver = new MessageEventReceiver();
         getActivity().registerReceiver(receiver, filter);
@@ -835,9 +956,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
         }
 
         //mark all the messages as read
-        MessageStore.getInstance(getActivity()).setAllAsRead();
-        setPendingUnreadMessagesDisplay();
-        swapCursor();
+        updateStore(setAllAsRead, refreshUnread);
     }
 
     @Override
@@ -847,11 +966,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
             switch (reqCode){
                 case REQ_CODE_MESSAGE:
                     //mark all the messages as read
-                    MessageStore.getInstance(getActivity()).setAllAsRead();
-                    setPendingUnreadMessagesDisplay();
-
-                    swapCursor();
-                    setPendingUnreadMessagesDisplay();
+                    updateStore(setAllAsRead, refreshUnread);
                     break;
             }
         }
@@ -861,7 +976,7 @@ public class FeedFragment extends Fragment implements View.OnClickListener, Text
     public void onDestroy() {
         super.onDestroy();
         if(searchView != null) searchView.removeTextChangedListener(this);
-        MessageStore.getInstance(getActivity()).setAllAsRead();
+        MessageStore.getInstance(getActivity()).submit(setAllAsRead, null);
     }
 
     @Override
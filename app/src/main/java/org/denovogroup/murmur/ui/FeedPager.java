@@ -0,0 +1,147 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.ui;
+
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
+import android.widget.ListView;
+
+import org.denovogroup.murmur.backend.MessageStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a message list into its CursorAdapter in fixed size pages, loading the next page
+ * from the MessageStore when the list is scrolled close to its end.
+ */
+public class FeedPager implements AbsListView.OnScrollListener {
+
+    /** number of messages loaded per page */
+    public static final int PAGE_SIZE = 50;
+
+    /** Source of the pages, usually one of the MessageStore page queries */
+    public interface PageSource{
+        Cursor getPage(String[] afterKey, int pageSize);
+    }
+
+    private ListView listView;
+    private PageSource source;
+    private int loadedCount = 0;
+    private boolean hasMore = false;
+    private boolean loading = false;
+
+    /** the pages loaded so far, the adapter shows a single MergeCursor over all of them */
+    private final List<Cursor> pages = new ArrayList<>();
+    /** the cursor last handed to the adapter, either the first page or a merge of the pages */
+    private Cursor shown;
+
+    public FeedPager(ListView listView, PageSource source) {
+        this.listView = listView;
+        this.source = source;
+        listView.setOnScrollListener(this);
+    }
+
+    /** Forget the loaded pages, the next load will start over from the first page. Should be
+     * called whenever the list content changes entirely, i.e. the sort order or filter change */
+    public void reset(){
+        loadedCount = 0;
+        hasMore = false;
+        pages.clear();
+        shown = null;
+    }
+
+    /** Return a cursor with the first pages of the list, covering at least as many items as were
+     * loaded before so reloading the list does not lose the scroll position. */
+    public Cursor load(){
+        int size = Math.max(PAGE_SIZE, loadedCount);
+        Cursor cursor = source.getPage(null, size);
+        loadedCount = cursor != null ? cursor.getCount() : 0;
+        hasMore = loadedCount >= size;
+        pages.clear();
+        if(cursor != null) pages.add(cursor);
+        shown = cursor;
+        return cursor;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if(hasMore && !loading && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2){
+            loading = true;
+            //append outside of the scroll callback, the adapter change triggers a new layout
+            listView.post(new Runnable() {
+                @Override
+                public void run() {
+                    loadNextPage();
+                    loading = false;
+                }
+            });
+        }
+    }
+
+    private void loadNextPage(){
+        if(!(listView.getAdapter() instanceof CursorAdapter)) return;
+
+        CursorAdapter adapter = (CursorAdapter) listView.getAdapter();
+        Cursor current = adapter.getCursor();
+        if(current != shown){
+            //the adapter was handed a cursor not loaded here, page on from it
+            pages.clear();
+            if(current != null) pages.add(current);
+            shown = current;
+        }
+        Cursor last = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if(last == null || last.isClosed() || !last.moveToLast()){
+            hasMore = false;
+            return;
+        }
+
+        String[] afterKey = MessageStore.getInstance(listView.getContext()).getPageKey(last);
+        Cursor next = source.getPage(afterKey, PAGE_SIZE);
+        if(next == null || next.getCount() == 0){
+            hasMore = false;
+            if(next != null) next.close();
+            return;
+        }
+
+        hasMore = next.getCount() >= PAGE_SIZE;
+        loadedCount += next.getCount();
+        //a single merge over all the pages rather than nesting the previous merge in a new one
+        pages.add(next);
+        shown = new MergeCursor(pages.toArray(new Cursor[pages.size()]));
+        adapter.swapCursor(shown);
+    }
+}
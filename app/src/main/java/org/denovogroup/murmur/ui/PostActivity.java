@@ -65,6 +65,7 @@ import org.denovogroup.murmur.backend.SecurityManager;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -371,13 +372,13 @@ public class PostActivity extends AppCompatActivity {
                  * @param v
                  *            The view which is clicked - in this case, the Button.
                  */
-                MessageStore messageStore = MessageStore.getInstance(PostActivity.this);
-                float trust = 1.0f;
-                int priority = 0;
-                SecurityProfile currentProfile = org.denovogroup.murmur.backend.SecurityManager.getCurrentProfile(PostActivity.this);
-                String pseudonym = currentProfile.isPseudonyms() ?
+                final MessageStore messageStore = MessageStore.getInstance(PostActivity.this);
+                final float trust = 1.0f;
+                final int priority = 0;
+                final SecurityProfile currentProfile = org.denovogroup.murmur.backend.SecurityManager.getCurrentProfile(PostActivity.this);
+                final String pseudonym = currentProfile.isPseudonyms() ?
                         SecurityManager.getCurrentPseudonym(PostActivity.this) : "";
-                long timestamp = (currentProfile.isTimestamp() || timebound > 0) ?
+                final long timestamp = (currentProfile.isTimestamp() || timebound > 0) ?
                         System.currentTimeMillis() : 0;
 
 
@@ -403,16 +404,42 @@ public class PostActivity extends AppCompatActivity {
 
                 Random random = new Random();
                 long idLong = System.nanoTime() * (1 + random.nextInt());
-                String messageId = Base64.encodeToString(Crypto.encodeString(String.valueOf(idLong)), Base64.NO_WRAP);
-
-                messageStore.addMessage(PostActivity.this, messageId, messageBody, trust, priority, pseudonym, timestamp, true, TimeUnit.HOURS.toMillis(timebound), myLocation, messageParent, true, restrictButton.isActivated() ? currentProfile.getMinContactsForHop() : 0, 0, null, messageParent);
-                Toast.makeText(PostActivity.this, "Message sent!",
-                        Toast.LENGTH_SHORT).show();
-                ExchangeHistoryTracker.getInstance().cleanHistory(null);
-                MessageStore.getInstance(PostActivity.this).updateStoreVersion();
-
-                PostActivity.this.setResult(Activity.RESULT_OK);
-                PostActivity.this.finish();
+                final String messageId = Base64.encodeToString(Crypto.encodeString(String.valueOf(idLong)), Base64.NO_WRAP);
+                final Location location = myLocation;
+                final String body = messageBody;
+                final String parent = messageParent;
+                final long timeboundMillis = TimeUnit.HOURS.toMillis(timebound);
+                final int minContactsForHop = restrictButton.isActivated() ? currentProfile.getMinContactsForHop() : 0;
+
+                //don't block the UI thread on the store writer, leave once the message is committed
+                send.setEnabled(false);
+                final Context appContext = getApplicationContext();
+                final boolean[] added = new boolean[1];
+                messageStore.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        added[0] = messageStore.addMessage(appContext, messageId, body, trust, priority, pseudonym, timestamp, true, timeboundMillis, location, parent, true, minContactsForHop, 0, null, parent);
+                        return added[0];
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        //a failed write leaves added unset, the post stays open so it can be sent again
+                        if(!added[0]) {
+                            send.setEnabled(isTextValid(messageBody));
+                            Toast.makeText(appContext, R.string.post_failed, Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        messageStore.updateStoreVersion();
+                        if(timeboundMillis > 0) MurmurService.rescheduleCleanup();
+                        ExchangeHistoryTracker.getInstance().cleanHistory(null);
+
+                        Toast.makeText(appContext, "Message sent!",
+                                Toast.LENGTH_SHORT).show();
+                        PostActivity.this.setResult(Activity.RESULT_OK);
+                        PostActivity.this.finish();
+                    }
+                });
                 break;
         }
 
@@ -68,6 +68,7 @@ import org.denovogroup.murmur.backend.SecurityManager;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Created by Liran on 12/27/2015.
@@ -85,6 +86,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
     private boolean selectAll = false;
 
     private ListView feedListView;
+    private FeedPager feedPager;
     private Button newPostButton;
 
     private ViewGroup newMessagesNotification;
@@ -99,14 +101,59 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
 
     private String query = "";
 
+    /** marks all the messages as read, submitted whenever the list is left */
+    private final Callable<Boolean> setAllAsRead = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return MessageStore.getInstance().setAllAsRead();
+        }
+    };
+
+    /** unchecks all the messages when leaving selection mode */
+    private final Callable<Boolean> uncheckAll = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return MessageStore.getInstance().checkAllMessages(false, true);
+        }
+    };
+
+    /** reloads the list once a store change submitted by updateStore is committed */
+    private final Runnable refreshList = new Runnable() {
+        @Override
+        public void run() {
+            swapCursor();
+        }
+    };
+
+    /** reloads the unread messages notification and the list once the messages were marked as read */
+    private final Runnable refreshUnread = new Runnable() {
+        @Override
+        public void run() {
+            setPendingUnreadMessagesDisplay();
+            swapCursor();
+        }
+    };
+
+    /** apply a store change without blocking the UI thread on the store writer, then run the
+     * supplied UI update once the change is committed unless the fragment was detached meanwhile */
+    private <T> void updateStore(Callable<T> change, final Runnable onCommitted){
+        MessageStore.getInstance(getActivity()).submit(change, new Runnable() {
+            @Override
+            public void run() {
+                if(isAdded() && onCommitted != null) onCommitted.run();
+            }
+        });
+    }
+
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
 
     @Override
     public void onTextChanged(CharSequence s, int start, int before, int count) {
         query = s.toString();
+        feedPager.reset();
         FeedAdapter adapter = new FeedAdapter(getActivity(), getCursor(), false, feedAdapterCallbacks);
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(SearchHelper.isKeywordSearch(query)) {
             adapter.setHighlight(Utils.getKeywords(query));
         }
         feedListView.setAdapter(adapter);
@@ -184,6 +231,12 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
         View v = inflater.inflate(R.layout.feed_fragment, container, false);
 
         feedListView = (ListView) v.findViewById(R.id.feed_listView);
+        feedPager = new FeedPager(feedListView, new FeedPager.PageSource() {
+            @Override
+            public Cursor getPage(String[] afterKey, int pageSize) {
+                return MessageStore.getInstance(getActivity()).getFavoritesPage(afterKey, pageSize);
+            }
+        });
         newPostButton = (Button) v.findViewById(R.id.new_post_button);
             newPostButton.setOnClickListener(this);
         newMessagesNotification = (ViewGroup) v.findViewById(R.id.new_message_notification);
@@ -249,6 +302,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                             break;
                     }
 
+                    feedPager.reset();
                     feedListView.setAdapter(new FeedAdapter(getActivity(), getCursor(), inSelectionMode, feedAdapterCallbacks));
                 }
 
@@ -276,27 +330,33 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
     /** callback handler from clicks on buttons inside the feed list view */
     FeedAdapter.FeedAdapterCallbacks feedAdapterCallbacks = new FeedAdapter.FeedAdapterCallbacks() {
         @Override
-        public void onUpvote(String message, int oldPriority) {
-            MessageStore.getInstance(getActivity()).likeMessage(
-                    message,
-                    true);
-            swapCursor();
+        public void onUpvote(final String message, int oldPriority) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().likeMessage(message, true);
+                }
+            }, refreshList);
         }
 
         @Override
-        public void onDownvote(String message, int oldPriority) {
-            MessageStore.getInstance(getActivity()).likeMessage(
-                    message,
-                    false);
-            swapCursor();
+        public void onDownvote(final String message, int oldPriority) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().likeMessage(message, false);
+                }
+            }, refreshList);
         }
 
         @Override
-        public void onFavorite(String message, boolean isFavoriteBefore) {
-            MessageStore.getInstance(getActivity()).favoriteMessage(
-                    message,
-                    !isFavoriteBefore);
-            swapCursor();
+        public void onFavorite(final String message, final boolean isFavoriteBefore) {
+            updateStore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return MessageStore.getInstance().favoriteMessage(message, !isFavoriteBefore);
+                }
+            }, refreshList);
         }
 
         @Override
@@ -321,11 +381,21 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
         }
     };
 
+    /** return true if the list is displaying search results rather than the paged favorites */
+    private boolean isSearching(){
+        return SearchHelper.hasConditions(query) || SearchHelper.toMatchExpression(query) != null;
+    }
+
     private Cursor getCursor(){
+        if(!isSearching()){
+            return feedPager.load();
+        }
+        feedPager.reset();
         String baseCondition = "AND "+MessageStore.COL_FAVIRITE+"="+MessageStore.TRUE;
-        String sqlQuery = SearchHelper.searchToSQL(query);
+        List<String> queryArgs = new ArrayList<>();
+        String sqlQuery = SearchHelper.searchToSQL(query, queryArgs);
         return (sqlQuery != null) ?
-                MessageStore.getInstance(getActivity()).getMessagesByQuery(sqlQuery+baseCondition) :
+                MessageStore.getInstance(getActivity()).getMessagesByQuery(sqlQuery+baseCondition, queryArgs.toArray(new String[queryArgs.size()])) :
                 MessageStore.getInstance(getActivity()).getFavoriteMessagesContainingCursor(query, false, false, -1);
     }
 
@@ -339,7 +409,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
 
         CursorAdapter newAdapter = ((CursorAdapter) feedListView.getAdapter());
         newAdapter.swapCursor(getCursor());
-        if(SearchHelper.searchToSQL(query) == null) {
+        if(SearchHelper.isKeywordSearch(query)) {
             ((FeedAdapter) newAdapter).setHighlight(Utils.getKeywords(query));
         }
         feedListView.setAdapter(newAdapter);
@@ -376,12 +446,21 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 Cursor c = ((CursorAdapter) feedListView.getAdapter()).getCursor();
                 c.moveToPosition(position);
-                boolean isChecked = c.getInt(c.getColumnIndex(MessageStore.COL_CHECKED)) == MessageStore.TRUE;
-                String message = c.getString(c.getColumnIndex(MessageStore.COL_MESSAGE));
+                final boolean isChecked = c.getInt(c.getColumnIndex(MessageStore.COL_CHECKED)) == MessageStore.TRUE;
+                final String message = c.getString(c.getColumnIndex(MessageStore.COL_MESSAGE));
 
-                MessageStore.getInstance(getActivity()).checkMessage(message, !isChecked);
-                swapCursor();
-                setActionbar();
+                updateStore(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return MessageStore.getInstance().checkMessage(message, !isChecked);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        swapCursor();
+                        setActionbar();
+                    }
+                });
 
             }
         });
@@ -392,7 +471,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
 
     private void setListInDisplayMode(){
         inSelectionMode = false;
-        MessageStore.getInstance(getActivity()).checkAllMessages(false, true);
+        updateStore(uncheckAll, refreshList);
                 ((FeedAdapter) feedListView.getAdapter()).setSelectionMode(false);
         feedListView.setOnItemLongClickListener(longClickListener);
         feedListView.setOnItemClickListener(null/*new AdapterView.OnItemClickListener() {
@@ -515,31 +594,35 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                 public void onClick(View v) {
 
                     String baseCondition = "AND "+MessageStore.COL_FAVIRITE+"="+MessageStore.TRUE;
-                    String sqlQuery = SearchHelper.searchToSQL(query);
+                    List<String> queryArgs = new ArrayList<>();
+                    String sqlQuery = SearchHelper.searchToSQL(query, queryArgs);
                     if (sqlQuery != null){
                         sqlQuery += baseCondition;
                     } else {
                         sqlQuery = baseCondition;
-                        String safequery = Utils.makeTextSafeForSQL(query);
-                        String likeQuery = "";
-                        safequery = safequery.replaceAll("[\n\"]", " ");
-                        String[] words = safequery.split("\\s");
-                        for (int i = 0; i < words.length; i++) {
-                            if (words[i].length() > 0) {
-                                if (likeQuery.length() > 0) {
-                                    likeQuery += " OR ";
-                                }
-                                likeQuery += " " + MessageStore.COL_MESSAGE + " LIKE '%" + words[i] + "%' ";
-                            }
+                        String matchCondition = MessageStore.getMatchCondition(query);
+                        if(matchCondition != null) {
+                            sqlQuery += " AND " + matchCondition;
+                            queryArgs.add(SearchHelper.toMatchExpression(query));
                         }
-                        if(likeQuery.length() > 0)
-                            sqlQuery += " AND ( " + likeQuery + " )";
                     }
 
-                    MessageStore.getInstance(getActivity()).checkAllQueriedMessages(!selectAll, sqlQuery);
-                    selectAll = !selectAll;
-                    swapCursor();
-                    setActionbar();
+                    final String condition = sqlQuery;
+                    final String[] conditionArgs = queryArgs.toArray(new String[queryArgs.size()]);
+                    final boolean check = !selectAll;
+                    updateStore(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return MessageStore.getInstance().checkAllQueriedMessages(check, condition, conditionArgs);
+                        }
+                    }, new Runnable() {
+                        @Override
+                        public void run() {
+                            swapCursor();
+                            setActionbar();
+                        }
+                    });
+                    selectAll = check;
                 }
             } : null);
         }
@@ -603,7 +686,13 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).removeCheckedMessage();
+updateStore(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                return MessageStore.getInstance().removeCheckedMessage();
+                            }
+                        }, refreshList);
+                        //queued after the removal, which still sees the checked messages
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -624,9 +713,13 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteByTrust(
-                                trust
-                        );
+updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteByTrust(trust);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -647,7 +740,13 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteByExchange(exchange);
+updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteByExchange(exchange);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -668,9 +767,13 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteBySender(
-                                senderName
-                        );
+updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteBySender(senderName);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -690,7 +793,13 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                 dialog.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        MessageStore.getInstance(getActivity()).deleteTree(treeId);
+updateStore(new Callable<Void>() {
+                            @Override
+                            public Void call() {
+                                MessageStore.getInstance().deleteTree(treeId);
+                                return null;
+                            }
+                        }, refreshList);
                         setListInDisplayMode();
                         dialog.dismiss();
                     }
@@ -719,11 +828,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
                     @Override
                     public void onClick(View v) {
                         //mark all the messages as read
-                        MessageStore.getInstance(getActivity()).setAllAsRead();
-                        setPendingUnreadMessagesDisplay();
-
-                        swapCursor();
-                        setPendingUnreadMessagesDisplay();
+                        updateStore(setAllAsRead, refreshUnread);
                     }
                 });
             } else {
@@ -753,9 +858,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
         }
 
         //mark all the messages as read
-        MessageStore.getInstance(getActivity()).setAllAsRead();
-        setPendingUnreadMessagesDisplay();
-        swapCursor();
+        updateStore(setAllAsRead, refreshUnread);
     }
 
     @Override
@@ -765,11 +868,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
             switch (reqCode){
                 case REQ_CODE_MESSAGE:
                     //mark all the messages as read
-                    MessageStore.getInstance(getActivity()).setAllAsRead();
-                    setPendingUnreadMessagesDisplay();
-
-                    swapCursor();
-                    setPendingUnreadMessagesDisplay();
+                    updateStore(setAllAsRead, refreshUnread);
                     break;
             }
         }
@@ -800,7 +899,7 @@ public class StarredFragment extends Fragment implements View.OnClickListener, T
     private void updateSelectAll() {
         //TODO: Danielk Should this contain replies as well?
         int checkedCount = MessageStore.getInstance(getActivity()).getCheckedMessages().getCount();
-        long totalCount = getCursor().getCount();
+        long totalCount = isSearching() ? getCursor().getCount() : MessageStore.getInstance(getActivity()).getFavoriteCount();
         selectAll = checkedCount == totalCount;
         if(leftText != null)
         {
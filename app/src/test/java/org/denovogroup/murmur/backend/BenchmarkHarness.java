@@ -0,0 +1,140 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import org.junit.Assume;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared plumbing of the benchmarks: skipping them unless the murmur.benchmark system property
+ * is set, timing operations and appending the results as CSV rows to app/build/benchmark so runs
+ * before and after a change can be compared.
+ *
+ * The benchmarks run on Robolectric, whose classloader JMH can not host, so this is a plain
+ * warmup and measure loop run by ./gradlew benchmark, which gives every benchmark class its own
+ * JVM. Operations hand their results to {@link #consume(Object)} so the JIT can not drop them.
+ */
+class BenchmarkHarness implements Closeable {
+
+    private final PrintWriter csv;
+
+    /** read by nothing, written by {@link #consume(Object)} to keep results alive */
+    private static volatile Object sink;
+
+    /** keep the result of a timed operation from being optimized away as dead code */
+    static void consume(Object result){
+        sink = result;
+    }
+
+    /** skip the calling benchmark unless the murmur.benchmark system property is set */
+    static void assumeEnabled(){
+        Assume.assumeTrue(Boolean.getBoolean("murmur.benchmark"));
+    }
+
+    /**
+     * Open the named CSV report for appending, writing the header if the report is new.
+     *
+     * @param name file name of the report in app/build/benchmark, without extension
+     * @param header comma separated column names
+     */
+    BenchmarkHarness(String name, String header) throws IOException {
+        File output = new File("build/benchmark/" + name + ".csv");
+        output.getParentFile().mkdirs();
+        boolean exists = output.exists();
+        csv = new PrintWriter(new FileWriter(output, true));
+        if(!exists) csv.println(header);
+    }
+
+    /** append a row of the supplied values, the current time is prepended as the first column */
+    void row(Object... values){
+        StringBuilder row = new StringBuilder(Long.toString(System.currentTimeMillis()));
+        for (Object value : values) {
+            row.append(',').append(value);
+        }
+        csv.println(row);
+        csv.flush();
+    }
+
+    @Override
+    public void close(){
+        csv.close();
+    }
+
+    /** return the mean duration of a round of the supplied operation in nanoseconds, after
+     * running it warmup times untimed */
+    static long meanNanos(Runnable runnable, int warmup, int rounds){
+        for (int i = 0; i < warmup; i++) {
+            runnable.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            runnable.run();
+        }
+        return Math.max(1, (System.nanoTime() - start) / rounds);
+    }
+
+    /** return the sorted durations in microseconds of timing each round of the supplied
+     * operation separately, after running it warmup times untimed */
+    static long[] sampleMicros(Runnable runnable, int warmup, int rounds){
+        for (int i = 0; i < warmup; i++) {
+            runnable.run();
+        }
+        long[] micros = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            runnable.run();
+            micros[i] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        }
+        Arrays.sort(micros);
+        return micros;
+    }
+
+    /** return the mean, median, 95th percentile and maximum of sorted samples as CSV columns */
+    static String summary(long[] sorted){
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+        return (total / sorted.length) + "," + sorted[sorted.length / 2] + ","
+                + sorted[(int) (sorted.length * 0.95)] + "," + sorted[sorted.length - 1];
+    }
+
+    static long perSecond(long items, long nanos){
+        return items * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.Context;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.denovogroup.murmur.objects.MurmurMessage;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the messages per second of a full CryptographicExchange between two peers connected
+ * by in-memory pipes, for several batch sizes, sending and receiving one after the other or at
+ * the same time.
+ *
+ * Excluded from the unit tests, run it with ./gradlew benchmark --tests '*ExchangeBenchmark'
+ *
+ * Pipes flush for free, so every flush can be delayed by murmur.benchmark.flushMillis (0 and 5
+ * by default, comma separated) to model the cost of an RFCOMM flush. Results are appended as CSV
+ * rows to app/build/benchmark/exchange.csv.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ExchangeBenchmark {
+
+    private static final String CSV_HEADER = "time,messages,duplex,batch_messages,flush_ms,frames,wire_bytes,compression_ratio,ms,messages_per_sec";
+    private static final String DEFAULT_FLUSH_MILLIS = "0,5";
+
+    private static final int MESSAGES = 1000;
+    private static final int[] BATCHES = new int[]{1, 8, 32, 128};
+    /** both peers send all their messages before reading any, so a pipe must hold them all */
+    private static final int PIPE_SIZE = 4 * 1024 * 1024;
+    private static final long EXCHANGE_TIMEOUT_SECONDS = 120;
+
+    private final Random random = new Random(42);
+    private int run = 0;
+
+    @Test
+    public void benchmark() throws Exception {
+        BenchmarkHarness.assumeEnabled();
+
+        Context context = RuntimeEnvironment.application;
+        SecurityProfile profile = SecurityManager.getCurrentProfile(context)
+                .setName(SecurityManager.CUSTOM_PROFILE_NAME)
+                .setUseTrust(false)
+                .setMaxMessages(MESSAGES)
+                .setFeedSize(0);
+        SecurityManager.setCurrentProfile(context, profile);
+
+        MessageStore store = MessageStore.getInstance(context);
+        store.purgeStore();
+        store.ingestExchange(context, createMessages(), "fill", 1, 1);
+
+        BenchmarkHarness csv = new BenchmarkHarness("exchange", CSV_HEADER);
+        try {
+            for (String flush : System.getProperty("murmur.benchmark.flushMillis", DEFAULT_FLUSH_MILLIS).split(",")) {
+                for (boolean duplex : new boolean[]{false, true}) {
+                    for (int batch : BATCHES) {
+                        exchange(csv, context, store, duplex, batch, Long.parseLong(flush.trim()));
+                    }
+                }
+            }
+        } finally {
+            csv.close();
+        }
+    }
+
+    private List<MurmurMessage> createMessages(){
+        List<MurmurMessage> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder text = new StringBuilder("message" + i);
+            int length = 20 + random.nextInt(120);
+            while (text.length() < length) {
+                text.append(' ').append(Integer.toString(random.nextInt(100000), 36));
+            }
+            messages.add(new MurmurMessage("message" + i, text.toString(), 0.5, 0, "sender" + random.nextInt(100),
+                    System.currentTimeMillis(), null, -1, null, 0, null, 0));
+        }
+        return messages;
+    }
+
+    /** run both sides of an exchange sending every stored message, and time it */
+    private void exchange(BenchmarkHarness csv, Context context, MessageStore store, boolean duplex, int batch, long flushMillis) throws Exception {
+        PipedInputStream inA = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream inB = new PipedInputStream(PIPE_SIZE);
+        SlowFlushStream outA = new SlowFlushStream(new PipedOutputStream(inB), flushMillis);
+        SlowFlushStream outB = new SlowFlushStream(new PipedOutputStream(inA), flushMillis);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger received = new AtomicInteger();
+        final List<String> failures = new ArrayList<>();
+        ExchangeCallback callback = new ExchangeCallback() {
+            @Override
+            public void success(Exchange exchange) {
+                received.addAndGet(exchange.getReceivedMessages().size());
+                done.countDown();
+            }
+
+            @Override
+            public void failure(Exchange exchange, String reason) {
+                synchronized (failures) {
+                    failures.add(reason);
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void recover(Exchange exchange, String reason) {
+                failure(exchange, reason);
+            }
+        };
+
+        //fresh addresses so no watermark limits the messages sent
+        run++;
+        FriendStore friends = FriendStore.getInstance(context);
+        CryptographicExchange a = new CryptographicExchange(context, "loopback-b-" + run, inA, outA, true, friends, store, callback);
+        CryptographicExchange b = new CryptographicExchange(context, "loopback-a-" + run, inB, outB, false, friends, store, callback);
+        a.setBatchLimits(batch, CryptographicExchange.DEFAULT_BATCH_BYTES);
+        b.setBatchLimits(batch, CryptographicExchange.DEFAULT_BATCH_BYTES);
+        a.setFullDuplex(duplex);
+        b.setFullDuplex(duplex);
+
+        long start = System.nanoTime();
+        new Thread(a).start();
+        new Thread(b).start();
+        Assert.assertTrue("Exchange timed out", done.await(EXCHANGE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        Assert.assertTrue("Exchange failed: " + failures, failures.isEmpty());
+
+        csv.row(MESSAGES, duplex, batch, flushMillis, outA.flushes + outB.flushes, a.getTraffic().getWireBytes(),
+                String.format("%.2f", a.getTraffic().getCompressionRatio()), millis, received.get() * 1000L / millis);
+    }
+
+    /** Output stream which waits on every flush, the way a socket waits for the link */
+    private static class SlowFlushStream extends FilterOutputStream {
+        private final long flushMillis;
+        private volatile int flushes = 0;
+
+        SlowFlushStream(OutputStream out, long flushMillis) {
+            super(out);
+            this.flushMillis = flushMillis;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushes++;
+            if (flushMillis > 0) {
+                try {
+                    Thread.sleep(flushMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            super.flush();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.denovogroup.murmur.objects.MurmurMessage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that received messages whose ids would corrupt the materialized thread paths are
+ * refused and leave the threads already in the store untouched.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MessageIdTest {
+
+    private Context context;
+    private MessageStore store;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        SecurityManager.setCurrentProfile(context, SecurityManager.getCurrentProfile(context)
+                .setName(SecurityManager.CUSTOM_PROFILE_NAME)
+                .setUseTrust(false)
+                .setFeedSize(0));
+
+        store = MessageStore.getInstance(context);
+        store.purgeStore();
+        List<MurmurMessage> thread = new ArrayList<>();
+        thread.add(message("ROOT", "root message", null));
+        thread.add(message("reply", "reply message", "ROOT"));
+        store.ingestExchange(context, thread, "fill", 1, 1);
+        Assert.assertEquals(1, store.getCommentCount("ROOT"));
+    }
+
+    @Test
+    public void hostileIdsAreIgnored() {
+        List<MurmurMessage> hostile = new ArrayList<>();
+        hostile.add(message("ROOT|x", "grafted into the root thread", null));
+        hostile.add(message("ROOT}", "bounding the root subtree", null));
+        hostile.add(message("child", "reply to a hostile parent", "ROOT|x"));
+
+        List<MessageStore.IngestResult> results = store.ingestExchange(context, hostile, "hostile", 1, 1);
+        Assert.assertEquals(hostile.size(), results.size());
+        for (MessageStore.IngestResult result : results) {
+            Assert.assertTrue(result == MessageStore.IngestResult.IGNORED);
+        }
+
+        Assert.assertEquals(1, store.getCommentCount("ROOT"));
+        assertAbsent("ROOT|x");
+        assertAbsent("ROOT}");
+        assertAbsent("child");
+    }
+
+    @Test
+    public void hostileIdsAreRefusedLocally() {
+        Assert.assertFalse(store.addMessage(context, "ROOT|x", "posted with a hostile id", 1, 0, "", 0, true, 0, null, null, true, 0, 0, null, null));
+        Assert.assertFalse(store.addMessage(context, "local", "posted under a hostile parent", 1, 0, "", 0, true, 0, null, "ROOT|x", true, 0, 0, null, "ROOT|x"));
+
+        Assert.assertEquals(1, store.getCommentCount("ROOT"));
+        assertAbsent("ROOT|x");
+        assertAbsent("local");
+    }
+
+    private void assertAbsent(String messageId) {
+        Cursor cursor = store.getMessageById(messageId);
+        try {
+            Assert.assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static MurmurMessage message(String id, String text, String parent) {
+        return new MurmurMessage(id, text, 0.5, 0, "sender", System.currentTimeMillis(), null, -1, parent, 0, parent, 0);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.denovogroup.murmur.objects.MurmurMessage;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the MessageStore queries against synthetic stores of increasing size, running the
+ * store on the SQLite build bundled with Robolectric so it runs on a plain JVM.
+ *
+ * Excluded from the unit tests, run it with ./gradlew benchmark --tests '*MessageStoreBenchmark'
+ *
+ * Store sizes are read from murmur.benchmark.sizes (comma separated, 1000,10000,100000 by
+ * default). Results are appended as CSV rows to app/build/benchmark/message-store.csv so runs
+ * before and after a storage change can be compared.
+ *
+ * search_text_like runs the LIKE scan the full text index replaced, so the search_text and
+ * search_text_like rows of a 50000 message run (./gradlew benchmark -Dmurmur.benchmark.sizes=50000) compare search
+ * before and after it. Similarly lookup_literal compiles a query with a literal id for every
+ * lookup while lookup_compiled binds the id to a StatementCache statement.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MessageStoreBenchmark {
+
+    private static final String DEFAULT_SIZES = "1000,10000,100000";
+    private static final String CSV_HEADER = "time,messages,operation,iterations,mean_us,p50_us,p95_us,max_us";
+
+    /** number of untimed runs of each operation before measuring it */
+    private static final int WARMUP = 5;
+    /** number of timed runs of each operation */
+    private static final int ITERATIONS = 30;
+
+    /** number of messages written per ingestExchange call when filling the store */
+    private static final int FILL_BATCH = 1000;
+    /** number of messages written per timed ingestExchange call */
+    private static final int INGEST_BATCH = 100;
+    private static final int PAGE_SIZE = 50;
+    private static final int EXCHANGE_LIMIT = 100;
+    /** number of lookups by id per timed run of the lookup operations */
+    private static final int LOOKUPS = 100;
+
+    /** every REPLY_RATIO message is a reply to an earlier root message */
+    private static final int REPLY_RATIO = 4;
+    private static final int HASHTAGS = 50;
+    private static final String[] WORDS = new String[]{"water", "road", "meeting", "square", "police",
+            "market", "bridge", "power", "school", "hospital", "station", "north", "south", "rain"};
+
+    private final Random random = new Random(42);
+    private int nextMessage = 0;
+    private final List<String> roots = new ArrayList<>();
+
+    @Test
+    public void benchmark() throws IOException {
+        BenchmarkHarness.assumeEnabled();
+
+        Context context = RuntimeEnvironment.application;
+        SecurityProfile profile = SecurityManager.getCurrentProfile(context)
+                .setName(SecurityManager.CUSTOM_PROFILE_NAME)
+                .setFeedSize(0)
+                .setAutodelete(true)
+                .setAutodeleteTrust(0.01f)
+                .setAutodeleteAge(365);
+        SecurityManager.setCurrentProfile(context, profile);
+
+        MessageStore store = MessageStore.getInstance(context);
+        store.setSortOption(new String[]{MessageStore.COL_ROWID}, false);
+
+        BenchmarkHarness csv = new BenchmarkHarness("message-store", CSV_HEADER);
+        try {
+            for (String size : System.getProperty("murmur.benchmark.sizes", DEFAULT_SIZES).split(",")) {
+                int messages = Integer.parseInt(size.trim());
+                store.purgeStore();
+                roots.clear();
+                fill(context, store, messages);
+                run(csv, context, store, profile, messages);
+            }
+        } finally {
+            csv.close();
+        }
+    }
+
+    /** fill the store with the supplied number of messages through the exchange ingest path */
+    private void fill(Context context, MessageStore store, int messages){
+        for (int written = 0; written < messages; written += FILL_BATCH) {
+            store.ingestExchange(context, createMessages(Math.min(FILL_BATCH, messages - written)), "fill", 1, 1);
+        }
+    }
+
+    /** create messages spread over the last month, some replying to earlier messages, some
+     * with hashtags and some self destructing */
+    private List<MurmurMessage> createMessages(int count){
+        List<MurmurMessage> messages = new ArrayList<>(count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            String id = "message" + (nextMessage++);
+            StringBuilder text = new StringBuilder(id);
+            for (int w = 0; w < 8; w++) {
+                text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (random.nextInt(3) == 0) text.append(" #tag").append(random.nextInt(HASHTAGS));
+
+            String parent = null;
+            String bigparent = null;
+            if (!roots.isEmpty() && random.nextInt(REPLY_RATIO) == 0) {
+                parent = roots.get(random.nextInt(roots.size()));
+                bigparent = parent;
+            } else {
+                roots.add(id);
+            }
+
+            long timestamp = now - (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(30));
+            long timebound = random.nextInt(10) == 0 ? TimeUnit.DAYS.toMillis(1 + random.nextInt(60)) : -1;
+            messages.add(new MurmurMessage(id, text.toString(), 0.05 + random.nextDouble() * 0.95, random.nextInt(20),
+                    "sender" + random.nextInt(100), timestamp, null, timebound, parent, 0, bigparent, 0));
+        }
+        return messages;
+    }
+
+    private void run(BenchmarkHarness csv, final Context context, final MessageStore store, final SecurityProfile profile, int messages){
+        measure(csv, messages, "feed_first_page", new Runnable() {
+            @Override
+            public void run() {
+                drain(store.getFeedPage(null, PAGE_SIZE));
+            }
+        });
+        measure(csv, messages, "feed_ten_pages", new Runnable() {
+            @Override
+            public void run() {
+                String[] key = null;
+                for (int page = 0; page < 10; page++) {
+                    Cursor cursor = store.getFeedPage(key, PAGE_SIZE);
+                    if (!cursor.moveToLast()) {
+                        cursor.close();
+                        return;
+                    }
+                    key = store.getPageKey(cursor);
+                    cursor.close();
+                }
+            }
+        });
+        measure(csv, messages, "search_text", new Runnable() {
+            @Override
+            public void run() {
+                drain(store.getMessagesContainingCursor(WORDS[random.nextInt(WORDS.length)], false, false, -1));
+            }
+        });
+        measure(csv, messages, "search_text_like", new Runnable() {
+            @Override
+            public void run() {
+                drain(likeScan(store, WORDS[random.nextInt(WORDS.length)]));
+            }
+        });
+        measure(csv, messages, "search_hashtag", new Runnable() {
+            @Override
+            public void run() {
+                drain(store.getMessagesByQuery(SearchHelper.searchToSQL("#tag" + random.nextInt(HASHTAGS), new ArrayList<String>()), null));
+            }
+        });
+        measure(csv, messages, "trending_hashtags", new Runnable() {
+            @Override
+            public void run() {
+                BenchmarkHarness.consume(store.getTrendingHashtags(MessageStore.TRENDING_DAY, 10));
+            }
+        });
+        measure(csv, messages, "exchange_candidates", new Runnable() {
+            @Override
+            public void run() {
+                drain(store.iterateMessagesForExchange(1, EXCHANGE_LIMIT));
+            }
+        });
+        measure(csv, messages, "exchange_delta", new Runnable() {
+            @Override
+            public void run() {
+                drain(store.iterateMessagesForExchange(1, EXCHANGE_LIMIT, store.getSequence() - EXCHANGE_LIMIT));
+            }
+        });
+        final SQLiteDatabase db = store.getReadableDatabase();
+        final int stored = messages;
+        measure(csv, messages, "lookup_" + LOOKUPS + "_literal", new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < LOOKUPS; i++) {
+                    BenchmarkHarness.consume(DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM Messages WHERE " + MessageStore.COL_MESSAGE_ID
+                            + "='message" + random.nextInt(stored) + "' AND deleted=0;", null));
+                }
+            }
+        });
+        final StatementCache statements = new StatementCache(store);
+        measure(csv, messages, "lookup_" + LOOKUPS + "_compiled", new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < LOOKUPS; i++) {
+                    BenchmarkHarness.consume(statements.queryForLong(0, "SELECT COUNT(*) FROM Messages WHERE " + MessageStore.COL_MESSAGE_ID
+                            + "=? AND deleted=0;", "message" + random.nextInt(stored)));
+                }
+            }
+        });
+        statements.clear();
+        measure(csv, messages, "comment_count", new Runnable() {
+            @Override
+            public void run() {
+                BenchmarkHarness.consume(store.getCommentCount(roots.get(random.nextInt(roots.size()))));
+            }
+        });
+        measure(csv, messages, "comments", new Runnable() {
+            @Override
+            public void run() {
+                drain(store.getComments(roots.get(random.nextInt(roots.size()))));
+            }
+        });
+        measure(csv, messages, "ingest_" + INGEST_BATCH, new Runnable() {
+            @Override
+            public void run() {
+                store.ingestExchange(context, createMessages(INGEST_BATCH), "benchmark", 1, 1);
+            }
+        });
+        measure(csv, messages, "cleanup", new Runnable() {
+            @Override
+            public void run() {
+                store.deleteOutdatedOrIrrelevant(profile);
+            }
+        });
+    }
+
+    /** time the supplied operation and write its statistics as a CSV row */
+    private void measure(BenchmarkHarness csv, int messages, String operation, Runnable runnable){
+        csv.row(messages, operation, ITERATIONS, BenchmarkHarness.summary(BenchmarkHarness.sampleMicros(runnable, WARMUP, ITERATIONS)));
+    }
+
+    /** return the matches of the LIKE scan text search used before the full text index, for
+     * comparison with search_text */
+    private static Cursor likeScan(MessageStore store, String word){
+        return store.getReadableDatabase().rawQuery("SELECT * FROM Messages WHERE " + MessageStore.COL_MESSAGE + " LIKE ?"
+                + " AND deleted=0 AND root=1 ORDER BY " + MessageStore.COL_ROWID + " DESC;", new String[]{"%" + word + "%"});
+    }
+
+    /** step through all the rows of the cursor so the query is fully evaluated, then close it */
+    private static void drain(Cursor cursor){
+        if (cursor == null) return;
+        while (cursor.moveToNext()) {
+            BenchmarkHarness.consume(cursor.getLong(0));
+        }
+        cursor.close();
+    }
+
+    /** decode all the messages of the iterator, then close it */
+    private static void drain(MessageIterator iterator){
+        while (iterator.hasNext()) {
+            BenchmarkHarness.consume(iterator.next());
+        }
+        iterator.close();
+    }
+}
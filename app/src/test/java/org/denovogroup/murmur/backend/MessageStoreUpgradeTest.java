@@ -0,0 +1,294 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.denovogroup.murmur.objects.MurmurMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the migration of a version 2 message store and the triggers maintaining the
+ * denormalized columns and counters afterwards.
+ *
+ * The version 2 structure is created by hand in a separate database which is then upgraded by
+ * the store, the MessageStore singleton keeps its own database open.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MessageStoreUpgradeTest {
+
+    private static final String TABLE = "Messages";
+
+    /** conditions of the trigger maintained counters, see MessageStore.MESSAGE_COUNTERS */
+    private static final String[][] COUNTERS = new String[][]{
+            {"total", "1"},
+            {"live", "deleted=0"},
+            {"roots", "root=1"},
+            {"live_roots", "root=1 AND deleted=0"},
+            {"unread", "read=0"},
+            {"favorites", "favorited=1 AND root=1 AND deleted=0"}
+    };
+
+    private Context context;
+    private MessageStore store;
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        SecurityManager.setCurrentProfile(context, SecurityManager.getCurrentProfile(context)
+                .setName(SecurityManager.CUSTOM_PROFILE_NAME)
+                .setUseTrust(false)
+                .setFeedSize(0));
+        store = MessageStore.getInstance(context);
+        store.purgeStore();
+
+        db = SQLiteDatabase.create(null);
+        //as a database created by the current version, so the upgrade does not ask for a vacuum
+        db.execSQL("PRAGMA auto_vacuum=2;");
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "messageId TEXT NOT NULL,"
+                + "bigparent TEXT,"
+                + "parent TEXT,"
+                + "Message VARCHAR(140) NOT NULL,"
+                + "Timestamp INTEGER NOT NULL,"
+                + "expire INTEGER NOT NULL,"
+                + "Connection_score REAL NOT NULL DEFAULT 0.01,"
+                + "Endorsements INT NOT NULL DEFAULT 0,"
+                + "hop INT NOT NULL DEFAULT 0,"
+                + "Restricted INT NOT NULL DEFAULT 0,"
+                + "Nickname VARCHAR(255) NOT NULL,"
+                + "Location TEXT,"
+                + "exchange TEXT,"
+                + "Endorsed BOOLEAN DEFAULT 0 NOT NULL CHECK(Endorsed IN(1,0)),"
+                + "deleted BOOLEAN DEFAULT 0 NOT NULL CHECK(deleted IN(1,0)),"
+                + "favorited BOOLEAN DEFAULT 0 NOT NULL CHECK(favorited IN(1,0)),"
+                + "checked BOOLEAN DEFAULT 0 NOT NULL CHECK(checked IN(1,0)),"
+                + "read BOOLEAN DEFAULT 0 NOT NULL CHECK(read IN(1,0))"
+                + ");");
+        db.setVersion(2);
+
+        insertV2("A", "root message #tag", null, null, false);
+        insertV2("B", "first reply", "A", "A", false);
+        insertV2("C", "reply to the first reply", "B", "A", false);
+        insertV2("E", "removed reply", "A", "A", true);
+        insertV2("D1", "duplicate", null, null, false);
+        insertV2("D2", "duplicate", null, null, false);
+        insertV2("F", "reply to a missing message", "X", "X", false);
+
+        db.beginTransaction();
+        try {
+            store.onUpgrade(db, 2, store.getReadableDatabase().getVersion());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void upgradeKeepsRowsAndHashesThem() {
+        Assert.assertEquals(6, count(TABLE, "1"));
+        for (String id : new String[]{"A", "B", "C", "E", "D2", "F"}) {
+            Assert.assertEquals(id, 1, count(TABLE, "messageId='" + id + "'"));
+        }
+        //of the rows sharing a text only the most recent survives
+        Assert.assertEquals(0, count(TABLE, "messageId='D1'"));
+
+        Cursor cursor = db.rawQuery("SELECT Message, hash FROM " + TABLE + ";", null);
+        try {
+            while (cursor.moveToNext()) {
+                Assert.assertEquals(MessageStore.hashOf(cursor.getString(0)), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void upgradeFillsDenormalizedColumns() {
+        Assert.assertEquals(2, column("A", "reply_count"));
+        Assert.assertEquals(1, column("B", "reply_count"));
+        Assert.assertEquals(1, column("A", "root"));
+        Assert.assertEquals(0, column("C", "root"));
+        Assert.assertEquals(1, column("F", "root"));
+        Assert.assertEquals("|A|B|C|", path("C"));
+        Assert.assertEquals("|X|F|", path("F"));
+        Assert.assertTrue(column("E", "deleted_at") > 0);
+
+        Assert.assertEquals(1, count(TABLE + "_fts", TABLE + "_fts MATCH 'reply*' AND docid=(SELECT _id FROM " + TABLE + " WHERE messageId='B')"));
+        Assert.assertEquals(1, count("Hashtags", "tag='#tag'"));
+        assertConsistent();
+    }
+
+    @Test
+    public void triggersMaintainCountsAfterUpgrade() {
+        insert("G", "late reply", "A", "A");
+        Assert.assertEquals(3, column("A", "reply_count"));
+        assertConsistent();
+
+        db.execSQL("UPDATE " + TABLE + " SET deleted=1 WHERE messageId='B';");
+        Assert.assertEquals(2, column("A", "reply_count"));
+        Assert.assertEquals(1, column("B", "reply_count"));
+        assertConsistent();
+
+        db.execSQL("UPDATE " + TABLE + " SET deleted=0 WHERE messageId='B';");
+        Assert.assertEquals(3, column("A", "reply_count"));
+        assertConsistent();
+
+        db.execSQL("UPDATE " + TABLE + " SET parent='A', bigparent='A' WHERE messageId='F';");
+        Assert.assertEquals(4, column("A", "reply_count"));
+        Assert.assertEquals(0, column("F", "root"));
+        Assert.assertEquals("|A|F|", path("F"));
+        assertConsistent();
+
+        db.execSQL("DELETE FROM " + TABLE + " WHERE messageId='G';");
+        Assert.assertEquals(3, column("A", "reply_count"));
+        assertConsistent();
+
+        //a parent arriving after its reply counts it and takes over its path
+        insert("H", "reply arriving first", "Y", "Y");
+        insert("Y", "parent arriving last", null, null);
+        Assert.assertEquals(1, column("Y", "reply_count"));
+        Assert.assertEquals(0, column("H", "root"));
+        Assert.assertEquals("|Y|H|", path("H"));
+        assertConsistent();
+    }
+
+    @Test
+    public void commentCountMatchesReplyCount() {
+        //replies arrive before the message they reply to
+        List<MurmurMessage> replies = new ArrayList<>();
+        replies.add(message("R1", "reply", "T", "T"));
+        replies.add(message("R2", "reply to the reply", "R1", "T"));
+        store.ingestExchange(context, replies, "first", 1, 1);
+        List<MurmurMessage> thread = new ArrayList<>();
+        thread.add(message("T", "thread", null, null));
+        thread.add(message("R3", "another reply", "T", "T"));
+        store.ingestExchange(context, thread, "second", 1, 1);
+        assertCommentCount("T", 3);
+
+        store.removeMessage("reply to the reply");
+        assertCommentCount("T", 2);
+
+        store.addMessage(context, "R2", "reply to the reply", 1, 0, "", 0, true, 0, null, "R1", true, 0, 0, null, "T");
+        assertCommentCount("T", 3);
+
+        store.deleteMessage("another reply");
+        assertCommentCount("T", 2);
+    }
+
+    private void assertCommentCount(String messageId, int expected) {
+        Cursor cursor = store.getMessageById(messageId);
+        try {
+            Assert.assertTrue(cursor.moveToFirst());
+            Assert.assertEquals(expected, cursor.getInt(cursor.getColumnIndex(MessageStore.COL_REPLY_COUNT)));
+        } finally {
+            cursor.close();
+        }
+        Assert.assertEquals(expected, store.getCommentCount(messageId));
+    }
+
+    /** check every trigger maintained value against its definition */
+    private void assertConsistent() {
+        Assert.assertEquals("reply counts", 0, count(TABLE + " AS m", "reply_count<>(SELECT COUNT(*) FROM " + TABLE + " AS reply"
+                + " WHERE reply.deleted=0 AND (reply.parent=m.messageId OR reply.bigparent=m.messageId))"));
+        Assert.assertEquals("root flags", 0, count(TABLE + " AS m", "root<>(m.bigparent IS NULL OR NOT EXISTS (SELECT 1 FROM " + TABLE
+                + " AS ancestor WHERE ancestor.deleted=0 AND (ancestor.messageId=m.bigparent OR ancestor.messageId=m.parent)))"));
+        for (String[] counter : COUNTERS) {
+            Assert.assertEquals(counter[0], count(TABLE, counter[1]),
+                    DatabaseUtils.longForQuery(db, "SELECT value FROM Counters WHERE name=?;", new String[]{counter[0]}));
+        }
+        Assert.assertEquals("sequence", DatabaseUtils.longForQuery(db, "SELECT MAX(seq) FROM " + TABLE + ";", null),
+                DatabaseUtils.longForQuery(db, "SELECT value FROM Counters WHERE name='seq';", null));
+    }
+
+    private void insertV2(String id, String text, String parent, String bigparent, boolean deleted) {
+        ContentValues values = values(id, text, parent, bigparent);
+        values.put("deleted", deleted ? 1 : 0);
+        db.insertOrThrow(TABLE, null, values);
+    }
+
+    private void insert(String id, String text, String parent, String bigparent) {
+        ContentValues values = values(id, text, parent, bigparent);
+        values.put("hash", MessageStore.hashOf(text));
+        db.insertOrThrow(TABLE, null, values);
+    }
+
+    private static ContentValues values(String id, String text, String parent, String bigparent) {
+        ContentValues values = new ContentValues();
+        values.put("messageId", id);
+        values.put("Message", text);
+        values.put("parent", parent);
+        values.put("bigparent", bigparent);
+        values.put("Timestamp", System.currentTimeMillis());
+        values.put("expire", 0);
+        values.put("Nickname", "sender");
+        return values;
+    }
+
+    private long count(String table, String condition) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + table + " WHERE " + condition + ";", null);
+    }
+
+    private long column(String messageId, String column) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + column + " FROM " + TABLE + " WHERE messageId=?;", new String[]{messageId});
+    }
+
+    private String path(String messageId) {
+        return DatabaseUtils.stringForQuery(db, "SELECT path FROM " + TABLE + " WHERE messageId=?;", new String[]{messageId});
+    }
+
+    private static MurmurMessage message(String id, String text, String parent, String bigparent) {
+        return new MurmurMessage(id, text, 0.5, 0, "sender", System.currentTimeMillis(), null, -1, parent, 0, bigparent, 0);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a command failing inside a group commit, even with an Error, neither loses the
+ * other commands of the group nor stops the writer.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MessageWriterTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int GROUP = 10;
+
+    private SQLiteOpenHelper helper;
+    private MessageWriter writer;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.application.deleteDatabase("writer_test");
+        helper = new SQLiteOpenHelper(RuntimeEnvironment.application, "writer_test", null, 1) {
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE Rows (value INTEGER);");
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            }
+        };
+        writer = new MessageWriter(helper, null);
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+    }
+
+    @Test
+    public void failingCommandDoesNotAffectItsGroup() throws Exception {
+        //hold the writer so the following commands are queued and committed as one group
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Void> blocker = writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                release.await();
+                return null;
+            }
+        });
+
+        List<Future<Long>> inserts = new ArrayList<>();
+        Future<Long> failing = null;
+        for (int i = 0; i < GROUP; i++) {
+            if (i == GROUP / 2) {
+                failing = writer.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        insert(-1);
+                        throw new StackOverflowError();
+                    }
+                });
+            }
+            inserts.add(writer.submit(insertCommand(i)));
+        }
+        release.countDown();
+        blocker.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        for (Future<Long> insert : inserts) {
+            Assert.assertTrue(insert.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) > 0);
+        }
+        try {
+            failing.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.fail("failing command completed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+
+        Assert.assertEquals(GROUP, count("value >= 0"));
+        Assert.assertEquals(0, count("value < 0"));
+
+        //the writer is still running
+        Assert.assertTrue(writer.submit(insertCommand(GROUP)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS) > 0);
+    }
+
+    private Callable<Long> insertCommand(final int value) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return insert(value);
+            }
+        };
+    }
+
+    private long insert(int value) {
+        return helper.getWritableDatabase().compileStatement("INSERT INTO Rows (value) VALUES (" + value + ");").executeInsert();
+    }
+
+    private long count(String condition) {
+        return helper.getReadableDatabase().compileStatement("SELECT COUNT(*) FROM Rows WHERE " + condition + ";").simpleQueryForLong();
+    }
+}
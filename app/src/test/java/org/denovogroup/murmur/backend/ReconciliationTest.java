@@ -0,0 +1,269 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.Context;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.denovogroup.murmur.objects.MurmurMessage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okio.ByteString;
+
+/**
+ * Checks that offering the messages to be sent before an exchange keeps messages the remote
+ * party already holds off the wire.
+ *
+ * Both peers of a loopback exchange share the MessageStore singleton, so partial overlaps are
+ * simulated by exchanges which report only a part of the offered messages as held.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ReconciliationTest {
+
+    private static final int MESSAGES = 500;
+    private static final double[] OVERLAPS = new double[]{0, 0.25, 0.5, 0.75, 1};
+    /** share of the plain traffic the offers may add on top of the messages lacked */
+    private static final double MARGIN = 0.1;
+    private static final int PIPE_SIZE = 4 * 1024 * 1024;
+    private static final long EXCHANGE_TIMEOUT_SECONDS = 60;
+
+    private final Random random = new Random(42);
+    private Context context;
+    private SecurityProfile profile;
+    private MessageStore store;
+    private final List<String> texts = new ArrayList<>();
+    private int run = 0;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        profile = SecurityManager.getCurrentProfile(context)
+                .setName(SecurityManager.CUSTOM_PROFILE_NAME)
+                .setUseTrust(false)
+                .setMaxMessages(MESSAGES)
+                .setFeedSize(0);
+        SecurityManager.setCurrentProfile(context, profile);
+
+        store = MessageStore.getInstance(context);
+        store.purgeStore();
+        List<MurmurMessage> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder text = new StringBuilder("message" + i);
+            int length = 20 + random.nextInt(120);
+            while (text.length() < length) {
+                text.append(' ').append(Integer.toString(random.nextInt(100000), 36));
+            }
+            texts.add(text.toString());
+            messages.add(new MurmurMessage("message" + i, text.toString(), 0.5, 0, "sender" + random.nextInt(100),
+                    System.currentTimeMillis(), null, -1, null, 0, null, 0));
+        }
+        store.ingestExchange(context, messages, "fill", 1, 1);
+    }
+
+    @Test
+    public void wireBytesDropWithOverlap() throws Exception {
+        long plain = exchange(false, false, 0).getTraffic().getWireBytes();
+        Assert.assertTrue(plain > 0);
+
+        for (double overlap : OVERLAPS) {
+            Exchange reconciled = exchange(true, true, overlap);
+            int held = (int) (MESSAGES * overlap);
+            Assert.assertEquals("overlap " + overlap, MESSAGES - held, reconciled.getReceivedMessages().size());
+
+            long bytes = reconciled.getTraffic().getWireBytes();
+            Assert.assertTrue("overlap " + overlap + " sent " + bytes + " of " + plain + " bytes",
+                    bytes <= plain * (1 - overlap) + plain * MARGIN);
+        }
+    }
+
+    @Test
+    public void limitCountsOnlyLackedMessages() throws Exception {
+        SecurityManager.setCurrentProfile(context, profile.setMaxMessages(100));
+        Set<String> held = heldHashes(0.5);
+
+        Exchange exchange = exchange(true, true, 0.5);
+        Assert.assertEquals(100, exchange.getReceivedMessages().size());
+        for (MurmurMessage message : exchange.getReceivedMessages()) {
+            Assert.assertFalse(held.contains(MessageStore.hashOf(message.text)));
+        }
+    }
+
+    @Test
+    public void exchangeWithoutReconcilingPeerSendsAll() throws Exception {
+        Exchange exchange = exchange(true, false, 1);
+        Assert.assertEquals(MESSAGES, exchange.getReceivedMessages().size());
+    }
+
+    @Test
+    public void offerRoundTrips() throws IOException {
+        List<String> hashes = new ArrayList<>();
+        for (String text : texts) {
+            hashes.add(MessageStore.hashOf(text));
+        }
+        List<ByteString> digests = MessageOffer.decodeOffer(MessageOffer.encodeOffer(hashes));
+        Assert.assertEquals(hashes.size(), digests.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            Assert.assertEquals(MessageOffer.digestOf(hashes.get(i)), digests.get(i));
+        }
+
+        boolean[] held = store.getHeldMessages(digests);
+        boolean[] answer = MessageOffer.decodeHeld(MessageOffer.encodeHeld(held), held.length);
+        for (int i = 0; i < held.length; i++) {
+            Assert.assertTrue(held[i]);
+            Assert.assertTrue(answer[i]);
+        }
+    }
+
+    @Test
+    public void unheldMessageSharingDigestPrefixIsRequested() {
+        byte[] digest = MessageOffer.digestOf(MessageStore.hashOf(texts.get(0))).toByteArray();
+        //same leading bytes and base64 characters as a held message, only the last byte differs
+        byte[] other = digest.clone();
+        other[MessageOffer.DIGEST_BYTES - 1] ^= 1;
+        Assert.assertTrue(MessageOffer.prefixOf(ByteString.of(other))
+                .startsWith(MessageOffer.prefixOf(ByteString.of(digest)).substring(0, MessageOffer.DIGEST_CHARS - 1)));
+
+        List<ByteString> offered = new ArrayList<>();
+        offered.add(ByteString.of(digest));
+        offered.add(ByteString.of(other));
+        boolean[] held = store.getHeldMessages(offered);
+        Assert.assertTrue(held[0]);
+        Assert.assertFalse("message sharing a digest prefix reported as held", held[1]);
+    }
+
+    @Test
+    public void answerMustMatchOffer() {
+        try {
+            MessageOffer.decodeHeld(MessageOffer.encodeHeld(new boolean[9]), 8);
+            Assert.fail("answer to a different offer accepted");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    /** return the hashes of the messages held by a peer with the supplied overlap */
+    private Set<String> heldHashes(double overlap) {
+        Set<String> held = new HashSet<>();
+        for (int i = 0; i < (int) (MESSAGES * overlap); i++) {
+            held.add(MessageStore.hashOf(texts.get(i)));
+        }
+        return held;
+    }
+
+    /** run both sides of a loopback exchange and return the initiating side */
+    private Exchange exchange(boolean reconcileA, boolean reconcileB, double overlap) throws Exception {
+        PipedInputStream inA = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream inB = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream outA = new PipedOutputStream(inB);
+        PipedOutputStream outB = new PipedOutputStream(inA);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<String> failures = new ArrayList<>();
+        ExchangeCallback callback = new ExchangeCallback() {
+            @Override
+            public void success(Exchange exchange) {
+                done.countDown();
+            }
+
+            @Override
+            public void failure(Exchange exchange, String reason) {
+                synchronized (failures) {
+                    failures.add(reason);
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void recover(Exchange exchange, String reason) {
+                failure(exchange, reason);
+            }
+        };
+
+        //fresh addresses so no watermark limits the messages sent
+        run++;
+        FriendStore friends = FriendStore.getInstance(context);
+        Set<ByteString> held = new HashSet<>();
+        for (String hash : heldHashes(overlap)) {
+            held.add(MessageOffer.digestOf(hash));
+        }
+        CryptographicExchange a = new OverlappingExchange(context, "loopback-b-" + run, inA, outA, true, friends, callback, held);
+        CryptographicExchange b = new OverlappingExchange(context, "loopback-a-" + run, inB, outB, false, friends, callback, held);
+        a.setReconcile(reconcileA);
+        b.setReconcile(reconcileB);
+
+        new Thread(a).start();
+        new Thread(b).start();
+        Assert.assertTrue("Exchange timed out", done.await(EXCHANGE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertTrue("Exchange failed: " + failures, failures.isEmpty());
+        return a;
+    }
+
+    /** exchange whose peer holds only the messages with the supplied digests */
+    private class OverlappingExchange extends CryptographicExchange {
+
+        private final Set<ByteString> held;
+
+        OverlappingExchange(Context context, String peerAddress, InputStream in, OutputStream out, boolean asInitiator,
+                            FriendStore friends, ExchangeCallback callback, Set<ByteString> held) {
+            super(context, peerAddress, in, out, asInitiator, friends, store, callback);
+            this.held = held;
+        }
+
+        @Override
+        boolean[] findHeld(List<ByteString> offered) {
+            boolean[] found = new boolean[offered.size()];
+            for (int i = 0; i < found.length; i++) {
+                found[i] = held.contains(offered.get(i));
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.Context;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.denovogroup.murmur.backend.Crypto.PrivateSetIntersection;
+import org.denovogroup.murmur.backend.Crypto.PrivateSetIntersection.ServerReplyTuple;
+import org.denovogroup.murmur.objects.ClientMessage;
+import org.denovogroup.murmur.objects.MurmurMessage;
+import org.denovogroup.murmur.objects.ServerMessage;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okio.ByteString;
+
+/**
+ * Compares the throughput and size of the JSON and WireCodec encodings of the frames sent in a
+ * CryptographicExchange, using real PSI group elements and synthetic messages.
+ *
+ * Excluded from the unit tests, run it with ./gradlew benchmark --tests '*WireCodecBenchmark'
+ *
+ * Results are appended as CSV rows to app/build/benchmark/wire-codec.csv.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class WireCodecBenchmark {
+
+    private static final String CSV_HEADER = "time,frame,codec,items,bytes,encode_per_sec,decode_per_sec";
+
+    /** number of untimed rounds of each operation before measuring it */
+    private static final int WARMUP = 3;
+    /** number of timed rounds of each operation */
+    private static final int ROUNDS = 10;
+
+    private static final int MESSAGES = 1000;
+    private static final int FRIENDS = 100;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void benchmark() throws Exception {
+        BenchmarkHarness.assumeEnabled();
+
+        Context context = RuntimeEnvironment.application;
+        SecurityProfile profile = SecurityManager.getCurrentProfile(context)
+                .setName(SecurityManager.CUSTOM_PROFILE_NAME)
+                .setUseTrust(true)
+                .setPseudonyms(true)
+                .setShareLocation(true);
+        SecurityManager.setCurrentProfile(context, profile);
+
+        BenchmarkHarness csv = new BenchmarkHarness("wire-codec", CSV_HEADER);
+        try {
+            benchmarkMessages(csv, context, createMessages());
+            benchmarkServerMessage(csv, createServerMessage());
+        } finally {
+            csv.close();
+        }
+    }
+
+    private List<MurmurMessage> createMessages(){
+        List<MurmurMessage> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 20 + random.nextInt(120);
+            while (text.length() < length) {
+                text.append((char) ('a' + random.nextInt(26)));
+                if (random.nextInt(6) == 0) text.append(' ');
+            }
+            String parent = random.nextInt(4) == 0 ? "parent" + random.nextInt(MESSAGES) : null;
+            messages.add(new MurmurMessage("message" + i, text.toString(), random.nextDouble(), random.nextInt(20),
+                    "sender" + random.nextInt(100), System.currentTimeMillis(), "32.0853 34.7818",
+                    random.nextInt(10) == 0 ? TimeUnit.DAYS.toMillis(1) : -1, parent, random.nextInt(5), parent, 0));
+        }
+        return messages;
+    }
+
+    /** create the server message for a PSI between two parties with FRIENDS friends each */
+    private ServerMessage createServerMessage() throws Exception {
+        ArrayList<byte[]> friends = new ArrayList<>(FRIENDS);
+        for (int i = 0; i < FRIENDS; i++) {
+            byte[] friend = new byte[32];
+            random.nextBytes(friend);
+            friends.add(friend);
+        }
+        PrivateSetIntersection client = new PrivateSetIntersection(friends);
+        PrivateSetIntersection server = new PrivateSetIntersection(friends);
+        ServerReplyTuple reply = server.replyToBlindedItems(client.encodeBlindedItems());
+        return new ServerMessage(Crypto.byteArraysToStrings(reply.doubleBlindedItems),
+                Crypto.byteArraysToStrings(reply.hashedBlindedItems));
+    }
+
+    /** compare encoding every message in its own frame, as sendClientMessage does */
+    private void benchmarkMessages(BenchmarkHarness csv, final Context context, final List<MurmurMessage> messages) throws IOException {
+        final List<byte[]> json = new ArrayList<>(messages.size());
+        final List<byte[]> binary = new ArrayList<>(messages.size());
+
+        report(csv, "message", "json", messages.size(), new Runnable() {
+            @Override
+            public void run() {
+                json.clear();
+                for (MurmurMessage message : messages) {
+                    ArrayList<JSONObject> wrapper = new ArrayList<>();
+                    wrapper.add(message.toJSON(context, 3, 10));
+                    json.add(new ClientMessage(wrapper, null).toJSON().toString().getBytes(WireCodec.UTF8));
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                for (byte[] frame : json) {
+                    for (JSONObject message : ClientMessage.fromJSON(Exchange.parseJSON(frame)).messages) {
+                        BenchmarkHarness.consume(MurmurMessage.fromJSON(context, message));
+                    }
+                }
+            }
+        }, json);
+
+        report(csv, "message", "binary", messages.size(), new Runnable() {
+            @Override
+            public void run() {
+                binary.clear();
+                for (MurmurMessage message : messages) {
+                    binary.add(WireCodec.encodeMessages(context, Collections.singletonList(message), 3, 10));
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (byte[] frame : binary) {
+                        BenchmarkHarness.consume(WireCodec.decodeMessages(context, frame));
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }, binary);
+    }
+
+    private void benchmarkServerMessage(BenchmarkHarness csv, final ServerMessage message) throws IOException {
+        final List<byte[]> json = new ArrayList<>(1);
+        final List<byte[]> binary = new ArrayList<>(1);
+
+        report(csv, "server", "json", 1, new Runnable() {
+            @Override
+            public void run() {
+                json.clear();
+                json.add(message.toJson().toString().getBytes(WireCodec.UTF8));
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                BenchmarkHarness.consume(ServerMessage.fromJSON(Exchange.parseJSON(json.get(0))));
+            }
+        }, json);
+
+        report(csv, "server", "binary", 1, new Runnable() {
+            @Override
+            public void run() {
+                binary.clear();
+                binary.add(message.toBinary());
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (!ServerMessage.fromBinary(binary.get(0)).hashedBlindedFriends.equals(message.hashedBlindedFriends)) {
+                    throw new AssertionError("Server message did not survive the binary codec");
+                }
+            }
+        }, binary);
+    }
+
+    /** time encoding and decoding, then write the frames per second and the encoded size */
+    private void report(BenchmarkHarness csv, String frame, String codec, int items, Runnable encode, Runnable decode, List<byte[]> frames){
+        long encodeNanos = BenchmarkHarness.meanNanos(encode, WARMUP, ROUNDS);
+        long decodeNanos = BenchmarkHarness.meanNanos(decode, WARMUP, ROUNDS);
+
+        long bytes = 0;
+        for (byte[] encoded : frames) {
+            bytes += encoded.length;
+        }
+
+        csv.row(frame, codec, items, bytes, BenchmarkHarness.perSecond(items, encodeNanos), BenchmarkHarness.perSecond(items, decodeNanos));
+    }
+}
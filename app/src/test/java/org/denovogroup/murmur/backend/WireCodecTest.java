@@ -0,0 +1,248 @@
+/*
+* Copyright (c) 2016, De Novo Group
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice,
+* this list of conditions and the following disclaimer.
+*
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation
+* and/or other materials provided with the distribution.
+*
+* 3. Neither the name of the copyright holder nor the names of its
+* contributors may be used to endorse or promote products derived from this
+* software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+* AND ANY EXPRES S OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+* IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+* ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+* LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+* CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+* SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+* CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+* ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+* POSSIBILITY OF SUCH DAMAGE.
+*/
+package org.denovogroup.murmur.backend;
+
+import android.content.Context;
+
+import org.denovogroup.murmur.BuildConfig;
+import org.denovogroup.murmur.objects.ClientMessage;
+import org.denovogroup.murmur.objects.MurmurMessage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import okio.ByteString;
+
+/**
+ * Checks that WireCodec frames decode to what was encoded and that truncated or malformed frames,
+ * as a faulty or hostile peer may send, are rejected with an IOException.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class WireCodecTest {
+
+    private static final long[] VARINTS = new long[]{0, 1, 127, 128, 300, 16383, 16384,
+            Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, Long.MIN_VALUE, -1};
+    /** number of random frames decoded by malformedFramesFailCleanly */
+    private static final int FUZZ_ROUNDS = 2000;
+
+    private final Random random = new Random(42);
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        SecurityManager.setCurrentProfile(context, SecurityManager.getCurrentProfile(context)
+                .setName(SecurityManager.CUSTOM_PROFILE_NAME)
+                .setUseTrust(true)
+                .setPseudonyms(true)
+                .setShareLocation(true));
+    }
+
+    @Test
+    public void valuesRoundTrip() throws IOException {
+        List<ByteString> sameWidth = Arrays.asList(ByteString.of(new byte[]{1, 2, 3}), ByteString.of(new byte[]{4, 5, 6}));
+        List<ByteString> mixedWidth = Arrays.asList(ByteString.of(new byte[]{1}), ByteString.of(new byte[]{2, 3}), ByteString.EMPTY);
+
+        WireCodec.Writer writer = new WireCodec.Writer();
+        for (long value : VARINTS) {
+            writer.writeVarint(value);
+            writer.writeSignedVarint(value);
+        }
+        writer.writeFloat(0.25f);
+        writer.writeString("");
+        writer.writeString("\u05e9\u05dc\u05d5\u05dd #murmur");
+        writer.writeBytes(new byte[]{0, -1, 127});
+        writer.writeElements(sameWidth);
+        writer.writeElements(mixedWidth);
+        writer.writeElements(new ArrayList<ByteString>());
+
+        WireCodec.Reader reader = new WireCodec.Reader(writer.toByteArray());
+        for (long value : VARINTS) {
+            Assert.assertEquals(value, reader.readVarint());
+            Assert.assertEquals(value, reader.readSignedVarint());
+        }
+        Assert.assertEquals(0.25f, reader.readFloat(), 0);
+        Assert.assertEquals("", reader.readString());
+        Assert.assertEquals("\u05e9\u05dc\u05d5\u05dd #murmur", reader.readString());
+        Assert.assertArrayEquals(new byte[]{0, -1, 127}, reader.readBytes());
+        Assert.assertEquals(sameWidth, reader.readElements());
+        Assert.assertEquals(mixedWidth, reader.readElements());
+        Assert.assertEquals(0, reader.readElements().size());
+        Assert.assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    public void messagesRoundTrip() throws IOException {
+        List<MurmurMessage> messages = createMessages(20);
+        List<MurmurMessage> decoded = WireCodec.decodeMessages(context, WireCodec.encodeMessages(context, messages, 3, 10));
+
+        Assert.assertEquals(messages.size(), decoded.size());
+        for (int i = 0; i < messages.size(); i++) {
+            MurmurMessage sent = messages.get(i);
+            MurmurMessage received = decoded.get(i);
+            Assert.assertEquals(sent.messageid, received.messageid);
+            Assert.assertEquals(sent.text, received.text);
+            Assert.assertEquals(sent.parent, received.parent);
+            Assert.assertEquals(sent.bigparent, received.bigparent);
+            Assert.assertEquals(sent.pseudonym, received.pseudonym);
+            Assert.assertEquals(sent.latlong, received.latlong);
+            Assert.assertEquals(sent.timebound, received.timebound);
+            Assert.assertEquals(sent.priority, received.priority);
+            //the hop count is raised when a message is sent on
+            Assert.assertEquals(sent.hop + 1, received.hop);
+        }
+
+        Assert.assertEquals(1234, WireCodec.decodeCount(WireCodec.encodeCount(1234)));
+    }
+
+    @Test
+    public void friendsFrameUsesRequestedVersion() {
+        ClientMessage message = new ClientMessage(null, new ArrayList<ByteString>());
+        message.codecVersion = WireCodec.VERSION;
+        byte[] frame = message.toBinary(1);
+        Assert.assertEquals(1, frame[0]);
+        Assert.assertTrue(WireCodec.isBinary(frame));
+        Assert.assertEquals(WireCodec.VERSION, ClientMessage.fromBinary(frame).codecVersion);
+    }
+
+    @Test
+    public void truncatedFramesFail() {
+        byte[] frame = WireCodec.encodeMessages(context, createMessages(5), 3, 10);
+        for (int length = 0; length < frame.length; length++) {
+            assertMalformed("truncated to " + length, Arrays.copyOf(frame, length));
+        }
+    }
+
+    @Test
+    public void overflowingVarintsFail() {
+        //ten bytes whose last one carries more than the single remaining bit
+        assertMalformed("varint overflow", frame(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x02));
+        //more than ten bytes with the continuation bit set
+        assertMalformed("endless varint", frame(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01));
+        try {
+            WireCodec.decodeCount(frame(0x80, 0x80, 0x80, 0x80, 0x10));
+            Assert.fail("count beyond int range accepted");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void negativeAndHugeLengthsFail() {
+        //one message whose id length is -1, i.e. a varint with all 64 bits set
+        assertMalformed("negative length", frame(0x01, 0x00, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01));
+        //one message whose id length is Long.MAX_VALUE
+        assertMalformed("huge length", frame(0x01, 0x00, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x7F));
+        //a million messages announced in a frame of a few bytes
+        assertMalformed("huge count", frame(0xC0, 0x84, 0x3D, 0x00));
+
+        //four elements each Long.MAX_VALUE / 2 bytes wide, overflowing once multiplied
+        try {
+            new WireCodec.Reader(frame(0x04, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x3F)).readElements();
+            Assert.fail("huge element width accepted");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void nonBinaryFramesFail() {
+        assertMalformed("empty frame", new byte[0]);
+        assertMalformed("json frame", "{\"messages\":[]}".getBytes(WireCodec.UTF8));
+        assertMalformed("unknown version", new byte[]{(byte) (WireCodec.VERSION + 1), 0});
+    }
+
+    @Test
+    public void malformedFramesFailCleanly() {
+        byte[] valid = WireCodec.encodeMessages(context, createMessages(3), 3, 10);
+        for (int i = 0; i < FUZZ_ROUNDS; i++) {
+            byte[] frame = valid.clone();
+            int changes = 1 + random.nextInt(4);
+            for (int j = 0; j < changes; j++) {
+                frame[1 + random.nextInt(frame.length - 1)] = (byte) random.nextInt(256);
+            }
+            try {
+                WireCodec.decodeMessages(context, frame);
+            } catch (IOException e) {
+                //corrupt frames may decode or be rejected, never fail otherwise
+            } catch (RuntimeException e) {
+                Assert.fail("frame " + Arrays.toString(frame) + " failed with " + e);
+            } catch (OutOfMemoryError e) {
+                Assert.fail("frame " + Arrays.toString(frame) + " exhausted memory");
+            }
+        }
+    }
+
+    private void assertMalformed(String description, byte[] frame) {
+        try {
+            WireCodec.decodeMessages(context, frame);
+            Assert.fail(description + " frame accepted");
+        } catch (IOException e) {
+            //expected
+        } catch (RuntimeException e) {
+            Assert.fail(description + " frame failed with " + e);
+        } catch (OutOfMemoryError e) {
+            Assert.fail(description + " frame exhausted memory");
+        }
+    }
+
+    /** return a binary frame of the current version holding the supplied bytes */
+    private static byte[] frame(int... bytes) {
+        byte[] frame = new byte[bytes.length + 1];
+        frame[0] = (byte) WireCodec.VERSION;
+        for (int i = 0; i < bytes.length; i++) {
+            frame[i + 1] = (byte) bytes[i];
+        }
+        return frame;
+    }
+
+    private List<MurmurMessage> createMessages(int count) {
+        List<MurmurMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String parent = i % 3 == 0 ? null : "message" + (i - 1);
+            messages.add(new MurmurMessage("message" + i, "text of message " + i + " #tag" + random.nextInt(10),
+                    random.nextDouble(), random.nextInt(20) - 10, "sender" + i, 0, "32.0853 34.7818",
+                    i % 4 == 0 ? 3600000L : -1, parent, random.nextInt(5), parent, i % 2));
+        }
+        return messages;
+    }
+}